@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps vSphere datacenter names (dasein region IDs) to their managed object references for an account.
+ * All datacenters are fetched by name in a single property collector query, and the result serves both datacenter
+ * lookups and the region list for fifteen minutes. A lookup for a name that is not known reloads the directory if it
+ * is more than 30 seconds old, and {@link #invalidate()} forces a reload on the next request. Directories live in the
+ * Dasein cache and are discarded after an hour.
+ */
+class DatacenterDirectory {
+    static private final Logger log = PrivateCloud.getLogger(DatacenterDirectory.class, "std");
+
+    static private final long DIRECTORY_TIMEOUT = CalendarWrapper.MINUTE * 15L;
+    static private final long MISS_DELAY        = CalendarWrapper.SECOND * 30L;
+
+    static @Nonnull DatacenterDirectory getInstance(@Nonnull PrivateCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<DatacenterDirectory> cache = Cache.getInstance(provider, "datacenterDirectory", DatacenterDirectory.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+        synchronized( DatacenterDirectory.class ) {
+            Collection<DatacenterDirectory> list = ( Collection<DatacenterDirectory> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = Collections.singletonList(new DatacenterDirectory());
+                cache.put(ctx, list);
+            }
+            return list.iterator().next();
+        }
+    }
+
+    private Map<String,ManagedObjectReference> datacenters = new TreeMap<String, ManagedObjectReference>();
+    private long                               loaded;
+
+    private DatacenterDirectory() { }
+
+    /**
+     * Looks up a datacenter by name.
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @param name the datacenter name
+     * @return the datacenter reference or null if there is no such datacenter
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nullable ManagedObjectReference get(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull String name) throws CloudException {
+        long now = System.currentTimeMillis();
+
+        if( now - loaded > DIRECTORY_TIMEOUT ) {
+            load(provider, instance);
+        }
+        ManagedObjectReference mor = datacenters.get(name);
+
+        if( mor == null && now - loaded > MISS_DELAY ) {
+            load(provider, instance);
+            mor = datacenters.get(name);
+        }
+        return mor;
+    }
+
+    /**
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @return the names of all datacenters in name order
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nonnull List<String> list(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        if( System.currentTimeMillis() - loaded > DIRECTORY_TIMEOUT ) {
+            load(provider, instance);
+        }
+        return new ArrayList<String>(datacenters.keySet());
+    }
+
+    /**
+     * Forces the next request to reload the directory.
+     */
+    synchronized void invalidate() {
+        loaded = 0L;
+    }
+
+    private void load(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        APITrace.begin(provider, "DatacenterDirectory.load");
+        try {
+            TreeMap<String,ManagedObjectReference> map = new TreeMap<String, ManagedObjectReference>();
+
+            for( ObjectProperties dc : new PropertyRetriever(instance).retrieve(instance.getRootFolder(), PropertyRetriever.spec("Datacenter", "name")) ) {
+                String name = dc.getString("name");
+
+                if( name != null ) {
+                    map.put(name, dc.getMOR());
+                }
+            }
+            datacenters = map;
+            loaded = System.currentTimeMillis();
+            if( log.isDebugEnabled() ) {
+                log.debug("Loaded " + map.size() + " datacenters");
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+}
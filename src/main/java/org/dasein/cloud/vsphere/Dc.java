@@ -183,26 +183,45 @@ public class Dc implements DataCenterServices {
     public @Nullable Datacenter getVmwareDatacenterFromVDCId(@Nonnull ServiceInstance service, @Nonnull String dcId) throws CloudException, InternalException {
         APITrace.begin(provider, "DC.getVmwareDatacenterFromVDCId");
         try {
-            Folder rootFolder = service.getRootFolder();
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
+            ManagedObjectReference mor;
 
-            try {
-                return (Datacenter)(new InventoryNavigator(rootFolder).searchManagedEntity("Datacenter", dcId));
-            }
-            catch( InvalidProperty e ) {
-                throw new InternalException("Invalid DC property: " + e.getMessage());
+            if( snapshot != null ) {
+                ObjectProperties dc = snapshot.find("Datacenter", "name", dcId);
+
+                mor = (dc == null ? null : dc.getMOR());
             }
-            catch( RuntimeFault e ) {
-                throw new InternalException("Error talking to the cluster: " + e.getMessage());
+            else {
+                mor = DatacenterDirectory.getInstance(provider).get(provider, service, dcId);
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in processing the request in the cluster: " + e.getMessage());
+            if( mor == null ) {
+                return null;
             }
+            return new Datacenter(service.getServerConnection(), mor);
         }
         finally {
             APITrace.end();
         }
     }
 
+    /**
+     * Discards the cached datacenter references and region list so that the next request reloads them from vSphere,
+     * such as after a datacenter has been added, removed or renamed.
+     * @throws CloudException no context exists for this request
+     */
+    public void invalidateRegions() throws CloudException {
+        DatacenterDirectory.getInstance(provider).invalidate();
+    }
+
+    /**
+     * Discards the cached resource pool tree so that the next request reloads it from vSphere, such as after resource
+     * pools have been added, removed or moved.
+     * @throws CloudException no context exists for this request
+     */
+    public void invalidateResourcePools() throws CloudException {
+        ResourcePoolTree.getInstance(provider).invalidate();
+    }
+
     @Override
     public @Nonnull Collection<DataCenter> listDataCenters(@Nonnull String regionId) throws InternalException, CloudException {
         APITrace.begin(provider, "DC.listDataCenters");
@@ -240,6 +259,21 @@ public class Dc implements DataCenterServices {
         APITrace.begin(provider, "DC.listDataCentersFromClusters");
         try {
             ArrayList<DataCenter> dataCenters = new ArrayList<DataCenter>();
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
+
+            if( snapshot != null ) {
+                if( snapshot.find("Datacenter", "name", regionId) == null ) {
+                    throw new CloudException("No such dc: " + regionId);
+                }
+                for( ObjectProperties cluster : snapshot.list("ClusterComputeResource") ) {
+                    ObjectProperties vdc = snapshot.getDatacenter(cluster.getMOR());
+
+                    if( vdc != null && regionId.equals(vdc.getString("name")) ) {
+                        dataCenters.add(toDataCenter(cluster, regionId));
+                    }
+                }
+                return dataCenters;
+            }
             ServiceInstance instance = getServiceInstance();
             Datacenter dc = getVmwareDatacenterFromVDCId(instance, regionId);
 
@@ -287,101 +321,45 @@ public class Dc implements DataCenterServices {
         APITrace.begin(provider, "DC.listResourcePools");
         try {
             ArrayList<org.dasein.cloud.dc.ResourcePool> list = new ArrayList<org.dasein.cloud.dc.ResourcePool>();
-            Iterable<ResourcePool> rps;
             DataCenter ourDC = provider.getDataCenterServices().getDataCenter(providerDataCenterId);
-            if (ourDC != null) {
-                if (ourDC.getProviderDataCenterId().endsWith("-a")) {
-                    rps = listResourcePoolsForDatacenter(ourDC.getRegionId());
-                }
-                else {
-                    rps = listResourcePoolsForCluster(providerDataCenterId);
-                }
-
-                if (rps != null) {
-                    for (ResourcePool rp : rps) {
-                        list.add(toResourcePool(rp, providerDataCenterId));
-                    }
-                }
-            }
-            return list;
-        }
-        finally {
-            APITrace.end();
-        }
-    }
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
 
-    private Collection<ResourcePool> listResourcePoolsForCluster(String providerDataCenterId) throws InternalException, CloudException {
-        APITrace.begin(provider, "DC.listResourcePoolsForCluster");
-        try {
-            ServiceInstance instance = getServiceInstance();
-            DataCenter dsdc = getDataCenter(providerDataCenterId);
+            if (ourDC != null && snapshot != null) {
+                boolean wholeDatacenter = ourDC.getProviderDataCenterId().endsWith("-a");
 
-            if( dsdc == null ) {
-                return null;
-            }
-            Datacenter dc = getVmwareDatacenterFromVDCId(instance, dsdc.getRegionId());
+                for (ObjectProperties rp : snapshot.list(InventorySnapshot.RESOURCE_POOL_TYPES)) {
+                    if (wholeDatacenter) {
+                        ObjectProperties vdc = snapshot.getDatacenter(rp.getMOR());
 
-            if( dc == null ) {
-                return null;
-            }
-
-            ManagedEntity[] clusters;
-
-            ArrayList<ResourcePool> list = new ArrayList<ResourcePool>();
-            try {
-                clusters = new InventoryNavigator(dc).searchManagedEntities("ClusterComputeResource");
-
-                if (clusters != null) {
-                    for( ManagedEntity entity : clusters ) {
-
-                        ClusterComputeResource cluster = (ClusterComputeResource)entity;
+                        if (vdc != null && ourDC.getRegionId().equals(vdc.getString("name"))) {
+                            list.add(toResourcePool(rp, snapshot, providerDataCenterId));
+                        }
+                    }
+                    else if (providerDataCenterId.equals(snapshot.getClusterName(rp.getMOR()))) {
+                        ObjectProperties parent = snapshot.get(rp.getReference("parent"));
 
-                        if (cluster.getName().equals(providerDataCenterId)) {
-                            ResourcePool root = cluster.getResourcePool();
-                            if (root.getResourcePools() != null && root.getResourcePools().length > 0) {
-                                getChildren(root.getResourcePools(), list);
-                            }
+                        // skip the cluster's root resource pool
+                        if (parent != null && snapshot.isResourcePool(parent)) {
+                            list.add(toResourcePool(rp, snapshot, providerDataCenterId));
                         }
                     }
                 }
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No cluster support in datacenter: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
+            else if (ourDC != null) {
+                boolean wholeDatacenter = ourDC.getProviderDataCenterId().endsWith("-a");
 
-            return list;
-        }
-        finally {
-            APITrace.end();
-        }
-    }
-
-    private void getChildren(ResourcePool[] pools, ArrayList<ResourcePool> list) throws CloudException, InternalException {
-        APITrace.begin(provider, "DC.getChildren(ResourcePool[])");
-        try {
-            try {
-                for (ResourcePool r : pools) {
-                    list.add(r);
-                    if (r.getResourcePools() != null && r.getResourcePools().length > 0) {
-                        getChildren(r.getResourcePools(), list);
+                for (ResourcePoolTree.Node rp : ResourcePoolTree.getInstance(provider).list(provider, getServiceInstance())) {
+                    if (wholeDatacenter) {
+                        if (ourDC.getRegionId().equals(rp.getRegionId())) {
+                            list.add(toResourcePool(rp, providerDataCenterId));
+                        }
+                    }
+                    else if (providerDataCenterId.equals(rp.getClusterName()) && !rp.isRoot()) {
+                        list.add(toResourcePool(rp, providerDataCenterId));
                     }
                 }
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No resource pool support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
+            return list;
         }
         finally {
             APITrace.end();
@@ -415,48 +393,6 @@ public class Dc implements DataCenterServices {
         }
     }
 
-    private Collection<ResourcePool> listResourcePoolsForDatacenter(String dataCenterId) throws InternalException, CloudException {
-        APITrace.begin(provider, "DC.listResourcePoolsForDatacenter");
-        try {
-            ServiceInstance instance = getServiceInstance();
-            DataCenter dsdc = getDataCenter(dataCenterId);
-
-            if( dsdc == null ) {
-                return null;
-            }
-            Datacenter dc = getVmwareDatacenterFromVDCId(instance, dataCenterId);
-
-            if( dc == null ) {
-                return null;
-            }
-            ManagedEntity[] pools = null;
-            try {
-                pools = new InventoryNavigator(dc).searchManagedEntities("ResourcePool");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException(e);
-            }
-            catch( RuntimeFault e ) {
-                throw new InternalException(e);
-            }
-            catch( RemoteException e ) {
-                throw new CloudException(e);
-            }
-            ArrayList<ResourcePool> list = new ArrayList<ResourcePool>();
-            if (pools != null) {
-                for( ManagedEntity entity : pools ) {
-                    ResourcePool rp = (ResourcePool)entity;
-                    list.add(rp);
-                }
-            }
-
-            return list;
-        }
-        finally {
-            APITrace.end();
-        }
-    }
-
     @Override
     public org.dasein.cloud.dc.ResourcePool getResourcePool(String providerResourcePoolId) throws InternalException, CloudException {
         APITrace.begin(provider, "DC.getResourcePool");
@@ -486,6 +422,12 @@ public class Dc implements DataCenterServices {
             Collection<StoragePool> pools = (Collection<StoragePool>)cache.get(provider.getContext());
 
             if( pools == null ) {
+                InventorySnapshot snapshot = provider.getInventorySnapshot();
+
+                if( snapshot != null ) {
+                    // the mirror is always current, so there is no point caching its results
+                    return listStoragePools(snapshot);
+                }
                 pools = new ArrayList<StoragePool>();
                 ArrayList<String> datastoreNames = new ArrayList<String>();
                 Host hostSupport = provider.getComputeServices().getAffinityGroupSupport();
@@ -523,6 +465,43 @@ public class Dc implements DataCenterServices {
         }
     }
 
+    private @Nonnull Collection<StoragePool> listStoragePools(@Nonnull InventorySnapshot snapshot) throws InternalException, CloudException {
+        ArrayList<StoragePool> pools = new ArrayList<StoragePool>();
+        ArrayList<String> datastoreNames = new ArrayList<String>();
+        Host hostSupport = provider.getComputeServices().getAffinityGroupSupport();
+
+        for (DataCenter dataCenter : listDataCenters(provider.getContext().getRegionId())) {
+            boolean sameDC = false;
+            for (ObjectProperties host : hostSupport.listHostSystems(snapshot, dataCenter.getProviderDataCenterId())) {
+                for (ManagedObjectReference dsRef : host.getReferences("datastore")) {
+                    ObjectProperties ds = snapshot.get(dsRef);
+
+                    if (ds == null) {
+                        continue;
+                    }
+                    String dsName = ds.getString("name");
+
+                    if (!datastoreNames.contains(dsName)) {
+                        datastoreNames.add(dsName);
+                        pools.add(toStoragePool(dsName, (DatastoreSummary)ds.get("summary"), host.getString("name"), dataCenter.getProviderDataCenterId()));
+                    }
+                    else {
+                        for (StoragePool storagePool: pools) {
+                            if (storagePool.getStoragePoolName().equals(dsName)) {
+                                storagePool.setAffinityGroupId(null);
+                                if (!sameDC) {
+                                    storagePool.setDataCenterId(null);
+                                }
+                            }
+                        }
+                    }
+                }
+                sameDC = true;
+            }
+        }
+        return pools;
+    }
+
     @Nonnull
     @Override
     public StoragePool getStoragePool(String providerStoragePoolId) throws InternalException, CloudException {
@@ -622,22 +601,18 @@ public class Dc implements DataCenterServices {
     public ResourcePool getVMWareResourcePool(String providerResourcePoolId) throws InternalException, CloudException {
         APITrace.begin(provider, "DC.getVMWareResourcePool");
         try {
-            Iterable<DataCenter> dcs = listDataCenters(getContext().getRegionId());
-            Iterable<ResourcePool> rps;
-            for (DataCenter dc : dcs) {
-                if (dc.getProviderDataCenterId().endsWith("-a")) {
-                    rps = listResourcePoolsForDatacenter(dc.getRegionId());
-                }
-                else {
-                    rps = listResourcePoolsForCluster(dc.getProviderDataCenterId());
-                }
-                for (ResourcePool rp : rps) {
-                    if (getIdForResourcePool(rp).equals(providerResourcePoolId)) {
-                        return rp;
-                    }
-                }
+            String regionId = getContext().getRegionId();
+
+            if( regionId == null ) {
+                throw new CloudException("No region was specified for this request.");
             }
-            return null;
+            ServiceInstance instance = getServiceInstance();
+            ResourcePoolTree.Node rp = ResourcePoolTree.getInstance(provider).find(provider, instance, regionId, providerResourcePoolId);
+
+            if( rp == null ) {
+                return null;
+            }
+            return new ResourcePool(instance.getServerConnection(), rp.getPool());
         }
         finally {
             APITrace.end();
@@ -648,33 +623,16 @@ public class Dc implements DataCenterServices {
         APITrace.begin(provider, "DC.listRegionsFromVDCs");
         try {
             ArrayList<Region> regions = new ArrayList<Region>();
-            ServiceInstance instance = getServiceInstance();
-
-            Folder rootFolder = instance.getRootFolder();
-            ManagedEntity[] mes;
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
 
-            try {
-                mes = new InventoryNavigator(rootFolder).searchManagedEntities("Datacenter");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No datacenter support: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-
-            if( mes == null || mes.length < 1 ) {
+            if( snapshot != null ) {
+                for( ObjectProperties dc : snapshot.list("Datacenter") ) {
+                    regions.add(toRegion(dc.getString("name")));
+                }
                 return regions;
             }
-            for( ManagedEntity entity : mes ) {
-                Region r = toRegion((Datacenter) entity);
-
-                if( r != null ) {
-                    regions.add(r);
-                }
+            for( String name : DatacenterDirectory.getInstance(provider).list(provider, getServiceInstance()) ) {
+                regions.add(toRegion(name));
             }
             return regions;
         }
@@ -699,40 +657,64 @@ public class Dc implements DataCenterServices {
         return dc;
     }
 
-    private @Nullable Region toRegion(@Nullable Datacenter dc) {
-        if(dc == null ) {
-            return null;
-        }
+    private @Nonnull DataCenter toDataCenter(@Nonnull ObjectProperties cluster, @Nonnull String regionId) {
+        ManagedEntityStatus status = (ManagedEntityStatus)cluster.get("overallStatus");
+        DataCenter dc = new DataCenter();
+
+        dc.setActive(!ManagedEntityStatus.red.equals(status));
+        dc.setAvailable(true);
+        dc.setName(cluster.getString("name"));
+        dc.setProviderDataCenterId(cluster.getString("name"));
+        dc.setRegionId(regionId);
+        return dc;
+    }
+
+    private @Nonnull Region toRegion(@Nonnull String name) {
         Region region = new Region();
 
         region.setActive(true);
         region.setAvailable(true);
         region.setJurisdiction("US");
-        region.setName(dc.getName());
-        region.setProviderRegionId(dc.getName());
+        region.setName(name);
+        region.setProviderRegionId(name);
         return region;
     }
 
-    private org.dasein.cloud.dc.ResourcePool toResourcePool(@Nonnull ResourcePool resourcePool, @Nonnull String dataCenterId) {
+    private org.dasein.cloud.dc.ResourcePool toResourcePool(@Nonnull ResourcePoolTree.Node resourcePool, @Nonnull String dataCenterId) {
         org.dasein.cloud.dc.ResourcePool rp = new org.dasein.cloud.dc.ResourcePool();
         rp.setName(resourcePool.getName());
         rp.setDataCenterId(dataCenterId);
 
-        ManagedEntityStatus status = resourcePool.getRuntime().getOverallStatus();
-        if (status.equals(ManagedEntityStatus.red) || status.equals(ManagedEntityStatus.yellow)) {
-            rp.setAvailable(false);
-        }
-        else {
-            rp.setAvailable(true);
-        }
+        ManagedEntityStatus status = resourcePool.getStatus();
+        rp.setAvailable(!ManagedEntityStatus.red.equals(status) && !ManagedEntityStatus.yellow.equals(status));
+        rp.setProvideResourcePoolId(resourcePool.getId());
+        return rp;
+    }
 
-        //get resource pool hierarchy and add to id
-        rp.setProvideResourcePoolId(getIdForResourcePool(resourcePool));
+    private org.dasein.cloud.dc.ResourcePool toResourcePool(@Nonnull ObjectProperties resourcePool, @Nonnull InventorySnapshot snapshot, @Nonnull String dataCenterId) {
+        org.dasein.cloud.dc.ResourcePool rp = new org.dasein.cloud.dc.ResourcePool();
+        rp.setName(resourcePool.getString("name"));
+        rp.setDataCenterId(dataCenterId);
 
+        ManagedEntityStatus status = (ManagedEntityStatus)resourcePool.get("runtime.overallStatus");
+        rp.setAvailable(!ManagedEntityStatus.red.equals(status) && !ManagedEntityStatus.yellow.equals(status));
+        rp.setProvideResourcePoolId(snapshot.getResourcePoolId(resourcePool.getMOR()));
         return rp;
     }
 
     public String getIdForResourcePool(ResourcePool rp) {
+        ResourcePoolTree.Node node;
+
+        try {
+            node = ResourcePoolTree.getInstance(provider).get(provider, rp.getServerConnection().getServiceInstance(), rp.getMOR());
+        }
+        catch( CloudException e ) {
+            // no context to key the tree by or the tree could not be loaded, so work it out from the parents instead
+            node = null;
+        }
+        if (node != null) {
+            return node.getId();
+        }
         String id = rp.getName();
         ManagedEntity parent = rp.getParent();
         while (parent != null) {
@@ -757,14 +739,17 @@ public class Dc implements DataCenterServices {
     }
 
     private StoragePool toStoragePool(Datastore ds, String hostName, String datacenter) {
+        return toStoragePool(ds.getName(), ds.getSummary(), hostName, datacenter);
+    }
+
+    private StoragePool toStoragePool(String name, DatastoreSummary info, String hostName, String datacenter) {
         StoragePool sp = new StoragePool();
         sp.setAffinityGroupId(hostName);
         sp.setDataCenterId(datacenter);
         sp.setRegionId(provider.getContext().getRegionId());
-        sp.setStoragePoolName(ds.getName());
-        sp.setStoragePoolId(ds.getName());
+        sp.setStoragePoolName(name);
+        sp.setStoragePoolId(name);
 
-        DatastoreSummary info = ds.getSummary();
         long capacityBytes = info.getCapacity();
         long freeBytes = info.getFreeSpace();
         long provisioned = capacityBytes-freeBytes;
@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.vsphere.compute.Vm;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A live in-memory mirror of the parts of the vSphere inventory used by this implementation: virtual machines and
+ * templates, hosts, clusters, resource pools, datacenters, datastores, networks and folders. The cache performs one
+ * full load through a property collector filter and then consumes <code>WaitForUpdatesEx</code> deltas on a
+ * background thread. Each applied update publishes a new immutable {@link InventorySnapshot}, so readers share it
+ * and its indexes instead of copying the inventory on every call. One cache exists per endpoint and set of credentials; it leases its session from the
+ * {@link SessionPool} and shuts itself down after it has not been used for a while.
+ */
+public class InventoryCache {
+    static private final Logger log = PrivateCloud.getLogger(InventoryCache.class, "std");
+
+    static private final int  MAX_WAIT_SECONDS = 60;
+    static private final long IDLE_TIMEOUT     = CalendarWrapper.MINUTE * 15L;
+    static private final long LOAD_TIMEOUT     = CalendarWrapper.MINUTE * 2L;
+    static private final long RETRY_DELAY      = CalendarWrapper.SECOND * 30L;
+
+    static private final HashMap<String,InventoryCache> caches = new HashMap<String, InventoryCache>();
+
+    /**
+     * @return the property specs for everything the cache mirrors
+     */
+    static public @Nonnull PropertySpec[] getTrackedSpecs() {
+        ArrayList<String> vmPaths = new ArrayList<String>(Arrays.asList(Vm.VM_PROPERTIES));
+
+        vmPaths.add("config.uuid");
+        vmPaths.add("config.hardware.device");
+        return new PropertySpec[] {
+                PropertyRetriever.spec("VirtualMachine", vmPaths.toArray(new String[vmPaths.size()])),
+                PropertyRetriever.spec("HostSystem", "name", "parent", "configStatus", "datastore"),
+                PropertyRetriever.spec("ComputeResource", "name", "parent", "overallStatus", "resourcePool"),
+                PropertyRetriever.spec("ResourcePool", "name", "parent", "owner", "runtime.overallStatus"),
+                PropertyRetriever.spec("Datacenter", "name", "parent"),
+                PropertyRetriever.spec("Datastore", "name", "parent", "summary"),
+                PropertyRetriever.spec("Network", "name", "parent", "summary.accessible"),
+                PropertyRetriever.spec("DistributedVirtualPortgroup", "name", "parent", "summary.accessible", "config.distributedVirtualSwitch"),
+                PropertyRetriever.spec("DistributedVirtualSwitch", "name", "uuid"),
+                PropertyRetriever.spec("Folder", "name", "parent")
+        };
+    }
+
+    /**
+     * Provides the inventory cache for the endpoint and credentials of the specified cloud, starting it if necessary.
+     * @param provider the cloud provider
+     * @return the inventory cache or null if the cache is not enabled for this context
+     * @throws CloudException an error occurred logging into vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    static public @Nullable InventoryCache getInstance(@Nonnull PrivateCloud provider) throws CloudException, InternalException {
+        if( !provider.isInventoryCacheEnabled() ) {
+            return null;
+        }
+        String key = provider.getSessionKey();
+
+        synchronized( caches ) {
+            InventoryCache cache = caches.get(key);
+
+            if( cache == null || cache.stopped ) {
+                cache = new InventoryCache(provider, key);
+                caches.put(key, cache);
+                cache.start();
+            }
+            return cache;
+        }
+    }
+
+    private final Map<String,ObjectProperties> objects = new ConcurrentHashMap<String, ObjectProperties>();
+
+    private SessionPool                pool;
+    private String                     endpoint;
+    private String                     key;
+    private SessionPool.Session        session;
+    private ServiceInstance            instance;
+    private PropertyCollector          collector;
+    private ContainerView              view;
+    private String                     version;
+    private volatile InventorySnapshot snapshot;
+    private volatile boolean           loaded;
+    private volatile boolean           stopped;
+    private volatile long              lastAccess;
+    private Thread                     updater;
+
+    private InventoryCache(@Nonnull PrivateCloud provider, @Nonnull String key) throws CloudException, InternalException {
+        this.pool = SessionPool.getInstance(provider);
+        this.endpoint = provider.getContext().getEndpoint();
+        this.key = key;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Provides the current state of the mirrored inventory. If the initial load is still in progress, this method
+     * waits a short while for it to complete.
+     * @return the current inventory or null if the mirror is not (or no longer) loaded
+     */
+    public @Nullable InventorySnapshot getSnapshot() {
+        lastAccess = System.currentTimeMillis();
+        if( !loaded ) {
+            long timeout = System.currentTimeMillis() + LOAD_TIMEOUT;
+
+            synchronized( this ) {
+                while( !loaded && !stopped && System.currentTimeMillis() < timeout ) {
+                    try { wait(CalendarWrapper.SECOND * 5L); }
+                    catch( InterruptedException e ) { break; }
+                }
+            }
+        }
+        InventorySnapshot current = snapshot;
+
+        return (loaded ? current : null);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    private void start() {
+        updater = new Thread() {
+            public void run() {
+                try {
+                    update();
+                }
+                finally {
+                    shutdown();
+                }
+            }
+        };
+        updater.setName("vSphere inventory cache " + endpoint);
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    private void update() {
+        while( !stopped ) {
+            if( System.currentTimeMillis() - lastAccess > IDLE_TIMEOUT ) {
+                log.info("Stopping idle inventory cache for " + endpoint);
+                return;
+            }
+            try {
+                if( collector == null ) {
+                    initialize();
+                }
+                WaitOptions options = new WaitOptions();
+
+                options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+                options.setMaxObjectUpdates(PropertyRetriever.PAGE_SIZE);
+
+                UpdateSet updates = collector.waitForUpdatesEx(version, options);
+
+                if( updates != null ) {
+                    apply(updates);
+                    version = updates.getVersion();
+                    if( updates.getTruncated() != null && updates.getTruncated() ) {
+                        continue;
+                    }
+                    snapshot = new InventorySnapshot(objects.values());
+                }
+                if( !loaded ) {
+                    if( snapshot == null ) {
+                        snapshot = new InventorySnapshot(objects.values());
+                    }
+                    log.info("Loaded " + objects.size() + " inventory objects for " + endpoint);
+                    synchronized( this ) {
+                        loaded = true;
+                        notifyAll();
+                    }
+                }
+            }
+            catch( InvalidCollectorVersion e ) {
+                log.warn("Inventory cache version " + version + " is no longer valid, reloading");
+                reset();
+            }
+            catch( Throwable t ) {
+                log.error("Inventory cache for " + endpoint + " failed: " + t.getMessage());
+                if( log.isDebugEnabled() ) {
+                    log.debug("Inventory cache error", t);
+                }
+                reset();
+                disconnect();
+                try { Thread.sleep(RETRY_DELAY); }
+                catch( InterruptedException e ) { return; }
+            }
+        }
+    }
+
+    private void initialize() throws Exception {
+        if( session == null ) {
+            session = pool.lease();
+            if( session == null ) {
+                throw new CloudException("Unable to log into " + endpoint);
+            }
+        }
+        instance = session.getServiceInstance();
+        PropertyRetriever retriever = new PropertyRetriever(instance);
+        PropertySpec[] specs = getTrackedSpecs();
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+
+        view = retriever.createView(instance.getRootFolder(), PropertyRetriever.typesOf(specs));
+        filter.setObjectSet(new ObjectSpec[] { PropertyRetriever.viewSpec(view) });
+        filter.setPropSet(specs);
+        collector = instance.getPropertyCollector().createPropertyCollector();
+        collector.createFilter(filter, false);
+        version = "";
+    }
+
+    private void apply(@Nonnull UpdateSet updates) {
+        PropertyFilterUpdate[] filters = updates.getFilterSet();
+
+        if( filters == null ) {
+            return;
+        }
+        for( PropertyFilterUpdate filter : filters ) {
+            ObjectUpdate[] updated = filter.getObjectSet();
+
+            if( updated == null ) {
+                continue;
+            }
+            for( ObjectUpdate update : updated ) {
+                String objectKey = ObjectProperties.getKey(update.getObj());
+
+                switch( update.getKind() ) {
+                    case leave:
+                        objects.remove(objectKey);
+                        break;
+                    case enter:
+                    case modify:
+                        ObjectProperties current = objects.get(objectKey);
+                        Map<String,Object> changes = new HashMap<String, Object>();
+                        PropertyChange[] changeSet = update.getChangeSet();
+
+                        if( current == null ) {
+                            current = new ObjectProperties(update.getObj());
+                        }
+                        if( changeSet != null ) {
+                            for( PropertyChange change : changeSet ) {
+                                if( change.getOp().equals(PropertyChangeOp.remove) || change.getOp().equals(PropertyChangeOp.indirectRemove) ) {
+                                    changes.put(change.getName(), null);
+                                }
+                                else {
+                                    changes.put(change.getName(), change.getVal());
+                                }
+                            }
+                        }
+                        objects.put(objectKey, new ObjectProperties(current, changes));
+                        break;
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        synchronized( this ) {
+            loaded = false;
+            notifyAll();
+        }
+        snapshot = null;
+        objects.clear();
+        if( collector != null ) {
+            try {
+                collector.destroyPropertyCollector();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+            collector = null;
+        }
+        if( view != null ) {
+            new PropertyRetriever(instance).destroyView(view);
+            view = null;
+        }
+        version = "";
+    }
+
+    private void disconnect() {
+        if( session != null ) {
+            session.release();
+            session = null;
+        }
+        instance = null;
+    }
+
+    private void shutdown() {
+        synchronized( caches ) {
+            stopped = true;
+            if( caches.get(key) == this ) {
+                caches.remove(key);
+            }
+        }
+        try {
+            reset();
+        }
+        catch( Throwable ignore ) {
+            // ignore
+        }
+        disconnect();
+    }
+
+    /**
+     * Stops the background updates and returns the session used by this cache to the pool.
+     */
+    public void stop() {
+        stopped = true;
+        if( updater != null ) {
+            updater.interrupt();
+        }
+    }
+
+    static public @Nonnull List<InventoryCache> list() {
+        synchronized( caches ) {
+            return new ArrayList<InventoryCache>(caches.values());
+        }
+    }
+}
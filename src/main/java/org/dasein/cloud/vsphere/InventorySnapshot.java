@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory view of part of the vSphere inventory, as retrieved in bulk by the {@link PropertyRetriever}. Besides
+ * the objects of primary interest (virtual machines, for example), a snapshot normally carries the names and parents
+ * of the resource pools, compute resources, hosts and folders so that references between objects can be resolved
+ * without going back to vSphere.
+ * <p>
+ * A snapshot does not change once built. Objects are indexed by type and by their name, instance UUID and BIOS UUID
+ * as it is built, so listing a type or finding an object by one of those properties does not scan the snapshot.
+ * </p>
+ */
+public class InventorySnapshot {
+    static public final String[] RESOURCE_POOL_TYPES    = new String[] { "ResourcePool", "VirtualApp" };
+    static public final String[] COMPUTE_RESOURCE_TYPES = new String[] { "ComputeResource", "ClusterComputeResource" };
+
+    static private final List<String> INDEXED_PATHS = Arrays.asList("name", "config.instanceUuid", "config.uuid");
+
+    /**
+     * @return the property specs for the objects a snapshot needs in order to resolve names, clusters, resource pool
+     * IDs and folders for the objects it describes
+     */
+    static public @Nonnull PropertySpec[] getLookupSpecs() {
+        return new PropertySpec[] {
+                PropertyRetriever.spec("ResourcePool", "name", "parent", "owner"),
+                PropertyRetriever.spec("ComputeResource", "name", "parent"),
+                PropertyRetriever.spec("HostSystem", "name", "parent"),
+                PropertyRetriever.spec("Folder", "name", "parent")
+        };
+    }
+
+    static public @Nonnull PropertySpec[] withLookupSpecs(@Nonnull PropertySpec ... specs) {
+        PropertySpec[] lookups = getLookupSpecs();
+        PropertySpec[] all = new PropertySpec[specs.length + lookups.length];
+
+        System.arraycopy(specs, 0, all, 0, specs.length);
+        System.arraycopy(lookups, 0, all, specs.length, lookups.length);
+        return all;
+    }
+
+    /**
+     * Provides the traversals that take a property collector query from explicitly named virtual machines to just the
+     * objects the lookup specs describe for them: the resource pools up to the compute resource that owns them, the
+     * hosts of that compute resource, and the folders above the virtual machines. A query for a few virtual machines
+     * thus stays small regardless of the size of the inventory.
+     * @return the traversals to set as the select set of the object spec of each virtual machine
+     */
+    static public @Nonnull SelectionSpec[] getVirtualMachineTraversals() {
+        return new SelectionSpec[] {
+                traversal("vmToPool", "VirtualMachine", "resourcePool", "poolToParent", "poolToOwner"),
+                traversal("vmToFolder", "VirtualMachine", "parent", "folderToParent"),
+                traversal("poolToParent", "ResourcePool", "parent", "poolToParent"),
+                traversal("poolToOwner", "ResourcePool", "owner", "ownerToHost"),
+                traversal("ownerToHost", "ComputeResource", "host"),
+                traversal("folderToParent", "Folder", "parent", "folderToParent")
+        };
+    }
+
+    static private @Nonnull TraversalSpec traversal(@Nonnull String name, @Nonnull String type, @Nonnull String path, @Nonnull String ... next) {
+        TraversalSpec traversal = new TraversalSpec();
+        SelectionSpec[] selections = new SelectionSpec[next.length];
+
+        for( int i = 0; i < next.length; i++ ) {
+            selections[i] = new SelectionSpec();
+            selections[i].setName(next[i]);
+        }
+        traversal.setName(name);
+        traversal.setType(type);
+        traversal.setPath(path);
+        traversal.setSkip(Boolean.FALSE);
+        traversal.setSelectSet(selections);
+        return traversal;
+    }
+
+    private final Map<String,ObjectProperties>       objects = new HashMap<String, ObjectProperties>();
+    private final Map<String,List<ObjectProperties>> byType  = new HashMap<String, List<ObjectProperties>>();
+    private final Map<String,ObjectProperties>       byValue = new HashMap<String, ObjectProperties>();
+
+    public InventorySnapshot(@Nonnull Iterable<ObjectProperties> contents) {
+        for( ObjectProperties p : contents ) {
+            objects.put(p.getKey(), p);
+        }
+        for( ObjectProperties p : objects.values() ) {
+            List<ObjectProperties> list = byType.get(p.getType());
+
+            if( list == null ) {
+                list = new ArrayList<ObjectProperties>();
+                byType.put(p.getType(), list);
+            }
+            list.add(p);
+            for( String path : INDEXED_PATHS ) {
+                String value = p.getString(path);
+
+                if( value != null ) {
+                    String key = getIndexKey(p.getType(), path, value);
+
+                    if( !byValue.containsKey(key) ) {
+                        byValue.put(key, p);
+                    }
+                }
+            }
+        }
+    }
+
+    static private @Nonnull String getIndexKey(@Nonnull String type, @Nonnull String path, @Nonnull String value) {
+        return type + "#" + path + "#" + value;
+    }
+
+    public @Nullable ObjectProperties get(@Nullable ManagedObjectReference mor) {
+        if( mor == null ) {
+            return null;
+        }
+        return objects.get(ObjectProperties.getKey(mor));
+    }
+
+    /**
+     * Finds the first object of the specified type whose property at the specified path has the specified value.
+     * @param type the managed object type
+     * @param path the property path to match
+     * @param value the value to match
+     * @return the matching object or null if there is none
+     */
+    public @Nullable ObjectProperties find(@Nonnull String type, @Nonnull String path, @Nonnull String value) {
+        if( INDEXED_PATHS.contains(path) ) {
+            return byValue.get(getIndexKey(type, path, value));
+        }
+        for( ObjectProperties p : list(type) ) {
+            if( p.getType().equals(type) && value.equals(p.getString(path)) ) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Identifies the name of the compute resource (the dasein data center) that owns the specified resource pool.
+     * @param pool the resource pool
+     * @return the name of the owning cluster or standalone compute resource
+     */
+    public @Nullable String getClusterName(@Nullable ManagedObjectReference pool) {
+        ObjectProperties rp = get(pool);
+
+        if( rp == null ) {
+            return null;
+        }
+        return getName(rp.getReference("owner"));
+    }
+
+    /**
+     * Finds the name of the first folder in the parent chain starting with the specified object.
+     * @param parent the parent of some inventory object
+     * @return the name of the closest folder or null if there is none
+     */
+    public @Nullable String getFolderName(@Nullable ManagedObjectReference parent) {
+        while( parent != null ) {
+            ObjectProperties p = get(parent);
+
+            if( p == null ) {
+                return null;
+            }
+            if( p.getType().equals("Folder") ) {
+                return p.getString("name");
+            }
+            parent = p.getReference("parent");
+        }
+        return null;
+    }
+
+    /**
+     * Identifies the datacenter containing the specified object by walking its parent chain.
+     * @param mor the inventory object
+     * @return the containing datacenter or null if it is not known
+     */
+    public @Nullable ObjectProperties getDatacenter(@Nullable ManagedObjectReference mor) {
+        ObjectProperties p = get(mor);
+
+        while( p != null ) {
+            if( p.getType().equals("Datacenter") ) {
+                return p;
+            }
+            p = get(p.getReference("parent"));
+        }
+        return null;
+    }
+
+    public @Nullable String getName(@Nullable ManagedObjectReference mor) {
+        ObjectProperties p = get(mor);
+
+        return (p == null ? null : p.getString("name"));
+    }
+
+    /**
+     * Constructs the dasein resource pool ID for a vSphere resource pool, which is the dotted path of pool names
+     * from (but excluding) the root resource pool of the owning compute resource.
+     * @param pool the resource pool
+     * @return the resource pool ID or null if the pool is the root pool or is unknown
+     */
+    public @Nullable String getResourcePoolId(@Nullable ManagedObjectReference pool) {
+        ObjectProperties rp = get(pool);
+
+        if( rp == null ) {
+            return null;
+        }
+        String id = rp.getString("name");
+        ObjectProperties parent = get(rp.getReference("parent"));
+
+        while( parent != null ) {
+            if( isResourcePool(parent) ) {
+                id = parent.getString("name") + "." + id;
+                parent = get(parent.getReference("parent"));
+            }
+            else {
+                break;
+            }
+        }
+        // remove the top root resource pool
+        int rPIdx = id.indexOf(".") + 1;
+
+        if( rPIdx > 0 ) {
+            return id.substring(rPIdx);
+        }
+        return null;
+    }
+
+    public boolean isResourcePool(@Nonnull ObjectProperties p) {
+        return Arrays.asList(RESOURCE_POOL_TYPES).contains(p.getType());
+    }
+
+    public @Nonnull List<ObjectProperties> list(@Nonnull String ... types) {
+        List<ObjectProperties> list = new ArrayList<ObjectProperties>();
+
+        for( String type : types ) {
+            List<ObjectProperties> matches = byType.get(type);
+
+            if( matches != null ) {
+                list.addAll(matches);
+            }
+        }
+        return list;
+    }
+
+    public @Nonnull Collection<ObjectProperties> listAll() {
+        return Collections.unmodifiableCollection(objects.values());
+    }
+
+    public int size() {
+        return objects.size();
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The property values retrieved for a single managed object by the property collector. Values are keyed by the
+ * property path that was requested (e.g. &quot;config.instanceUuid&quot;) and are held in memory so that callers
+ * can read them without any further round trips to vSphere. Instances are never modified once published.
+ */
+public class ObjectProperties {
+    static public @Nonnull String getKey(@Nonnull ManagedObjectReference mor) {
+        return mor.getType() + ":" + mor.getVal();
+    }
+
+    static public @Nonnull ObjectProperties getInstance(@Nonnull ObjectContent content) {
+        ObjectProperties props = new ObjectProperties(content.getObj());
+        DynamicProperty[] set = content.getPropSet();
+
+        if( set != null ) {
+            for( DynamicProperty p : set ) {
+                if( p.getVal() != null ) {
+                    props.properties.put(p.getName(), p.getVal());
+                }
+            }
+        }
+        return props;
+    }
+
+    private ManagedObjectReference mor;
+    private Map<String,Object>     properties;
+
+    public ObjectProperties(@Nonnull ManagedObjectReference mor) {
+        this.mor = mor;
+        this.properties = new HashMap<String, Object>();
+    }
+
+    /**
+     * Creates a copy of the specified object with the specified property values replaced. A null value removes the
+     * property from the copy.
+     * @param source the object to copy
+     * @param changes the property values to change in the copy
+     */
+    public ObjectProperties(@Nonnull ObjectProperties source, @Nonnull Map<String,Object> changes) {
+        this.mor = source.mor;
+        this.properties = new HashMap<String, Object>(source.properties);
+        for( Map.Entry<String,Object> entry : changes.entrySet() ) {
+            if( entry.getValue() == null ) {
+                properties.remove(entry.getKey());
+            }
+            else {
+                properties.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public @Nullable Object get(@Nonnull String path) {
+        return properties.get(path);
+    }
+
+    public boolean getBoolean(@Nonnull String path) {
+        Object value = properties.get(path);
+
+        return (value != null && ((Boolean)value));
+    }
+
+    public @Nullable Calendar getCalendar(@Nonnull String path) {
+        return (Calendar)properties.get(path);
+    }
+
+    public @Nonnull String getId() {
+        return mor.getVal();
+    }
+
+    public @Nullable Integer getInteger(@Nonnull String path) {
+        Object value = properties.get(path);
+
+        if( value == null ) {
+            return null;
+        }
+        return ((Number)value).intValue();
+    }
+
+    public @Nonnull String getKey() {
+        return getKey(mor);
+    }
+
+    public @Nullable Long getLong(@Nonnull String path) {
+        Object value = properties.get(path);
+
+        if( value == null ) {
+            return null;
+        }
+        return ((Number)value).longValue();
+    }
+
+    public @Nonnull ManagedObjectReference getMOR() {
+        return mor;
+    }
+
+    public @Nonnull Map<String,Object> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    public @Nullable ManagedObjectReference getReference(@Nonnull String path) {
+        return (ManagedObjectReference)properties.get(path);
+    }
+
+    public @Nonnull ManagedObjectReference[] getReferences(@Nonnull String path) {
+        Object value = properties.get(path);
+
+        if( value instanceof ArrayOfManagedObjectReference ) {
+            ManagedObjectReference[] refs = ((ArrayOfManagedObjectReference)value).getManagedObjectReference();
+
+            if( refs != null ) {
+                return refs;
+            }
+        }
+        else if( value instanceof ManagedObjectReference[] ) {
+            return (ManagedObjectReference[])value;
+        }
+        return new ManagedObjectReference[0];
+    }
+
+    public @Nullable String getString(@Nonnull String path) {
+        Object value = properties.get(path);
+
+        return (value == null ? null : value.toString());
+    }
+
+    public @Nonnull String getType() {
+        return mor.getType();
+    }
+
+    public boolean isSet(@Nonnull String path) {
+        return properties.containsKey(path);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return getKey() + properties.keySet();
+    }
+}
@@ -19,9 +19,8 @@
 package org.dasein.cloud.vsphere;
 
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Properties;
 
@@ -36,9 +35,9 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
 import org.dasein.cloud.vsphere.compute.VMwareComputeServices;
+import org.dasein.cloud.vsphere.compute.VmTerminator;
 import org.dasein.cloud.vsphere.network.VMwareNetworkServices;
 
-import com.vmware.vim25.InvalidLogin;
 import com.vmware.vim25.mo.ServiceInstance;
 import org.dasein.util.CalendarWrapper;
 
@@ -46,7 +45,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 public class PrivateCloud extends AbstractCloud {
-    private ServiceInstance instance = null;
+    private SessionPool.Session session = null;
 
     static private @Nonnull String getLastItem(@Nonnull String name) {
         int idx = name.lastIndexOf('.');
@@ -128,18 +127,30 @@ public class PrivateCloud extends AbstractCloud {
 
     private void cleanUp() {
         super.close();
-        try {
-            getServiceInstance().getServerConnection().logout();
-        }
-        catch( CloudException ignore ) {
-            // ignore
-        }
-        catch( InternalException ignore ) {
-            // ignore
+        synchronized( this ) {
+            if( terminator != null ) {
+                terminator.shutdown();
+                terminator = null;
+            }
+            if( session != null ) {
+                session.release();
+                session = null;
+            }
         }
-        catch( NullPointerException ignore ) {
-            // ignore
+    }
+
+    private VmTerminator terminator = null;
+
+    /**
+     * Provides the queue through which this cloud terminates virtual machines in the background. Pending terminations
+     * hold the cloud open, so {@link #close()} drains the queue before shutting it down.
+     * @return the terminator for this cloud
+     */
+    public synchronized @Nonnull VmTerminator getTerminator() {
+        if( terminator == null ) {
+            terminator = new VmTerminator(this);
         }
+        return terminator;
     }
 
     @Override
@@ -186,47 +197,94 @@ public class PrivateCloud extends AbstractCloud {
         return new Dc(this);
     }
 
+    /**
+     * Provides an authenticated session for this cloud. The session is leased from the {@link SessionPool} shared
+     * by all contexts with the same endpoint and credentials and is returned to the pool when this cloud is closed.
+     * @return the service instance for the session or null if the credentials were rejected
+     * @throws CloudException an error occurred talking to vSphere
+     * @throws InternalException the context for this cloud is invalid
+     */
     public @Nullable ServiceInstance getServiceInstance() throws CloudException, InternalException {
-        if (instance == null) {
-            ProviderContext ctx = getContext();
-        
-            if( ctx == null ) {
-                throw new CloudException("No context exists for this request");
-            }
-            try {
-                String endpoint = ctx.getEndpoint();
-
-                String accessPublic = null;
-                String accessPrivate = null;
-                try {
-                    List<ContextRequirements.Field> fields = getContextRequirements().getConfigurableValues();
-                    for(ContextRequirements.Field f : fields ) {
-                        if(f.type.equals(ContextRequirements.FieldType.KEYPAIR)){
-                            byte[][] keyPair = (byte[][])getContext().getConfigurationValue(f);
-                            accessPublic = new String(keyPair[0], "utf-8");
-                            accessPrivate = new String(keyPair[1], "utf-8");
-                        }
-                    }
-                }
-                catch( UnsupportedEncodingException e ) {
-                    e.printStackTrace();
-                    throw new RuntimeException("This cannot happen: " + e.getMessage());
+        SessionPool.Session current;
+
+        synchronized( this ) {
+            if( session == null ) {
+                session = SessionPool.getInstance(this).lease();
+                if( session == null ) {
+                    return null;
                 }
-                instance = new ServiceInstance(new URL(endpoint), accessPublic, accessPrivate, isInsecure());
-            }
-            catch( InvalidLogin e ) {
-                return null;
             }
-            catch( RemoteException e ) {
-                e.printStackTrace();
-                throw new CloudException("Error creating service instance: " + e.getMessage());
+            current = session;
+        }
+        return current.getServiceInstance();
+    }
+
+    @Nonnull String[] getAccessKeys() {
+        String accessPublic = null;
+        String accessPrivate = null;
+        try {
+            List<ContextRequirements.Field> fields = getContextRequirements().getConfigurableValues();
+            for(ContextRequirements.Field f : fields ) {
+                if(f.type.equals(ContextRequirements.FieldType.KEYPAIR)){
+                    byte[][] keyPair = (byte[][])getContext().getConfigurationValue(f);
+                    accessPublic = new String(keyPair[0], "utf-8");
+                    accessPrivate = new String(keyPair[1], "utf-8");
+                }
             }
-            catch( MalformedURLException e ) {
-                e.printStackTrace();
-                throw new InternalException("Failed to generate endpoint URL for " + ctx.getEndpoint() + ": " + e.getMessage());
+        }
+        catch( UnsupportedEncodingException e ) {
+            e.printStackTrace();
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
+        }
+        return new String[] { accessPublic, accessPrivate };
+    }
+
+    /**
+     * Identifies the vSphere session this context logs into. Contexts with the same endpoint and credentials share
+     * the same key so that long-lived resources such as the inventory cache can be shared between them.
+     * @return a key identifying the endpoint and credentials of the current context
+     * @throws CloudException no context exists for this request
+     */
+    public @Nonnull String getSessionKey() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        String[] keys = getAccessKeys();
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((keys[0] + ":" + keys[1]).getBytes("utf-8"));
+            StringBuilder str = new StringBuilder();
+
+            for( byte b : hash ) {
+                str.append(String.format("%02x", b));
             }
+            return ctx.getEndpoint() + "#" + str.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
         }
-        return instance;
+    }
+
+    /**
+     * Provides an in-memory view of the inventory maintained by the {@link InventoryCache} when the cache is enabled
+     * for this context (see {@link #isInventoryCacheEnabled()}).
+     * @return the current inventory or null if the cache is disabled or has not yet completed its initial load
+     * @throws CloudException an error occurred talking to vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    public @Nullable InventorySnapshot getInventorySnapshot() throws CloudException, InternalException {
+        InventoryCache cache = InventoryCache.getInstance(this);
+
+        if( cache == null ) {
+            return null;
+        }
+        return cache.getSnapshot();
     }
 
     public @Nullable Folder getVmFolder(ServiceInstance instance) throws InternalException, CloudException {
@@ -234,12 +292,12 @@ public class PrivateCloud extends AbstractCloud {
     }
 
     /**
-     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;insecure&quot; and, if set to
-     * &quot;true&quot;, returns true. This indicates that SSL validation should not take place, thus leaving the
-     * connection open to man-in-the-middle attacks, even if the connection is encrypted.
-     * @return true if SSL certificate validation should be ignored
+     * Looks up the specified custom property ({@link ProviderContext#getCustomProperties()}), falling back to the
+     * system property of the same name.
+     * @param name the name of the property
+     * @return the value of the property or null if it is not set
      */
-    public boolean isInsecure() {
+    public @Nullable String getCustomProperty(@Nonnull String name) {
         ProviderContext ctx = getContext();
         String value;
 
@@ -253,12 +311,60 @@ public class PrivateCloud extends AbstractCloud {
                 value = null;
             }
             else {
-                value = p.getProperty("insecure");
+                value = p.getProperty(name);
             }
         }
         if( value == null ) {
-            value = System.getProperty("insecure");
+            value = System.getProperty(name);
         }
+        return value;
+    }
+
+    /**
+     * Looks up the specified custom property as a positive integer (see {@link #getCustomProperty(String)}).
+     * @param name the name of the property
+     * @param defaultValue the value to use if the property is not set or is not a positive integer
+     * @return the value of the property
+     */
+    public int getIntProperty(@Nonnull String name, int defaultValue) {
+        String value = getCustomProperty(name);
+
+        if( value != null ) {
+            try {
+                int i = Integer.parseInt(value.trim());
+
+                if( i > 0 ) {
+                    return i;
+                }
+            }
+            catch( NumberFormatException e ) {
+                getLogger(PrivateCloud.class, "std").warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;insecure&quot; and, if set to
+     * &quot;true&quot;, returns true. This indicates that SSL validation should not take place, thus leaving the
+     * connection open to man-in-the-middle attacks, even if the connection is encrypted.
+     * @return true if SSL certificate validation should be ignored
+     */
+    public boolean isInsecure() {
+        String value = getCustomProperty("insecure");
+
+        return (value != null && value.equalsIgnoreCase("true"));
+    }
+
+    /**
+     * Looks up the custom property &quot;inventoryCache&quot; and, if set to &quot;true&quot;, returns true. This
+     * indicates that list and get calls should be answered from a live in-memory mirror of the vSphere inventory
+     * instead of querying vSphere on every call.
+     * @return true if the inventory cache should be used
+     */
+    public boolean isInventoryCacheEnabled() {
+        String value = getCustomProperty("inventoryCache");
+
         return (value != null && value.equalsIgnoreCase("true"));
     }
 
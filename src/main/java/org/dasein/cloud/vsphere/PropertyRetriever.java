@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk property retrieval through the vSphere property collector. Rather than calling getters on each managed object
+ * (one SOAP round trip per getter), callers describe the property paths they need per managed object type and get
+ * back the values for every matching object using paged <code>RetrievePropertiesEx</code> calls.
+ */
+public class PropertyRetriever {
+    static private final Logger log = PrivateCloud.getLogger(PropertyRetriever.class, "std");
+
+    static public final int PAGE_SIZE = 1000;
+
+    static public @Nonnull PropertySpec spec(@Nonnull String type, @Nonnull String ... paths) {
+        PropertySpec spec = new PropertySpec();
+
+        spec.setType(type);
+        spec.setAll(Boolean.FALSE);
+        spec.setPathSet(paths);
+        return spec;
+    }
+
+    static public @Nonnull ObjectSpec viewSpec(@Nonnull ManagedObjectView view) {
+        TraversalSpec traversal = new TraversalSpec();
+
+        traversal.setName("traverseView");
+        traversal.setType(view.getMOR().getType());
+        traversal.setPath("view");
+        traversal.setSkip(Boolean.FALSE);
+
+        ObjectSpec spec = new ObjectSpec();
+
+        spec.setObj(view.getMOR());
+        spec.setSkip(Boolean.TRUE);
+        spec.setSelectSet(new SelectionSpec[] { traversal });
+        return spec;
+    }
+
+    static public @Nonnull ObjectSpec objectSpec(@Nonnull ManagedObjectReference mor) {
+        ObjectSpec spec = new ObjectSpec();
+
+        spec.setObj(mor);
+        spec.setSkip(Boolean.FALSE);
+        return spec;
+    }
+
+    static public @Nonnull String[] typesOf(@Nonnull PropertySpec ... specs) {
+        Set<String> types = new HashSet<String>();
+
+        for( PropertySpec spec : specs ) {
+            types.add(spec.getType());
+        }
+        return types.toArray(new String[types.size()]);
+    }
+
+    private ServiceInstance instance;
+
+    public PropertyRetriever(@Nonnull ServiceInstance instance) {
+        this.instance = instance;
+    }
+
+    public @Nonnull ContainerView createView(@Nonnull ManagedEntity container, @Nonnull String ... types) throws CloudException {
+        try {
+            try {
+                return instance.getViewManager().createContainerView(container, types, true);
+            }
+            catch( NotAuthenticated e ) {
+                if( !renew() ) {
+                    throw e;
+                }
+                return instance.getViewManager().createContainerView(container, types, true);
+            }
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+    }
+
+    public void destroyView(@Nullable ContainerView view) {
+        if( view != null ) {
+            try {
+                view.destroyView();
+            }
+            catch( Throwable t ) {
+                log.warn("Unable to destroy container view " + view.getMOR().getVal() + ": " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the requested properties for all objects of the types in the specified property specs that exist
+     * anywhere beneath the specified container.
+     * @param container the inventory container to search
+     * @param specs the properties to retrieve for each type of managed object
+     * @return the properties of all matching objects
+     * @throws CloudException an error occurred retrieving the properties
+     */
+    public @Nonnull List<ObjectProperties> retrieve(@Nonnull ManagedEntity container, @Nonnull PropertySpec ... specs) throws CloudException {
+        return retrieve(container, null, specs);
+    }
+
+    /**
+     * Retrieves the requested properties for the explicitly named objects plus all objects of the types in the
+     * specified property specs beneath the container (if any) in a single paged query.
+     * @param container the inventory container to search or null to look only at the named objects
+     * @param objects the objects to retrieve directly regardless of the container or null for none
+     * @param specs the properties to retrieve for each type of managed object
+     * @return the properties of all matching objects
+     * @throws CloudException an error occurred retrieving the properties
+     */
+    public @Nonnull List<ObjectProperties> retrieve(@Nullable ManagedEntity container, @Nullable ManagedObjectReference[] objects, @Nonnull PropertySpec ... specs) throws CloudException {
+        return retrieve(container, typesOf(specs), objects, specs);
+    }
+
+    /**
+     * Retrieves the requested properties for the explicitly named objects plus all objects of the specified view types
+     * beneath the container (if any) in a single paged query.
+     * @param container the inventory container to search or null to look only at the named objects
+     * @param viewTypes the types of objects to pick up from the container
+     * @param objects the objects to retrieve directly regardless of the container or null for none
+     * @param specs the properties to retrieve for each type of managed object
+     * @return the properties of all matching objects
+     * @throws CloudException an error occurred retrieving the properties
+     */
+    public @Nonnull List<ObjectProperties> retrieve(@Nullable ManagedEntity container, @Nonnull String[] viewTypes, @Nullable ManagedObjectReference[] objects, @Nonnull PropertySpec ... specs) throws CloudException {
+        try {
+            try {
+                return query(container, viewTypes, objects, specs);
+            }
+            catch( NotAuthenticated e ) {
+                // the container view belongs to the expired session, so the whole query is repeated
+                if( !renew() ) {
+                    throw e;
+                }
+                return query(container, viewTypes, objects, specs);
+            }
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException("Invalid property requested from cluster: " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+    }
+
+    private @Nonnull List<ObjectProperties> query(@Nullable ManagedEntity container, @Nonnull String[] viewTypes, @Nullable ManagedObjectReference[] objects, @Nonnull PropertySpec ... specs) throws RemoteException {
+        ContainerView view = null;
+
+        try {
+            List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
+
+            if( container != null ) {
+                view = instance.getViewManager().createContainerView(container, viewTypes, true);
+                objectSpecs.add(viewSpec(view));
+            }
+            if( objects != null ) {
+                for( ManagedObjectReference mor : objects ) {
+                    objectSpecs.add(objectSpec(mor));
+                }
+            }
+            if( objectSpecs.isEmpty() ) {
+                return new ArrayList<ObjectProperties>();
+            }
+            PropertyFilterSpec filter = new PropertyFilterSpec();
+
+            filter.setObjectSet(objectSpecs.toArray(new ObjectSpec[objectSpecs.size()]));
+            filter.setPropSet(specs);
+            return collect(filter);
+        }
+        finally {
+            destroyView(view);
+        }
+    }
+
+    /**
+     * Retrieves the specified property paths for a single managed object.
+     * @param mor the managed object
+     * @param paths the property paths to retrieve
+     * @return the properties of the object or null if it no longer exists
+     * @throws CloudException an error occurred retrieving the properties
+     */
+    public @Nullable ObjectProperties retrieve(@Nonnull ManagedObjectReference mor, @Nonnull String ... paths) throws CloudException {
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+
+        filter.setObjectSet(new ObjectSpec[] { objectSpec(mor) });
+        filter.setPropSet(new PropertySpec[] { spec(mor.getType(), paths) });
+        try {
+            List<ObjectProperties> list = retrieveContents(filter);
+
+            return (list.isEmpty() ? null : list.get(0));
+        }
+        catch( ManagedObjectNotFound e ) {
+            return null;
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException("Invalid property requested from cluster: " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+    }
+
+    public @Nonnull List<ObjectProperties> retrieve(@Nonnull PropertyFilterSpec filter) throws CloudException {
+        try {
+            return retrieveContents(filter);
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException("Invalid property requested from cluster: " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+    }
+
+    private @Nonnull List<ObjectProperties> retrieveContents(@Nonnull PropertyFilterSpec filter) throws CloudException, RemoteException {
+        try {
+            return collect(filter);
+        }
+        catch( NotAuthenticated e ) {
+            if( !renew() ) {
+                throw e;
+            }
+            return collect(filter);
+        }
+    }
+
+    /**
+     * Logs in again for the pooled session behind this retriever after vSphere rejected a call as not authenticated,
+     * so that the call can be retried once with the new service instance.
+     * @return true if there is a new service instance to retry with
+     * @throws CloudException the session could not be re-established
+     */
+    private boolean renew() throws CloudException {
+        ServiceInstance failed = instance;
+        ServiceInstance fresh = SessionPool.renew(failed);
+
+        if( fresh == null ) {
+            return false;
+        }
+        log.info("Session was no longer authenticated, retrying with a new login");
+        instance = fresh;
+        return true;
+    }
+
+    private @Nonnull List<ObjectProperties> collect(@Nonnull PropertyFilterSpec filter) throws RemoteException {
+        ArrayList<ObjectProperties> list = new ArrayList<ObjectProperties>();
+        PropertyCollector collector = instance.getPropertyCollector();
+        RetrieveOptions options = new RetrieveOptions();
+
+        options.setMaxObjects(PAGE_SIZE);
+        RetrieveResult result = collector.retrievePropertiesEx(new PropertyFilterSpec[] { filter }, options);
+
+        while( result != null ) {
+            ObjectContent[] contents = result.getObjects();
+
+            if( contents != null ) {
+                for( ObjectContent content : contents ) {
+                    list.add(ObjectProperties.getInstance(content));
+                }
+            }
+            String token = result.getToken();
+
+            if( token == null ) {
+                break;
+            }
+            result = collector.continueRetrievePropertiesEx(token);
+        }
+        return list;
+    }
+}
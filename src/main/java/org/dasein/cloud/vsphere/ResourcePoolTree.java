@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resource pools of an account with their dasein IDs worked out in advance. The name, parent, owner
+ * and status of every resource pool are fetched together with the compute resources, folders and datacenters above
+ * them in a single property collector query, so listing the pools of a cluster or resolving a pool ID costs no round
+ * trips per pool or per ancestor. Pools are indexed by region and ID as well as by reference. The tree is reloaded
+ * after fifteen minutes, when an ID or reference is not found and the tree is more than 30 seconds old, and after
+ * {@link #invalidate()}; the tree object itself comes from the Dasein cache, which lets it go after an hour.
+ */
+class ResourcePoolTree {
+    static private final Logger log = PrivateCloud.getLogger(ResourcePoolTree.class, "std");
+
+    static private final long TREE_TIMEOUT = CalendarWrapper.MINUTE * 15L;
+    static private final long MISS_DELAY   = CalendarWrapper.SECOND * 30L;
+
+    static @Nonnull ResourcePoolTree getInstance(@Nonnull PrivateCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<ResourcePoolTree> cache = Cache.getInstance(provider, "resourcePoolTree", ResourcePoolTree.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+        synchronized( ResourcePoolTree.class ) {
+            Collection<ResourcePoolTree> list = ( Collection<ResourcePoolTree> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = Collections.singletonList(new ResourcePoolTree());
+                cache.put(ctx, list);
+            }
+            return list.iterator().next();
+        }
+    }
+
+    /**
+     * A resource pool as of the query that found it.
+     */
+    static class Node {
+        private ManagedObjectReference pool;
+        private String                 name;
+        private String                 id;
+        private String                 clusterName;
+        private String                 regionId;
+        private ManagedEntityStatus    status;
+        private boolean                root;
+
+        @Nonnull ManagedObjectReference getPool() {
+            return pool;
+        }
+
+        @Nullable String getName() {
+            return name;
+        }
+
+        /**
+         * @return the dotted path of pool names below the root pool of the owning compute resource or null for a root pool
+         */
+        @Nullable String getId() {
+            return id;
+        }
+
+        /**
+         * @return the name of the owning compute resource (the dasein data center)
+         */
+        @Nullable String getClusterName() {
+            return clusterName;
+        }
+
+        /**
+         * @return the name of the containing datacenter (the dasein region)
+         */
+        @Nullable String getRegionId() {
+            return regionId;
+        }
+
+        @Nullable ManagedEntityStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if this is the root resource pool of a compute resource
+         */
+        boolean isRoot() {
+            return root;
+        }
+    }
+
+    private List<Node>       nodes = Collections.emptyList();
+    private Map<String,Node> byKey = new HashMap<String, Node>();
+    private Map<String,Node> byId  = new HashMap<String, Node>();
+    private long             loaded;
+
+    private ResourcePoolTree() { }
+
+    /**
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @return every resource pool, including the root pools of compute resources
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nonnull List<Node> list(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        if( System.currentTimeMillis() - loaded > TREE_TIMEOUT ) {
+            load(provider, instance);
+        }
+        return nodes;
+    }
+
+    /**
+     * Finds a resource pool by dasein ID within a region.
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @param regionId the datacenter to search
+     * @param poolId the dotted resource pool ID
+     * @return the first matching pool or null if the region has no such pool
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nullable Node find(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull String regionId, @Nonnull String poolId) throws CloudException {
+        long now = System.currentTimeMillis();
+
+        if( now - loaded > TREE_TIMEOUT ) {
+            load(provider, instance);
+        }
+        Node node = byId.get(getIdKey(regionId, poolId));
+
+        if( node == null && now - loaded > MISS_DELAY ) {
+            load(provider, instance);
+            node = byId.get(getIdKey(regionId, poolId));
+        }
+        return node;
+    }
+
+    /**
+     * Finds a resource pool by reference, loading the tree under the same rules as
+     * {@link #find(PrivateCloud, ServiceInstance, String, String)}.
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @param pool a resource pool
+     * @return the pool or null if vSphere does not know it
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nullable Node get(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference pool) throws CloudException {
+        long now = System.currentTimeMillis();
+
+        if( now - loaded > TREE_TIMEOUT ) {
+            load(provider, instance);
+        }
+        Node node = byKey.get(ObjectProperties.getKey(pool));
+
+        if( node == null && now - loaded > MISS_DELAY ) {
+            load(provider, instance);
+            node = byKey.get(ObjectProperties.getKey(pool));
+        }
+        return node;
+    }
+
+    static private @Nonnull String getIdKey(@Nonnull String regionId, @Nonnull String poolId) {
+        return regionId + "#" + poolId;
+    }
+
+    /**
+     * Forces the next request to reload the tree.
+     */
+    synchronized void invalidate() {
+        loaded = 0L;
+    }
+
+    private void load(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        APITrace.begin(provider, "ResourcePoolTree.load");
+        try {
+            InventorySnapshot inventory = new InventorySnapshot(new PropertyRetriever(instance).retrieve(instance.getRootFolder(),
+                    PropertyRetriever.spec("ResourcePool", "name", "parent", "owner", "runtime.overallStatus"),
+                    PropertyRetriever.spec("ComputeResource", "name", "parent"),
+                    PropertyRetriever.spec("Folder", "name", "parent"),
+                    PropertyRetriever.spec("Datacenter", "name", "parent")));
+            ArrayList<Node> list = new ArrayList<Node>();
+            HashMap<String,Node> map = new HashMap<String, Node>();
+            HashMap<String,Node> ids = new HashMap<String, Node>();
+
+            for( ObjectProperties rp : inventory.list(InventorySnapshot.RESOURCE_POOL_TYPES) ) {
+                Node node = new Node();
+                ObjectProperties parent = inventory.get(rp.getReference("parent"));
+                ObjectProperties vdc = inventory.getDatacenter(rp.getMOR());
+
+                node.pool = rp.getMOR();
+                node.name = rp.getString("name");
+                node.id = inventory.getResourcePoolId(rp.getMOR());
+                node.clusterName = inventory.getClusterName(rp.getMOR());
+                node.regionId = (vdc == null ? null : vdc.getString("name"));
+                node.status = (ManagedEntityStatus)rp.get("runtime.overallStatus");
+                node.root = (parent == null || !inventory.isResourcePool(parent));
+                list.add(node);
+                map.put(rp.getKey(), node);
+                if( node.id != null && node.regionId != null ) {
+                    String key = getIdKey(node.regionId, node.id);
+
+                    // the first pool found keeps the ID, as it did when the list was searched in order
+                    if( !ids.containsKey(key) ) {
+                        ids.put(key, node);
+                    }
+                }
+            }
+            nodes = Collections.unmodifiableList(list);
+            byKey = map;
+            byId = ids;
+            loaded = System.currentTimeMillis();
+            if( log.isDebugEnabled() ) {
+                log.debug("Loaded " + list.size() + " resource pools");
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+}
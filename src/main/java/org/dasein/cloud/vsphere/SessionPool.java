@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.InvalidLogin;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A pool of authenticated vSphere sessions shared by all {@link PrivateCloud} instances with the same endpoint and
+ * credentials. The pool holds up to &quot;sessionPoolSize&quot; sessions (default 4), leasing the least busy session
+ * to each caller and logging in again only when every session is in use and the pool is not yet full. A background
+ * thread keeps the sessions alive with <code>currentTime()</code> every &quot;sessionKeepAliveSeconds&quot; seconds
+ * (default 300) and transparently logs in again when vSphere reports a session as no longer authenticated; callers
+ * that hit an expired session between pings log in again through {@link #renew(ServiceInstance)} and retry, which
+ * {@link #retry(ManagedObject, Call)} does for single calls such as starting a task. A new
+ * login replaces the service instance of the session, and the old one is only logged out by the idle reaper since
+ * other leaseholders may still be using it. Sessions that nobody has leased for 30 minutes are logged out.
+ */
+public class SessionPool {
+    static private final Logger log = PrivateCloud.getLogger(SessionPool.class, "std");
+
+    static private final int  DEFAULT_POOL_SIZE  = 4;
+    static private final int  DEFAULT_KEEP_ALIVE = 300;
+    static private final long IDLE_TIMEOUT       = CalendarWrapper.MINUTE * 30L;
+
+    static private final HashMap<String,SessionPool> pools = new HashMap<String, SessionPool>();
+
+    /**
+     * Provides the session pool for the endpoint and credentials of the specified cloud.
+     * @param provider the cloud provider
+     * @return the shared session pool
+     * @throws CloudException no context exists for this request
+     * @throws InternalException the endpoint for the context is invalid
+     */
+    static public @Nonnull SessionPool getInstance(@Nonnull PrivateCloud provider) throws CloudException, InternalException {
+        String key = provider.getSessionKey();
+
+        synchronized( pools ) {
+            SessionPool pool = pools.get(key);
+
+            if( pool == null ) {
+                pool = new SessionPool(provider, key);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Logs in again for the pooled session a service instance belongs to after a call through it was rejected with
+     * <code>NotAuthenticated</code>. If another caller has already logged in again, its login is reused.
+     * @param failed the service instance whose call was rejected
+     * @return the service instance to retry with or null if the instance does not belong to a pooled session
+     * @throws CloudException the session could not be re-established
+     */
+    static public @Nullable ServiceInstance renew(@Nonnull ServiceInstance failed) throws CloudException {
+        ArrayList<SessionPool> all;
+
+        synchronized( pools ) {
+            all = new ArrayList<SessionPool>(pools.values());
+        }
+        for( SessionPool pool : all ) {
+            Session session = pool.find(failed);
+
+            if( session != null ) {
+                return session.relogin(failed);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A call to vSphere that may be made a second time through a new login. Implementations must bind the managed
+     * object they call to the connection they are given rather than the one it was originally looked up through.
+     * @param <T> the result of the call
+     */
+    public interface Call<T> {
+        public T call(@Nonnull ServerConnection connection) throws RemoteException;
+    }
+
+    /**
+     * Makes a call against a managed object through its connection and, if vSphere rejects it with
+     * <code>NotAuthenticated</code>, logs in again for the pooled session behind that connection and repeats the call
+     * once through the new login.
+     * @param target the managed object being called
+     * @param call the call to make
+     * @param <T> the result of the call
+     * @return the result of the call
+     * @throws CloudException the session could not be re-established
+     * @throws RemoteException the call failed
+     */
+    static public <T> T retry(@Nonnull ManagedObject target, @Nonnull Call<T> call) throws CloudException, RemoteException {
+        ServerConnection connection = target.getServerConnection();
+
+        try {
+            return call.call(connection);
+        }
+        catch( NotAuthenticated e ) {
+            ServiceInstance fresh = renew(connection.getServiceInstance());
+
+            if( fresh == null ) {
+                throw e;
+            }
+            log.info("Session was no longer authenticated, retrying with a new login");
+            return call.call(fresh.getServerConnection());
+        }
+    }
+
+    /**
+     * A service instance replaced by a new login, kept until nobody can still be using it.
+     */
+    static private class Retired {
+        ServiceInstance instance;
+        Session         session;
+        long            retired;
+    }
+
+    /**
+     * A single authenticated session in the pool. A session may be leased to several callers at once since vSphere
+     * sessions support concurrent requests; the pool simply spreads callers across its sessions.
+     */
+    public class Session {
+        private volatile ServiceInstance instance;
+        private int                      leases;
+        private long                     lastLeased;
+        private long                     lastVerified;
+
+        private Session(@Nonnull ServiceInstance instance) {
+            this.instance = instance;
+            this.lastVerified = System.currentTimeMillis();
+        }
+
+        /**
+         * Provides the service instance for this session, logging in again first if the session is known to have
+         * expired.
+         * @return the authenticated service instance
+         * @throws CloudException the session could not be re-established
+         */
+        public @Nonnull ServiceInstance getServiceInstance() throws CloudException {
+            synchronized( this ) {
+                if( System.currentTimeMillis() - lastVerified > keepAlive ) {
+                    verify();
+                }
+                return instance;
+            }
+        }
+
+        /**
+         * Returns this session to the pool.
+         */
+        public void release() {
+            SessionPool.this.release(this);
+        }
+
+        private void verify() throws CloudException {
+            synchronized( this ) {
+                ServiceInstance current = instance;
+
+                try {
+                    current.currentTime();
+                    lastVerified = System.currentTimeMillis();
+                }
+                catch( NotAuthenticated e ) {
+                    log.info("Session for " + endpoint + " is no longer authenticated, logging in again");
+                    relogin(current);
+                }
+                catch( RemoteException e ) {
+                    throw new CloudException("Error in cluster processing request: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Replaces the failed service instance with a new login unless that has already happened.
+         * @param failed the service instance that was rejected
+         * @return the current service instance
+         * @throws CloudException the login failed
+         */
+        private @Nonnull ServiceInstance relogin(@Nonnull ServiceInstance failed) throws CloudException {
+            synchronized( this ) {
+                if( instance != failed ) {
+                    return instance;
+                }
+                ServiceInstance replacement = login();
+
+                if( replacement == null ) {
+                    throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_UNAUTHORIZED, null, "Unauthorized");
+                }
+                instance = replacement;
+                lastVerified = System.currentTimeMillis();
+                retire(this, failed);
+                return replacement;
+            }
+        }
+
+        private @Nonnull ServiceInstance getCurrent() {
+            return instance;
+        }
+    }
+
+    private URL                endpoint;
+    private String[]           accessKeys;
+    private boolean            insecure;
+    private String             key;
+    private int                maxSize;
+    private long               keepAlive;
+    private ArrayList<Session> sessions = new ArrayList<Session>();
+    private ArrayList<Retired> retired  = new ArrayList<Retired>();
+    private int                pendingLogins;
+    private Thread             keepAliveThread;
+
+    private SessionPool(@Nonnull PrivateCloud provider, @Nonnull String key) throws InternalException {
+        String url = provider.getContext().getEndpoint();
+
+        try {
+            this.endpoint = new URL(url);
+        }
+        catch( MalformedURLException e ) {
+            throw new InternalException("Failed to generate endpoint URL for " + url + ": " + e.getMessage());
+        }
+        this.accessKeys = provider.getAccessKeys();
+        this.insecure = provider.isInsecure();
+        this.key = key;
+        this.maxSize = provider.getIntProperty("sessionPoolSize", DEFAULT_POOL_SIZE);
+        this.keepAlive = CalendarWrapper.SECOND * provider.getIntProperty("sessionKeepAliveSeconds", DEFAULT_KEEP_ALIVE);
+    }
+
+    /**
+     * Leases a session from the pool. An idle session is preferred; otherwise a new session is created if the pool
+     * has room for one, and failing that the session with the fewest current leases is shared.
+     * @return the leased session or null if vSphere rejected the credentials
+     * @throws CloudException an error occurred logging into vSphere
+     */
+    public @Nullable Session lease() throws CloudException {
+        synchronized( this ) {
+            Session best = null;
+
+            for( Session s : sessions ) {
+                if( best == null || s.leases < best.leases ) {
+                    best = s;
+                }
+            }
+            if( best != null && (best.leases == 0 || sessions.size() + pendingLogins >= maxSize) ) {
+                best.leases++;
+                best.lastLeased = System.currentTimeMillis();
+                return best;
+            }
+            pendingLogins++;
+        }
+        // log in outside the lock so concurrent callers are not serialized behind one login
+        ServiceInstance instance = null;
+
+        try {
+            instance = login();
+        }
+        finally {
+            synchronized( this ) {
+                pendingLogins--;
+            }
+        }
+        if( instance == null ) {
+            return null;
+        }
+        synchronized( this ) {
+            Session session = new Session(instance);
+
+            session.leases = 1;
+            session.lastLeased = System.currentTimeMillis();
+            sessions.add(session);
+            if( keepAliveThread == null ) {
+                startKeepAlive();
+            }
+            return session;
+        }
+    }
+
+    private void release(@Nonnull Session session) {
+        synchronized( this ) {
+            if( session.leases > 0 ) {
+                session.leases--;
+            }
+            session.lastLeased = System.currentTimeMillis();
+        }
+    }
+
+    private @Nullable Session find(@Nonnull ServiceInstance instance) {
+        synchronized( this ) {
+            for( Session s : sessions ) {
+                if( s.getCurrent() == instance ) {
+                    return s;
+                }
+            }
+            for( Retired r : retired ) {
+                if( r.instance == instance ) {
+                    return r.session;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void retire(@Nonnull Session session, @Nonnull ServiceInstance instance) {
+        Retired r = new Retired();
+
+        r.instance = instance;
+        r.session = session;
+        r.retired = System.currentTimeMillis();
+        synchronized( this ) {
+            retired.add(r);
+        }
+    }
+
+    public int size() {
+        synchronized( this ) {
+            return sessions.size();
+        }
+    }
+
+    private @Nullable ServiceInstance login() throws CloudException {
+        try {
+            return new ServiceInstance(endpoint, accessKeys[0], accessKeys[1], insecure);
+        }
+        catch( InvalidLogin e ) {
+            return null;
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error creating service instance: " + e.getMessage());
+        }
+        catch( MalformedURLException e ) {
+            throw new CloudException("Failed to generate endpoint URL for " + endpoint + ": " + e.getMessage());
+        }
+    }
+
+    private void logout(@Nullable ServiceInstance instance) {
+        if( instance != null ) {
+            try {
+                instance.getServerConnection().logout();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+        }
+    }
+
+    private void startKeepAlive() {
+        keepAliveThread = new Thread() {
+            public void run() {
+                keepAlive();
+            }
+        };
+        keepAliveThread.setName("vSphere session keep-alive " + endpoint);
+        keepAliveThread.setDaemon(true);
+        keepAliveThread.start();
+    }
+
+    private void keepAlive() {
+        while( true ) {
+            try { Thread.sleep(keepAlive); }
+            catch( InterruptedException e ) { return; }
+
+            ArrayList<Session> current = new ArrayList<Session>();
+
+            synchronized( this ) {
+                Iterator<Session> it = sessions.iterator();
+
+                while( it.hasNext() ) {
+                    Session s = it.next();
+
+                    if( s.leases < 1 && System.currentTimeMillis() - s.lastLeased > IDLE_TIMEOUT ) {
+                        it.remove();
+                        logout(s.instance);
+                    }
+                    else {
+                        current.add(s);
+                    }
+                }
+                Iterator<Retired> old = retired.iterator();
+
+                while( old.hasNext() ) {
+                    Retired r = old.next();
+
+                    if( sessions.isEmpty() || System.currentTimeMillis() - r.retired > IDLE_TIMEOUT ) {
+                        old.remove();
+                        logout(r.instance);
+                    }
+                }
+                if( sessions.isEmpty() && pendingLogins < 1 ) {
+                    keepAliveThread = null;
+                    synchronized( pools ) {
+                        if( pools.get(key) == this ) {
+                            pools.remove(key);
+                        }
+                    }
+                    return;
+                }
+            }
+            for( Session s : current ) {
+                try {
+                    s.verify();
+                }
+                catch( Throwable t ) {
+                    log.warn("Unable to keep session for " + endpoint + " alive: " + t.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ListView;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Follows every outstanding vSphere task for an endpoint and set of credentials through a single property collector
+ * filter on a {@link ListView} of the tasks. One watcher thread blocks in <code>WaitForUpdatesEx</code> and completes
+ * the {@link TrackedTask} handles as their <code>info.state</code> reaches success or error, so any number of
+ * in-flight operations cost one thread rather than one polling thread each. If the tracker cannot watch a task, the
+ * handle falls back to vijava's polling so callers always see the task complete.
+ */
+public class TaskTracker {
+    static private final Logger log = PrivateCloud.getLogger(TaskTracker.class, "std");
+
+    static private final int  MAX_WAIT_SECONDS = 30;
+    static private final long IDLE_TIMEOUT     = CalendarWrapper.MINUTE * 5L;
+
+    static private final HashMap<String,TaskTracker> trackers = new HashMap<String, TaskTracker>();
+
+    static public @Nonnull TaskTracker getInstance(@Nonnull PrivateCloud provider) throws CloudException, InternalException {
+        String key = provider.getSessionKey();
+
+        synchronized( trackers ) {
+            TaskTracker tracker = trackers.get(key);
+
+            if( tracker == null ) {
+                tracker = new TaskTracker(SessionPool.getInstance(provider));
+                trackers.put(key, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    private final Map<String,TrackedTask>      pending    = new ConcurrentHashMap<String, TrackedTask>();
+    private final Map<String,ObjectProperties> properties = new ConcurrentHashMap<String, ObjectProperties>();
+
+    private SessionPool         pool;
+    private SessionPool.Session session;
+    private ServiceInstance     instance;
+    private PropertyCollector   collector;
+    private ListView            view;
+    private Thread              watcher;
+    private volatile long       lastActivity;
+
+    private TaskTracker(@Nonnull SessionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Starts watching the specified task.
+     * @param task a task just returned by a vSphere operation
+     * @return a handle that completes when the task does
+     */
+    public @Nonnull TrackedTask track(@Nonnull Task task) {
+        TrackedTask tracked = new TrackedTask(task);
+        String key = ObjectProperties.getKey(task.getMOR());
+
+        lastActivity = System.currentTimeMillis();
+        try {
+            ListView current;
+            ServiceInstance watching;
+
+            synchronized( this ) {
+                if( watcher == null ) {
+                    start();
+                }
+                current = view;
+                watching = instance;
+                pending.put(key, tracked);
+            }
+            current.modifyListView(new ManagedObject[] { new Task(watching.getServerConnection(), task.getMOR()) }, null);
+        }
+        catch( Throwable t ) {
+            log.warn("Unable to track task " + task.getMOR().getVal() + ", polling it instead: " + t.getMessage());
+            pending.remove(key);
+            tracked.abandon();
+        }
+        return tracked;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void start() throws CloudException, RemoteException {
+        if( session == null ) {
+            session = pool.lease();
+            if( session == null ) {
+                throw new CloudException("Unable to log into vSphere to track tasks");
+            }
+        }
+        instance = session.getServiceInstance();
+
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+
+        view = instance.getViewManager().createListView(new ManagedObject[0]);
+        filter.setObjectSet(new ObjectSpec[] { PropertyRetriever.viewSpec(view) });
+        filter.setPropSet(new PropertySpec[] { PropertyRetriever.spec("Task", "info.state", "info.result", "info.error") });
+        collector = instance.getPropertyCollector().createPropertyCollector();
+        collector.createFilter(filter, false);
+
+        watcher = new Thread() {
+            public void run() {
+                watch();
+            }
+        };
+        watcher.setName("vSphere task tracker");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        String version = "";
+
+        try {
+            while( true ) {
+                synchronized( this ) {
+                    if( pending.isEmpty() && System.currentTimeMillis() - lastActivity > IDLE_TIMEOUT ) {
+                        shutdown();
+                        return;
+                    }
+                }
+                WaitOptions options = new WaitOptions();
+
+                options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+
+                UpdateSet updates = collector.waitForUpdatesEx(version, options);
+
+                if( updates != null ) {
+                    version = updates.getVersion();
+                    List<ManagedObject> completed = apply(updates);
+
+                    if( !completed.isEmpty() ) {
+                        view.modifyListView(null, completed.toArray(new ManagedObject[completed.size()]));
+                    }
+                }
+            }
+        }
+        catch( Throwable t ) {
+            log.error("Task tracker failed, falling back to polling: " + t.getMessage());
+            synchronized( this ) {
+                shutdown();
+                for( TrackedTask task : pending.values() ) {
+                    task.abandon();
+                }
+                pending.clear();
+                properties.clear();
+            }
+        }
+    }
+
+    private @Nonnull List<ManagedObject> apply(@Nonnull UpdateSet updates) {
+        List<ManagedObject> completed = new ArrayList<ManagedObject>();
+        PropertyFilterUpdate[] filters = updates.getFilterSet();
+
+        if( filters == null ) {
+            return completed;
+        }
+        for( PropertyFilterUpdate filter : filters ) {
+            ObjectUpdate[] updated = filter.getObjectSet();
+
+            if( updated == null ) {
+                continue;
+            }
+            for( ObjectUpdate update : updated ) {
+                String key = ObjectProperties.getKey(update.getObj());
+
+                if( update.getKind().equals(ObjectUpdateKind.leave) ) {
+                    properties.remove(key);
+                    continue;
+                }
+                ObjectProperties current = properties.get(key);
+                Map<String,Object> changes = new HashMap<String, Object>();
+                PropertyChange[] changeSet = update.getChangeSet();
+
+                if( current == null ) {
+                    current = new ObjectProperties(update.getObj());
+                }
+                if( changeSet != null ) {
+                    for( PropertyChange change : changeSet ) {
+                        if( change.getOp().equals(PropertyChangeOp.remove) || change.getOp().equals(PropertyChangeOp.indirectRemove) ) {
+                            changes.put(change.getName(), null);
+                        }
+                        else {
+                            changes.put(change.getName(), change.getVal());
+                        }
+                    }
+                }
+                current = new ObjectProperties(current, changes);
+
+                TaskInfoState state = ( TaskInfoState ) current.get("info.state");
+
+                if( TaskInfoState.success.equals(state) || TaskInfoState.error.equals(state) ) {
+                    TrackedTask task = pending.remove(key);
+
+                    properties.remove(key);
+                    completed.add(new Task(instance.getServerConnection(), update.getObj()));
+                    if( task != null ) {
+                        task.complete(state, current.get("info.result"), ( LocalizedMethodFault ) current.get("info.error"));
+                    }
+                }
+                else {
+                    properties.put(key, current);
+                }
+            }
+        }
+        return completed;
+    }
+
+    private void shutdown() {
+        if( collector != null ) {
+            try {
+                collector.destroyPropertyCollector();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+            collector = null;
+        }
+        if( view != null ) {
+            try {
+                view.destroyView();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+            view = null;
+        }
+        if( session != null ) {
+            session.release();
+            session = null;
+        }
+        instance = null;
+        watcher = null;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A handle on a vSphere task watched by the {@link TaskTracker}. The handle completes when the tracker sees the task
+ * reach the success or error state; {@link #waitForTask()} is a drop-in replacement for vijava's
+ * <code>Task.waitForTask()</code> that blocks on the handle instead of polling. The final result and error arrive
+ * with the state change, so reading them costs no further round trips.
+ */
+public class TrackedTask implements Future<TaskInfoState> {
+    static private final Logger log = PrivateCloud.getLogger(TrackedTask.class, "std");
+
+    /**
+     * Notified on the tracker thread when a task completes. Implementations must return quickly.
+     */
+    public interface Listener {
+        public void taskCompleted(@Nonnull TrackedTask task);
+    }
+
+    private final Task           task;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    private volatile boolean              cancelled;
+    private volatile LocalizedMethodFault error;
+    private volatile Throwable            failure;
+    private volatile Object               result;
+    private volatile TaskInfoState        state;
+
+    TrackedTask(@Nonnull Task task) {
+        this.task = task;
+    }
+
+    /**
+     * Registers a listener to be notified when the task completes. If the task has already completed, the listener
+     * is notified immediately on the calling thread.
+     * @param listener the listener to notify
+     */
+    public void addListener(@Nonnull Listener listener) {
+        synchronized( listeners ) {
+            if( !isDone() ) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        fire(listener);
+    }
+
+    void complete(@Nonnull TaskInfoState state, @Nullable Object result, @Nullable LocalizedMethodFault error) {
+        List<Listener> toNotify;
+
+        synchronized( listeners ) {
+            if( isDone() ) {
+                return;
+            }
+            this.result = result;
+            this.error = error;
+            this.state = state;
+            done.countDown();
+            toNotify = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        for( Listener listener : toNotify ) {
+            fire(listener);
+        }
+    }
+
+    /**
+     * Called by the tracker when it can no longer watch this task. The task is then followed by polling it directly
+     * on a separate thread so that waiters and listeners still complete.
+     */
+    void abandon() {
+        if( isDone() ) {
+            return;
+        }
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    task.waitForTask();
+                    TaskInfo info = task.getTaskInfo();
+
+                    complete(info.getState(), info.getResult(), info.getError());
+                }
+                catch( Throwable e ) {
+                    failure = e;
+                    complete(TaskInfoState.error, null, null);
+                }
+            }
+        };
+
+        t.setName("vSphere task " + task.getMOR().getVal());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void fire(@Nonnull Listener listener) {
+        try {
+            listener.taskCompleted(this);
+        }
+        catch( Throwable t ) {
+            log.error("Task listener failed for " + task.getMOR().getVal() + ": " + t.getMessage());
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if( isDone() ) {
+            return false;
+        }
+        try {
+            task.cancelTask();
+            cancelled = true;
+            return true;
+        }
+        catch( RemoteException e ) {
+            log.warn("Unable to cancel task " + task.getMOR().getVal() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public @Nonnull TaskInfoState get() throws InterruptedException, ExecutionException {
+        done.await();
+        if( failure != null ) {
+            throw new ExecutionException(failure);
+        }
+        return state;
+    }
+
+    @Override
+    public @Nonnull TaskInfoState get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if( !done.await(timeout, unit) ) {
+            throw new TimeoutException("Timed out waiting for task " + task.getMOR().getVal());
+        }
+        return get();
+    }
+
+    /**
+     * @return the error reported by a failed task or null if it succeeded (or has not completed)
+     */
+    public @Nullable LocalizedMethodFault getError() {
+        return error;
+    }
+
+    /**
+     * @return a description of the error reported by a failed task, suitable for exception messages
+     */
+    public @Nonnull String getErrorMessage() {
+        if( error != null && error.getLocalizedMessage() != null ) {
+            return error.getLocalizedMessage();
+        }
+        if( failure != null ) {
+            return failure.getMessage();
+        }
+        return "Unknown error";
+    }
+
+    /**
+     * @return the result of a successful task, such as the managed object reference of a newly created virtual machine
+     */
+    public @Nullable Object getResult() {
+        return result;
+    }
+
+    /**
+     * @return the final state of the task or null if it has not completed
+     */
+    public @Nullable TaskInfoState getState() {
+        return state;
+    }
+
+    public @Nonnull Task getTask() {
+        return task;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return (done.getCount() == 0);
+    }
+
+    /**
+     * Waits for the task to complete, mirroring vijava's <code>Task.waitForTask()</code>.
+     * @return {@link Task#SUCCESS} or {@link Task#ERROR}
+     * @throws RemoteException the task could not be followed
+     * @throws InterruptedException the wait was interrupted
+     */
+    public @Nonnull String waitForTask() throws RemoteException, InterruptedException {
+        done.await();
+        if( failure instanceof RemoteException ) {
+            throw ( RemoteException ) failure;
+        }
+        return (TaskInfoState.success.equals(state) ? Task.SUCCESS : Task.ERROR);
+    }
+}
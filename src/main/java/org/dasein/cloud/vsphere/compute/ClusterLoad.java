@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The combined capacity and load of the eligible hosts in a cluster, as presented to a {@link ClusterSelector}.
+ */
+public class ClusterLoad {
+    private String dataCenterId;
+    private long   cpuCapacityMhz;
+    private long   freeCpuMhz;
+    private long   memoryCapacityMB;
+    private long   freeMemoryMB;
+    private int    hostCount;
+    private int    vmCount;
+
+    public ClusterLoad(@Nonnull String dataCenterId) {
+        this.dataCenterId = dataCenterId;
+    }
+
+    void add(long cpuCapacityMhz, long freeCpuMhz, long memoryCapacityMB, long freeMemoryMB, int vmCount) {
+        this.cpuCapacityMhz += cpuCapacityMhz;
+        this.freeCpuMhz += freeCpuMhz;
+        this.memoryCapacityMB += memoryCapacityMB;
+        this.freeMemoryMB += freeMemoryMB;
+        this.vmCount += vmCount;
+        hostCount++;
+    }
+
+    public long getCpuCapacityMhz() {
+        return cpuCapacityMhz;
+    }
+
+    /**
+     * @return the ID of the dasein data center, which is the name of the cluster
+     */
+    public @Nonnull String getDataCenterId() {
+        return dataCenterId;
+    }
+
+    /**
+     * @return the share of the cluster's CPU that is free, between 0 and 1
+     */
+    public double getFreeCpuFraction() {
+        return (cpuCapacityMhz > 0 ? ( double ) freeCpuMhz / cpuCapacityMhz : 0.0);
+    }
+
+    public long getFreeCpuMhz() {
+        return freeCpuMhz;
+    }
+
+    /**
+     * @return the share of the cluster's memory that is free, between 0 and 1
+     */
+    public double getFreeMemoryFraction() {
+        return (memoryCapacityMB > 0 ? ( double ) freeMemoryMB / memoryCapacityMB : 0.0);
+    }
+
+    public long getFreeMemoryMB() {
+        return freeMemoryMB;
+    }
+
+    /**
+     * @return the number of eligible hosts in the cluster
+     */
+    public int getHostCount() {
+        return hostCount;
+    }
+
+    public long getMemoryCapacityMB() {
+        return memoryCapacityMB;
+    }
+
+    public int getVmCount() {
+        return vmCount;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return dataCenterId + " [" + hostCount + " hosts, " + vmCount + " VMs, " + freeCpuMhz + "MHz/" + freeMemoryMB + "MB free]";
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Chooses the cluster (dasein data center) for a launch that did not name one. The selector in use is named by the
+ * custom property &quot;clusterSelector&quot;, which may be one of the strategies in {@link ClusterSelectors} or the
+ * fully qualified name of a class implementing this interface with a public no-argument constructor.
+ */
+public interface ClusterSelector {
+    /**
+     * @param clusters the candidate clusters with their current load, never empty
+     * @return the ID of the chosen data center or null to take the first candidate
+     */
+    public @Nullable String select(@Nonnull List<ClusterLoad> clusters);
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The built-in {@link ClusterSelector} strategies and the lookup of the selector configured for a cloud.
+ */
+public class ClusterSelectors {
+    static private final Logger log = PrivateCloud.getLogger(ClusterSelectors.class, "std");
+
+    static private final HashMap<String,ClusterSelector> custom = new HashMap<String, ClusterSelector>();
+
+    /**
+     * Chooses at random, weighting each cluster by the product of its free CPU and free memory shares so that a
+     * cluster at 90% load is chosen rarely and an idle one often. This is the default.
+     */
+    static public final ClusterSelector WEIGHTED = new ClusterSelector() {
+        private final Random random = new Random();
+
+        public @Nullable String select(@Nonnull List<ClusterLoad> clusters) {
+            double[] weights = new double[clusters.size()];
+            double total = 0.0;
+
+            for( int i=0; i<weights.length; i++ ) {
+                ClusterLoad cluster = clusters.get(i);
+
+                weights[i] = cluster.getFreeCpuFraction() * cluster.getFreeMemoryFraction();
+                total += weights[i];
+            }
+            if( total <= 0.0 ) {
+                return LEAST_VMS.select(clusters);
+            }
+            double r = random.nextDouble() * total;
+
+            for( int i=0; i<weights.length; i++ ) {
+                r -= weights[i];
+                if( r < 0.0 ) {
+                    return clusters.get(i).getDataCenterId();
+                }
+            }
+            return clusters.get(weights.length - 1).getDataCenterId();
+        }
+    };
+
+    /**
+     * Cycles through the clusters in turn.
+     */
+    static public final ClusterSelector ROUND_ROBIN = new ClusterSelector() {
+        private final AtomicInteger next = new AtomicInteger();
+
+        public @Nullable String select(@Nonnull List<ClusterLoad> clusters) {
+            int i = (next.getAndIncrement() & Integer.MAX_VALUE) % clusters.size();
+
+            return clusters.get(i).getDataCenterId();
+        }
+    };
+
+    /**
+     * Chooses the cluster with the fewest virtual machines per host.
+     */
+    static public final ClusterSelector LEAST_VMS = new ClusterSelector() {
+        public @Nullable String select(@Nonnull List<ClusterLoad> clusters) {
+            ClusterLoad best = null;
+            double bestDensity = 0.0;
+
+            for( ClusterLoad cluster : clusters ) {
+                double density = ( double ) cluster.getVmCount() / Math.max(1, cluster.getHostCount());
+
+                if( best == null || density < bestDensity ) {
+                    best = cluster;
+                    bestDensity = density;
+                }
+            }
+            return (best == null ? null : best.getDataCenterId());
+        }
+    };
+
+    /**
+     * Looks up the selector named by the custom property &quot;clusterSelector&quot;: &quot;weighted&quot; (the
+     * default), &quot;roundRobin&quot;, &quot;leastVms&quot; or the name of a {@link ClusterSelector} class. A
+     * selector class is instantiated once and the instance is shared by every later launch, so it must be thread safe.
+     * @param provider the cloud provider
+     * @return the configured selector
+     */
+    static public @Nonnull ClusterSelector getInstance(@Nonnull PrivateCloud provider) {
+        String name = provider.getCustomProperty("clusterSelector");
+
+        if( name == null || name.equalsIgnoreCase("weighted") ) {
+            return WEIGHTED;
+        }
+        if( name.equalsIgnoreCase("roundRobin") ) {
+            return ROUND_ROBIN;
+        }
+        if( name.equalsIgnoreCase("leastVms") ) {
+            return LEAST_VMS;
+        }
+        synchronized( custom ) {
+            ClusterSelector selector = custom.get(name);
+
+            if( selector == null ) {
+                try {
+                    selector = ( ClusterSelector ) Class.forName(name).newInstance();
+                }
+                catch( Exception e ) {
+                    log.warn("Unable to load cluster selector " + name + ", using weighted selection: " + e.getMessage());
+                    selector = WEIGHTED;
+                }
+                custom.put(name, selector);
+            }
+            return selector;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TrackedTask;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Chooses datastores for new virtual machines and volumes by free space. The name, capacity, free space,
+ * accessibility and maintenance mode of every datastore visible to a datacenter, compute resource, host or virtual
+ * machine are fetched in one property collector query. Space being consumed by provisioning that has not finished is
+ * reserved against the chosen datastore until the task completes, so parallel launches see each other's demands
+ * instead of all targeting the datastore that looked emptiest before any of them started.
+ * <p>
+ * The policy is set with the custom property &quot;datastorePolicy&quot;: <code>headroom</code> (the default) takes the
+ * datastore with the most free bytes, <code>freeFraction</code> the one with the largest share of its capacity free,
+ * and <code>firstFit</code> the first datastore by name with room. A datastore is never filled beyond the percentage
+ * of its capacity held back by &quot;datastoreMinFreePercent&quot; (5 by default).
+ * </p>
+ */
+class DatastorePlacement {
+    static private final Logger log = PrivateCloud.getLogger(DatastorePlacement.class, "std");
+
+    static private final long RESERVATION_TIMEOUT = CalendarWrapper.HOUR * 2L;
+
+    static private final String[] DATASTORE_PROPERTIES = new String[] {
+            "name", "summary.freeSpace", "summary.capacity", "summary.accessible", "summary.maintenanceMode"
+    };
+
+    static private final HashMap<String,List<Reservation>> inFlight = new HashMap<String, List<Reservation>>();
+
+    /**
+     * The space and state of a single datastore as of the query that found it.
+     */
+    static class Candidate {
+        private ManagedObjectReference datastore;
+        private String                 key;
+        private String                 name;
+        private boolean                accessible;
+        private boolean                maintenance;
+        private long                   capacity;
+        private long                   freeSpace;
+
+        Candidate(@Nonnull ManagedObjectReference datastore, @Nonnull String key, @Nonnull String name, boolean accessible, boolean maintenance, long capacity, long freeSpace) {
+            this.datastore = datastore;
+            this.key = key;
+            this.name = name;
+            this.accessible = accessible;
+            this.maintenance = maintenance;
+            this.capacity = capacity;
+            this.freeSpace = freeSpace;
+        }
+
+        @Nonnull ManagedObjectReference getDatastore() {
+            return datastore;
+        }
+
+        @Nonnull String getName() {
+            return name;
+        }
+
+        long getCapacity() {
+            return capacity;
+        }
+
+        long getFreeSpace() {
+            return freeSpace;
+        }
+
+        /**
+         * @return true if the datastore is accessible and not in or entering maintenance mode
+         */
+        boolean isEligible() {
+            return (accessible && !maintenance);
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name + " [" + freeSpace + "/" + capacity + "]";
+        }
+    }
+
+    /**
+     * Space claimed on a datastore by provisioning in progress. A reservation is released when the task it is
+     * registered with completes or, failing that, after two hours.
+     */
+    static class Reservation implements TrackedTask.Listener {
+        private Candidate candidate;
+        private String    key;
+        private long      bytes;
+        private long      timestamp;
+
+        private Reservation(@Nonnull String key, @Nonnull Candidate candidate, long bytes) {
+            this.key = key;
+            this.candidate = candidate;
+            this.bytes = bytes;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        @Nonnull ManagedObjectReference getDatastore() {
+            return candidate.getDatastore();
+        }
+
+        @Nonnull String getName() {
+            return candidate.getName();
+        }
+
+        /**
+         * Releases the reserved space once the provisioning it covered has finished or failed.
+         */
+        void release() {
+            synchronized( inFlight ) {
+                List<Reservation> list = inFlight.get(key);
+
+                if( list != null ) {
+                    list.remove(this);
+                    if( list.isEmpty() ) {
+                        inFlight.remove(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Releases the reservation when the task provisioning the space completes.
+         * @param task the completed task
+         */
+        public void taskCompleted(@Nonnull TrackedTask task) {
+            release();
+        }
+    }
+
+    private PrivateCloud provider;
+
+    DatastorePlacement(@Nonnull PrivateCloud provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Fetches the datastores visible to a managed object along with their space and state in a single query.
+     * @param instance the service instance to query
+     * @param owner a datacenter, compute resource, host or virtual machine
+     * @return the datastores available to the owner, in name order
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull List<Candidate> getCandidates(@Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference owner) throws CloudException, InternalException {
+        APITrace.begin(provider, "DatastorePlacement.getCandidates");
+        try {
+            TraversalSpec traversal = new TraversalSpec();
+
+            traversal.setName("traverseDatastores");
+            traversal.setType(owner.getType());
+            traversal.setPath("datastore");
+            traversal.setSkip(Boolean.FALSE);
+
+            ObjectSpec objectSpec = new ObjectSpec();
+
+            objectSpec.setObj(owner);
+            objectSpec.setSkip(Boolean.TRUE);
+            objectSpec.setSelectSet(new SelectionSpec[] { traversal });
+
+            PropertyFilterSpec filter = new PropertyFilterSpec();
+
+            filter.setObjectSet(new ObjectSpec[] { objectSpec });
+            filter.setPropSet(new PropertySpec[] { PropertyRetriever.spec("Datastore", DATASTORE_PROPERTIES) });
+
+            ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+            String sessionKey = provider.getSessionKey();
+
+            for( ObjectProperties ds : new PropertyRetriever(instance).retrieve(filter) ) {
+                candidates.add(toCandidate(sessionKey, ds));
+            }
+            Collections.sort(candidates, new Comparator<Candidate>() {
+                public int compare(Candidate a, Candidate b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            return candidates;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull Candidate toCandidate(@Nonnull String sessionKey, @Nonnull ObjectProperties ds) {
+        Long capacity = ds.getLong("summary.capacity");
+        Long freeSpace = ds.getLong("summary.freeSpace");
+        Object maintenance = ds.get("summary.maintenanceMode");
+        String name = ds.getString("name");
+
+        if( name == null ) {
+            name = ds.getId();
+        }
+        return new Candidate(ds.getMOR(), sessionKey + "#" + ds.getKey(), name, ds.getBoolean("summary.accessible"),
+                (maintenance != null && !maintenance.toString().equals("normal")),
+                (capacity == null ? 0L : capacity), (freeSpace == null ? 0L : freeSpace));
+    }
+
+    /**
+     * Looks up a datastore by name among the candidates.
+     * @param candidates the candidates from {@link #getCandidates(ServiceInstance, ManagedObjectReference)}
+     * @param name the datastore name (the dasein storage pool ID)
+     * @return the matching datastore or null if none matches
+     */
+    @Nullable Candidate find(@Nonnull List<Candidate> candidates, @Nonnull String name) {
+        for( Candidate candidate : candidates ) {
+            if( candidate.getName().equals(name) ) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses a datastore with room for the requested space according to the configured policy and reserves the space
+     * on it.
+     * @param candidates the candidates from {@link #getCandidates(ServiceInstance, ManagedObjectReference)}
+     * @param bytes the space the new virtual machine or volume will consume
+     * @return a reservation on the chosen datastore or null if no eligible datastore has room
+     */
+    @Nullable Reservation place(@Nonnull List<Candidate> candidates, long bytes) {
+        return place(candidates, bytes, provider.getCustomProperty("datastorePolicy"), provider.getIntProperty("datastoreMinFreePercent", 5));
+    }
+
+    /**
+     * Chooses a datastore with room for the requested space according to the specified policy and reserves the space
+     * on it.
+     * @param candidates the candidate datastores
+     * @param bytes the space the new virtual machine or volume will consume
+     * @param policy <code>headroom</code>, <code>freeFraction</code> or <code>firstFit</code>; null means headroom
+     * @param minFreePercent the percentage of each datastore's capacity that is never filled
+     * @return a reservation on the chosen datastore or null if no eligible datastore has room
+     */
+    @Nullable Reservation place(@Nonnull List<Candidate> candidates, long bytes, @Nullable String policy, int minFreePercent) {
+        synchronized( inFlight ) {
+            Candidate best = null;
+            double bestScore = 0.0;
+
+            for( Candidate candidate : candidates ) {
+                if( !candidate.isEligible() ) {
+                    continue;
+                }
+                long headroom = candidate.getFreeSpace() - getReserved(candidate.key) - bytes - ((candidate.getCapacity() * minFreePercent) / 100L);
+
+                if( headroom < 0L ) {
+                    continue;
+                }
+                double score;
+
+                if( "firstFit".equalsIgnoreCase(policy) ) {
+                    best = candidate;
+                    break;
+                }
+                else if( "freeFraction".equalsIgnoreCase(policy) ) {
+                    score = (candidate.getCapacity() > 0L ? ( double ) headroom / candidate.getCapacity() : 0.0);
+                }
+                else {
+                    score = headroom;
+                }
+                if( best == null || score > bestScore ) {
+                    best = candidate;
+                    bestScore = score;
+                }
+            }
+            if( best == null ) {
+                log.warn("No datastore among " + candidates + " has room for " + bytes + " bytes");
+                return null;
+            }
+            return reserve(best, bytes);
+        }
+    }
+
+    /**
+     * Reserves space on a specific datastore, such as one named by the caller, so that it counts against later
+     * placements.
+     * @param candidate the datastore
+     * @param bytes the space the new virtual machine or volume will consume
+     * @return the reservation
+     */
+    @Nonnull Reservation reserve(@Nonnull Candidate candidate, long bytes) {
+        Reservation reservation = new Reservation(candidate.key, candidate, bytes);
+
+        synchronized( inFlight ) {
+            List<Reservation> list = inFlight.get(candidate.key);
+
+            if( list == null ) {
+                list = new ArrayList<Reservation>();
+                inFlight.put(candidate.key, list);
+            }
+            list.add(reservation);
+        }
+        return reservation;
+    }
+
+    private long getReserved(@Nonnull String key) {
+        List<Reservation> list = inFlight.get(key);
+
+        if( list == null ) {
+            return 0L;
+        }
+        long cutoff = System.currentTimeMillis() - RESERVATION_TIMEOUT;
+        long total = 0L;
+        Iterator<Reservation> it = list.iterator();
+
+        while( it.hasNext() ) {
+            Reservation reservation = it.next();
+
+            if( reservation.timestamp < cutoff ) {
+                it.remove();
+            }
+            else {
+                total += reservation.bytes;
+            }
+        }
+        return total;
+    }
+}
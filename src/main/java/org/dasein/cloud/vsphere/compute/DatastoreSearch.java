@@ -0,0 +1,488 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ArrayOfHostDatastoreBrowserSearchResults;
+import com.vmware.vim25.ArrayOfVirtualDevice;
+import com.vmware.vim25.FileInfo;
+import com.vmware.vim25.FileQuery;
+import com.vmware.vim25.FileQueryFlags;
+import com.vmware.vim25.FolderFileInfo;
+import com.vmware.vim25.FolderFileQuery;
+import com.vmware.vim25.HostDatastoreBrowserSearchResults;
+import com.vmware.vim25.HostDatastoreBrowserSearchSpec;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDeviceFileBackingInfo;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VmDiskFileQuery;
+import com.vmware.vim25.VmDiskFileQueryFlags;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.HostDatastoreBrowser;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
+import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Searches all datastores of a datacenter for virtual disks at once. The name and browser of every datastore come from
+ * a single property collector query, and a search task is started on each datastore as soon as fewer than
+ * &quot;datastoreSearchConcurrency&quot; (default 8) searches are running, so a listing takes as long as the slowest
+ * datastore rather than the sum of all of them.
+ * <p>
+ * Searches ask only for virtual disk descriptors (with their capacity) and folders (with their modification time).
+ * What each top-level folder of a datastore holds is remembered per region and account, so later listings search the
+ * root of each datastore and then only the folders that are new or have been modified since. Every datastore is
+ * searched in full at least once an hour to pick up changes deeper in the folder tree, which do not alter the
+ * modification time of the top-level folder, and the remembered listings are dropped from the Dasein cache after the
+ * same hour.
+ * </p>
+ */
+class DatastoreSearch {
+    static private final int  DEFAULT_CONCURRENCY = 8;
+    static private final long FULL_REFRESH        = CalendarWrapper.HOUR;
+
+    /**
+     * The disks found on a datastore, by top-level folder.
+     */
+    static private class Listing {
+        long                                                refreshed;
+        Map<String,Long>                                    modified = new HashMap<String, Long>();
+        Map<String,List<HostDatastoreBrowserSearchResults>> folders  = new HashMap<String, List<HostDatastoreBrowserSearchResults>>();
+    }
+
+    /**
+     * The searches under way on one datastore.
+     */
+    static private class Search {
+        String                  name;
+        String                  key;
+        ManagedObjectReference  browser;
+        Listing                 previous;
+        boolean                 full;
+        TrackedTask             root;
+        Map<String,TrackedTask> folders  = new LinkedHashMap<String, TrackedTask>();
+        Map<String,Long>        modified = new HashMap<String, Long>();
+        Listing                 current  = new Listing();
+    }
+
+    static private @Nonnull HostDatastoreBrowserSearchSpec getSearchSpec() {
+        VmDiskFileQueryFlags diskDetails = new VmDiskFileQueryFlags();
+
+        diskDetails.setCapacityKb(true);
+        diskDetails.setDiskType(false);
+        diskDetails.setHardwareVersion(false);
+
+        VmDiskFileQuery disks = new VmDiskFileQuery();
+
+        disks.setDetails(diskDetails);
+
+        FileQueryFlags details = new FileQueryFlags();
+
+        details.setFileType(true);
+        details.setFileSize(true);
+        details.setModification(true);
+        details.setFileOwner(false);
+
+        HostDatastoreBrowserSearchSpec spec = new HostDatastoreBrowserSearchSpec();
+
+        spec.setQuery(new FileQuery[] { disks, new FolderFileQuery() });
+        spec.setDetails(details);
+        return spec;
+    }
+
+    private PrivateCloud provider;
+
+    DatastoreSearch(@Nonnull PrivateCloud provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @return the listings remembered for the current region and account by datastore
+     * @throws CloudException no context exists for this request
+     */
+    private @Nonnull Map<String,Listing> getListings() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<Map> cache = Cache.getInstance(provider, "datastoreListings", Map.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+        synchronized( DatastoreSearch.class ) {
+            Collection<Map> list = ( Collection<Map> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = new ArrayList<Map>();
+                list.add(new HashMap<String, Listing>());
+                cache.put(ctx, list);
+            }
+            return ( Map<String,Listing> ) list.iterator().next();
+        }
+    }
+
+    /**
+     * Finds the virtual disks in every folder of every datastore in the datacenter.
+     * @param instance the service instance to work through
+     * @param dc the datacenter whose datastores are searched
+     * @return the disks in each folder of each datastore by datastore name, in the order the datastores were found
+     * @throws CloudException a search failed
+     * @throws InternalException the search was interrupted
+     */
+    @Nonnull Map<String,List<HostDatastoreBrowserSearchResults>> search(@Nonnull ServiceInstance instance, @Nonnull Datacenter dc) throws CloudException, InternalException {
+        APITrace.begin(provider, "DatastoreSearch.search");
+        try {
+            List<ObjectProperties> datastores = new PropertyRetriever(instance).retrieve(dc, PropertyRetriever.spec("Datastore", "name", "browser"));
+            Semaphore permits = new Semaphore(provider.getIntProperty("datastoreSearchConcurrency", DEFAULT_CONCURRENCY));
+            HostDatastoreBrowserSearchSpec spec = getSearchSpec();
+            List<Search> searches = new ArrayList<Search>();
+            Map<String,Listing> listings = getListings();
+            long now = System.currentTimeMillis();
+
+            try {
+                // first pass: the root of every datastore, or the whole datastore if it has no recent listing
+                for( ObjectProperties ds : datastores ) {
+                    Search search = new Search();
+
+                    search.name = ds.getString("name");
+                    search.browser = ds.getReference("browser");
+                    if( search.name == null || search.browser == null ) {
+                        continue;
+                    }
+                    search.key = ds.getKey();
+                    synchronized( listings ) {
+                        search.previous = listings.get(search.key);
+                    }
+                    search.full = (search.previous == null || now - search.previous.refreshed > FULL_REFRESH);
+
+                    HostDatastoreBrowser browser = new HostDatastoreBrowser(instance.getServerConnection(), search.browser);
+                    String path = "[" + search.name + "]";
+
+                    permits.acquire();
+                    search.root = start(permits, (search.full ? browser.searchDatastoreSubFolders_Task(path, spec) : browser.searchDatastore_Task(path, spec)));
+                    searches.add(search);
+                }
+                CloudException error = null;
+
+                // second pass: the top-level folders that have changed since the last listing
+                for( Search search : searches ) {
+                    if( !search.root.waitForTask().equals(Task.SUCCESS) ) {
+                        if( error == null ) {
+                            error = new CloudException("Failed listing volumes: " + search.root.getErrorMessage());
+                        }
+                        continue;
+                    }
+                    if( search.full ) {
+                        for( HostDatastoreBrowserSearchResults r : toList(search.root.getResult()) ) {
+                            String folder = getTopFolder(r.getFolderPath());
+
+                            if( folder.equals("") ) {
+                                search.current.modified = getFolderTimes(r);
+                            }
+                            add(search.current, folder, r);
+                        }
+                        continue;
+                    }
+                    HostDatastoreBrowserSearchResults root = (HostDatastoreBrowserSearchResults)search.root.getResult();
+
+                    if( root == null ) {
+                        continue;
+                    }
+                    add(search.current, "", root);
+                    search.modified = getFolderTimes(root);
+                    for( Map.Entry<String,Long> folder : search.modified.entrySet() ) {
+                        Long before = search.previous.modified.get(folder.getKey());
+                        List<HostDatastoreBrowserSearchResults> cached = search.previous.folders.get(folder.getKey());
+
+                        if( before != null && before.equals(folder.getValue()) ) {
+                            search.current.modified.put(folder.getKey(), before);
+                            if( cached != null ) {
+                                search.current.folders.put(folder.getKey(), cached);
+                            }
+                            continue;
+                        }
+                        HostDatastoreBrowser browser = new HostDatastoreBrowser(instance.getServerConnection(), search.browser);
+
+                        permits.acquire();
+                        search.folders.put(folder.getKey(), start(permits, browser.searchDatastoreSubFolders_Task("[" + search.name + "] " + folder.getKey(), spec)));
+                    }
+                }
+                LinkedHashMap<String,List<HostDatastoreBrowserSearchResults>> results = new LinkedHashMap<String, List<HostDatastoreBrowserSearchResults>>();
+
+                for( Search search : searches ) {
+                    if( !TaskInfoState.success.equals(search.root.getState()) ) {
+                        continue;
+                    }
+                    for( Map.Entry<String,TrackedTask> folder : search.folders.entrySet() ) {
+                        TrackedTask tracked = folder.getValue();
+
+                        if( !tracked.waitForTask().equals(Task.SUCCESS) ) {
+                            if( error == null ) {
+                                error = new CloudException("Failed listing volumes: " + tracked.getErrorMessage());
+                            }
+                            continue;
+                        }
+                        search.current.modified.put(folder.getKey(), search.modified.get(folder.getKey()));
+                        for( HostDatastoreBrowserSearchResults r : toList(tracked.getResult()) ) {
+                            add(search.current, folder.getKey(), r);
+                        }
+                    }
+                    search.current.refreshed = (search.full ? now : search.previous.refreshed);
+                    synchronized( listings ) {
+                        listings.put(search.key, search.current);
+                    }
+                    List<HostDatastoreBrowserSearchResults> list = new ArrayList<HostDatastoreBrowserSearchResults>();
+
+                    for( List<HostDatastoreBrowserSearchResults> folder : search.current.folders.values() ) {
+                        list.addAll(folder);
+                    }
+                    results.put(search.name, list);
+                }
+                if( error != null ) {
+                    throw error;
+                }
+                return results;
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            }
+            catch( InterruptedException e ) {
+                throw new InternalException(e);
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Checks that a disk a listing found unattached is still there and has not since been attached to a virtual
+     * machine. Only the folder holding the disk is searched, and only the virtual machines using its datastore are
+     * read.
+     * @param instance the service instance to work through
+     * @param dc the datacenter holding the datastore
+     * @param filePath the datastore path of the disk descriptor, such as <code>[ds] folder/disk.vmdk</code>
+     * @return true if the disk exists and no virtual machine on its datastore has it attached
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException the search was interrupted
+     */
+    boolean isDetached(@Nonnull ServiceInstance instance, @Nonnull Datacenter dc, @Nonnull String filePath) throws CloudException, InternalException {
+        APITrace.begin(provider, "DatastoreSearch.isDetached");
+        try {
+            int end = filePath.indexOf(']');
+
+            if( !filePath.startsWith("[") || end < 0 ) {
+                return false;
+            }
+            String name = filePath.substring(1, end);
+            String path = filePath.substring(end + 1).trim();
+            int idx = path.lastIndexOf('/');
+            String folder = (idx < 0 ? "" : path.substring(0, idx));
+            String file = path.substring(idx + 1);
+            PropertyRetriever retriever = new PropertyRetriever(instance);
+            ObjectProperties datastore = null;
+
+            for( ObjectProperties ds : retriever.retrieve(dc, PropertyRetriever.spec("Datastore", "name", "browser", "vm")) ) {
+                if( name.equals(ds.getString("name")) ) {
+                    datastore = ds;
+                    break;
+                }
+            }
+            if( datastore == null || datastore.getReference("browser") == null ) {
+                return false;
+            }
+            HostDatastoreBrowserSearchSpec spec = new HostDatastoreBrowserSearchSpec();
+
+            spec.setQuery(new FileQuery[] { new VmDiskFileQuery() });
+            spec.setMatchPattern(new String[] { file });
+
+            HostDatastoreBrowser browser = new HostDatastoreBrowser(instance.getServerConnection(), datastore.getReference("browser"));
+            TrackedTask tracked = TaskTracker.getInstance(provider).track(browser.searchDatastore_Task("[" + name + "] " + folder, spec));
+
+            // a failed search most likely means the folder is gone with the disk
+            if( !tracked.waitForTask().equals(Task.SUCCESS) || !(tracked.getResult() instanceof HostDatastoreBrowserSearchResults) ) {
+                return false;
+            }
+            FileInfo[] files = ((HostDatastoreBrowserSearchResults)tracked.getResult()).getFile();
+            boolean found = false;
+
+            if( files != null ) {
+                for( FileInfo info : files ) {
+                    if( file.equals(info.getPath()) ) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if( !found ) {
+                return false;
+            }
+            ManagedObjectReference[] vms = datastore.getReferences("vm");
+
+            if( vms.length > 0 ) {
+                for( ObjectProperties vm : retriever.retrieve(null, vms, PropertyRetriever.spec("VirtualMachine", "config.hardware.device")) ) {
+                    Object devices = vm.get("config.hardware.device");
+
+                    if( devices == null || ((ArrayOfVirtualDevice)devices).getVirtualDevice() == null ) {
+                        continue;
+                    }
+                    for( VirtualDevice device : ((ArrayOfVirtualDevice)devices).getVirtualDevice() ) {
+                        if( device instanceof VirtualDisk && device.getBacking() instanceof VirtualDeviceFileBackingInfo ) {
+                            if( filePath.equals(((VirtualDeviceFileBackingInfo)device.getBacking()).getFileName()) ) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Follows a search task, returning its permit once the task completes.
+     */
+    private @Nonnull TrackedTask start(@Nonnull final Semaphore permits, @Nonnull Task task) throws CloudException, InternalException {
+        TrackedTask tracked = null;
+
+        try {
+            tracked = TaskTracker.getInstance(provider).track(task);
+        }
+        finally {
+            if( tracked == null ) {
+                permits.release();
+            }
+        }
+        tracked.addListener(new TrackedTask.Listener() {
+            public void taskCompleted(@Nonnull TrackedTask task) {
+                permits.release();
+            }
+        });
+        return tracked;
+    }
+
+    /**
+     * Records the disks of one searched folder under its top-level folder, leaving out the folder entries themselves.
+     */
+    private void add(@Nonnull Listing listing, @Nonnull String folder, @Nonnull HostDatastoreBrowserSearchResults r) {
+        List<HostDatastoreBrowserSearchResults> list = listing.folders.get(folder);
+        List<FileInfo> disks = new ArrayList<FileInfo>();
+
+        if( list == null ) {
+            list = new ArrayList<HostDatastoreBrowserSearchResults>();
+            listing.folders.put(folder, list);
+        }
+        if( r.getFile() != null ) {
+            for( FileInfo file : r.getFile() ) {
+                if( !(file instanceof FolderFileInfo) ) {
+                    disks.add(file);
+                }
+            }
+        }
+        if( disks.isEmpty() ) {
+            return;
+        }
+        HostDatastoreBrowserSearchResults copy = new HostDatastoreBrowserSearchResults();
+
+        copy.setDatastore(r.getDatastore());
+        copy.setFolderPath(r.getFolderPath());
+        copy.setFile(disks.toArray(new FileInfo[disks.size()]));
+        list.add(copy);
+    }
+
+    private @Nonnull Map<String,Long> getFolderTimes(@Nonnull HostDatastoreBrowserSearchResults root) {
+        HashMap<String,Long> times = new HashMap<String, Long>();
+
+        if( root.getFile() != null ) {
+            for( FileInfo file : root.getFile() ) {
+                if( file instanceof FolderFileInfo ) {
+                    times.put(file.getPath(), (file.getModification() == null ? 0L : file.getModification().getTimeInMillis()));
+                }
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Identifies the top-level folder of a datastore path such as <code>[ds] vm/</code>.
+     * @param folderPath the datastore path of a folder
+     * @return the name of the top-level folder or an empty string for the root of the datastore
+     */
+    static @Nonnull String getTopFolder(@Nullable String folderPath) {
+        if( folderPath == null ) {
+            return "";
+        }
+        String path = folderPath.substring(folderPath.indexOf(']') + 1).trim();
+
+        while( path.startsWith("/") ) {
+            path = path.substring(1);
+        }
+        int idx = path.indexOf('/');
+
+        return (idx < 0 ? path : path.substring(0, idx));
+    }
+
+    private @Nonnull List<HostDatastoreBrowserSearchResults> toList(@Nullable Object result) {
+        List<HostDatastoreBrowserSearchResults> list = new ArrayList<HostDatastoreBrowserSearchResults>();
+
+        if( result instanceof ArrayOfHostDatastoreBrowserSearchResults ) {
+            HostDatastoreBrowserSearchResults[] res = ((ArrayOfHostDatastoreBrowserSearchResults)result).getHostDatastoreBrowserSearchResults();
+
+            if( res != null ) {
+                for( HostDatastoreBrowserSearchResults r : res ) {
+                    list.add(r);
+                }
+            }
+        }
+        return list;
+    }
+}
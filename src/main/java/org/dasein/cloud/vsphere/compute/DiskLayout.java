@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ParaVirtualSCSIController;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDeviceConfigSpec;
+import com.vmware.vim25.VirtualDeviceConfigSpecOperation;
+import com.vmware.vim25.VirtualDeviceFileBackingInfo;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualLsiLogicSASController;
+import com.vmware.vim25.VirtualSCSIController;
+import com.vmware.vim25.VirtualSCSISharing;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the SCSI controllers of a virtual machine and the unit numbers taken on each so that any number of disks can
+ * be added in a single reconfiguration. The controllers to add are returned as device changes to submit with the
+ * disks.
+ * <p>
+ * The policy is set with the custom property &quot;diskControllerPolicy&quot;: <code>fill</code> (the default) puts a
+ * disk on the first controller with a free unit, in the order the virtual machine lists its controllers, and adds a
+ * controller only when every existing one is full; <code>spread</code> adds controllers until the virtual machine has
+ * &quot;diskControllerCount&quot; of them (4 by default, the most a virtual machine can have) and puts each disk on
+ * the controller with the fewest disks, so that IO is spread over several queues. New controllers are LSI Logic SAS
+ * unless &quot;diskControllerType&quot; is <code>paravirtual</code>, which adds VMware Paravirtual SCSI controllers
+ * for their deeper queues and lower CPU cost per IO. The guest needs the PVSCSI driver to see disks on them.
+ * </p>
+ */
+class DiskLayout {
+    static private final int MAX_BUSES       = 4;
+    static private final int MAX_UNITS       = 16;
+    static private final int CONTROLLER_UNIT = 7;
+
+    /**
+     * The controller and unit number chosen for a new disk.
+     */
+    static class Slot {
+        private int controllerKey;
+        private int busNumber;
+        private int unitNumber;
+
+        /**
+         * @return the key to set on the disk, a temporary key if the controller is being added
+         */
+        int getControllerKey() {
+            return controllerKey;
+        }
+
+        int getBusNumber() {
+            return busNumber;
+        }
+
+        int getUnitNumber() {
+            return unitNumber;
+        }
+    }
+
+    static private class Controller {
+        private int       key;
+        private int       busNumber;
+        private int       disks;
+        private boolean[] used = new boolean[MAX_UNITS];
+
+        private int getFreeUnit() {
+            for( int unit = 0; unit < MAX_UNITS; unit++ ) {
+                if( !used[unit] ) {
+                    return unit;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private boolean                       spread;
+    private int                           controllerCount;
+    private boolean                       paravirtual;
+    private List<Controller>              controllers = new ArrayList<Controller>();
+    private List<VirtualDeviceConfigSpec> changes     = new ArrayList<VirtualDeviceConfigSpec>();
+    private Set<String>                   fileNames   = new HashSet<String>();
+    private int                           nextKey     = -100;
+
+    /**
+     * @param provider the cloud provider whose custom properties set the policy
+     * @param devices the current devices of the virtual machine
+     */
+    DiskLayout(@Nonnull PrivateCloud provider, @Nullable VirtualDevice[] devices) {
+        this("spread".equalsIgnoreCase(provider.getCustomProperty("diskControllerPolicy")),
+                provider.getIntProperty("diskControllerCount", MAX_BUSES),
+                "paravirtual".equalsIgnoreCase(provider.getCustomProperty("diskControllerType")),
+                devices);
+    }
+
+    /**
+     * @param spread true to spread disks over controllers, false to fill each controller in turn
+     * @param controllerCount the number of controllers to spread over
+     * @param paravirtual true to add VMware Paravirtual SCSI controllers, false for LSI Logic SAS
+     * @param devices the current devices of the virtual machine
+     */
+    DiskLayout(boolean spread, int controllerCount, boolean paravirtual, @Nullable VirtualDevice[] devices) {
+        this.spread = spread;
+        this.controllerCount = Math.max(1, Math.min(MAX_BUSES, controllerCount));
+        this.paravirtual = paravirtual;
+        if( devices == null ) {
+            return;
+        }
+        for( VirtualDevice device : devices ) {
+            if( device instanceof VirtualSCSIController ) {
+                Controller controller = new Controller();
+
+                controller.key = device.getKey();
+                controller.busNumber = (( VirtualSCSIController ) device).getBusNumber();
+                controller.used[CONTROLLER_UNIT] = true;
+                controllers.add(controller);
+            }
+        }
+        for( VirtualDevice device : devices ) {
+            if( device instanceof VirtualDisk ) {
+                Controller controller = getController(device.getControllerKey());
+
+                if( controller != null && device.getUnitNumber() != null && device.getUnitNumber() < MAX_UNITS ) {
+                    controller.used[device.getUnitNumber()] = true;
+                    controller.disks++;
+                }
+                if( device.getBacking() instanceof VirtualDeviceFileBackingInfo ) {
+                    fileNames.add((( VirtualDeviceFileBackingInfo ) device.getBacking()).getFileName());
+                }
+            }
+        }
+    }
+
+    private @Nullable Controller getController(@Nullable Integer key) {
+        if( key != null ) {
+            for( Controller controller : controllers ) {
+                if( controller.key == key ) {
+                    return controller;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a free slot for a new disk according to the policy, adding a controller if the policy calls for one or
+     * there is no room on the existing ones.
+     * @param preferredUnit the unit number asked for by the caller or null to take any free unit
+     * @return the slot
+     * @throws CloudException the virtual machine has no free unit on any controller and no free bus for another
+     */
+    @Nonnull Slot allocate(@Nullable Integer preferredUnit) throws CloudException {
+        // when spreading, the controller is chosen first and the preferred unit only applies within it
+        if( !spread && preferredUnit != null && preferredUnit >= 0 && preferredUnit < MAX_UNITS ) {
+            for( Controller controller : controllers ) {
+                if( !controller.used[preferredUnit] ) {
+                    return take(controller, preferredUnit);
+                }
+            }
+        }
+        Controller best = null;
+
+        if( !spread ) {
+            for( Controller controller : controllers ) {
+                if( controller.getFreeUnit() >= 0 ) {
+                    best = controller;
+                    break;
+                }
+            }
+        }
+        else if( controllers.size() >= controllerCount || !hasFreeBus() ) {
+            best = getLeastLoaded();
+        }
+        // otherwise an empty controller beats sharing a queue
+        if( best == null ) {
+            best = addController();
+        }
+        int unit = best.getFreeUnit();
+
+        if( preferredUnit != null && preferredUnit >= 0 && preferredUnit < MAX_UNITS && !best.used[preferredUnit] ) {
+            unit = preferredUnit;
+        }
+        return take(best, unit);
+    }
+
+    private @Nullable Controller getLeastLoaded() {
+        Controller best = null;
+
+        for( Controller controller : controllers ) {
+            if( controller.getFreeUnit() >= 0 && (best == null || controller.disks < best.disks) ) {
+                best = controller;
+            }
+        }
+        return best;
+    }
+
+    private boolean hasFreeBus() {
+        return (getFreeBus() < MAX_BUSES);
+    }
+
+    private int getFreeBus() {
+        int bus = 0;
+
+        while( bus < MAX_BUSES ) {
+            boolean taken = false;
+
+            for( Controller controller : controllers ) {
+                if( controller.busNumber == bus ) {
+                    taken = true;
+                    break;
+                }
+            }
+            if( !taken ) {
+                break;
+            }
+            bus++;
+        }
+        return bus;
+    }
+
+    private @Nonnull Slot take(@Nonnull Controller controller, int unit) {
+        Slot slot = new Slot();
+
+        controller.used[unit] = true;
+        controller.disks++;
+        slot.controllerKey = controller.key;
+        slot.busNumber = controller.busNumber;
+        slot.unitNumber = unit;
+        return slot;
+    }
+
+    private @Nonnull Controller addController() throws CloudException {
+        int bus = getFreeBus();
+
+        if( bus >= MAX_BUSES ) {
+            throw new CloudException("No free SCSI unit or bus left for another disk");
+        }
+        VirtualSCSIController scsiCtrl = (paravirtual ? new ParaVirtualSCSIController() : new VirtualLsiLogicSASController());
+        VirtualDeviceConfigSpec scsiSpec = new VirtualDeviceConfigSpec();
+        Controller controller = new Controller();
+
+        controller.key = nextKey--;
+        controller.busNumber = bus;
+        controller.used[CONTROLLER_UNIT] = true;
+        scsiCtrl.setKey(controller.key);
+        scsiCtrl.setBusNumber(bus);
+        scsiCtrl.setSharedBus(VirtualSCSISharing.noSharing);
+        scsiSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
+        scsiSpec.setDevice(scsiCtrl);
+        changes.add(scsiSpec);
+        controllers.add(controller);
+        return controller;
+    }
+
+    /**
+     * @return the changes adding the controllers that {@link #allocate(Integer)} needed, to submit ahead of the disks
+     */
+    @Nonnull List<VirtualDeviceConfigSpec> getControllerChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the backing files of the disks the virtual machine had when the layout was read
+     */
+    @Nonnull Set<String> getFileNames() {
+        return fileNames;
+    }
+}
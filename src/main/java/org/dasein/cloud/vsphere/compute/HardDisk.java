@@ -29,7 +29,12 @@ import org.dasein.cloud.compute.*;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.StoragePool;
 import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
 import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Kilobyte;
@@ -63,6 +68,10 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         return instance;
     }
 
+    private @Nonnull TrackedTask track(@Nonnull Task task) throws CloudException, InternalException {
+        return TaskTracker.getInstance(provider).track(task);
+    }
+
     private transient volatile HardDiskCapabilities capabilities;
     @Override
     public VolumeCapabilities getCapabilities() throws CloudException, InternalException {
@@ -94,50 +103,70 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
     public void attach(@Nonnull String volumeId, @Nonnull String toServer, @Nonnull String deviceId) throws InternalException, CloudException {
         APITrace.begin(provider, "HardDisk.attach");
         try {
-            try {
-                ServiceInstance instance = getServiceInstance();
-                Vm support = provider.getComputeServices().getVirtualMachineSupport();
-                com.vmware.vim25.mo.VirtualMachine vm = support.getVirtualMachine(instance, toServer);
-                if (vm == null) {
-                    throw new CloudException("Unable to find vm with id "+toServer);
-                }
+            Integer unit = null;
 
-                Volume volume = getVolume(volumeId);
+            try {
+                unit = Integer.parseInt(deviceId);
+            }
+            catch( NumberFormatException ignore ) {
+                // not a unit number, so any free unit will do
+            }
+            attach(toServer, Collections.singletonList(volumeId), Collections.singletonList(unit));
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                VirtualDeviceConfigSpec[] machineSpecs;
+    /**
+     * Attaches several volumes to a virtual machine with a single reconfiguration. The disks are laid out over the
+     * SCSI controllers of the virtual machine by the policy described in {@link DiskLayout}, which may add controllers.
+     * @param toServer the virtual machine to attach the volumes to
+     * @param volumeIds the volumes to attach
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the virtual machine or a volume does not exist or the reconfiguration failed
+     */
+    public void attach(@Nonnull String toServer, @Nonnull List<String> volumeIds) throws InternalException, CloudException {
+        APITrace.begin(provider, "HardDisk.attachMany");
+        try {
+            attach(toServer, volumeIds, null);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                VirtualDevice[] devices = vm.getConfig().getHardware().getDevice();
-                int cKey = 1000;
-                boolean scsiExists = false;
-                for (VirtualDevice device : devices) {
-                    if (device instanceof VirtualSCSIController) {
-                        if (!scsiExists) {
-                            cKey = device.getKey();
-                            scsiExists = true;
-                        }
-                    }
-                }
+    private void attach(@Nonnull String toServer, @Nonnull List<String> volumeIds, @Nullable List<Integer> units) throws InternalException, CloudException {
+        if (volumeIds.isEmpty()) {
+            return;
+        }
+        try {
+            ServiceInstance instance = getServiceInstance();
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+            com.vmware.vim25.mo.VirtualMachine vm = support.getVirtualMachine(instance, toServer);
+            if (vm == null) {
+                throw new CloudException("Unable to find vm with id "+toServer);
+            }
 
-                if (!scsiExists) {
-                    machineSpecs = new VirtualDeviceConfigSpec[2];
-                    VirtualDeviceConfigSpec scsiSpec =
-                            new VirtualDeviceConfigSpec();
-                    scsiSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
-                    VirtualLsiLogicSASController scsiCtrl =
-                            new VirtualLsiLogicSASController();
-                    scsiCtrl.setKey(cKey);
-                    scsiCtrl.setBusNumber(0);
-                    scsiCtrl.setSharedBus(VirtualSCSISharing.noSharing);
-                    scsiSpec.setDevice(scsiCtrl);
-                    machineSpecs[0] = scsiSpec;
-                } else {
-                    machineSpecs = new VirtualDeviceConfigSpec[1];
+            List<Volume> volumes = new ArrayList<Volume>();
+            for (String volumeId : volumeIds) {
+                Volume volume = getVolume(volumeId);
+                if (volume == null) {
+                    throw new CloudException("Unable to find volume with id "+volumeId);
                 }
+                volumes.add(volume);
+            }
 
+            DiskLayout layout = new DiskLayout(provider, vm.getConfig().getHardware().getDevice());
+            List<VirtualDeviceConfigSpec> diskSpecs = new ArrayList<VirtualDeviceConfigSpec>();
+            List<VirtualDisk> disks = new ArrayList<VirtualDisk>();
+            for (int i=0; i<volumes.size(); i++) {
+                DiskLayout.Slot slot = layout.allocate(units == null ? null : units.get(i));
                 VirtualDisk disk = new VirtualDisk();
 
-                disk.controllerKey = cKey;
-                disk.unitNumber = Integer.parseInt(deviceId);
+                disk.key = -(i + 1);
+                disk.controllerKey = slot.getControllerKey();
+                disk.unitNumber = slot.getUnitNumber();
 
                 VirtualDeviceConfigSpec diskSpec =
                         new VirtualDeviceConfigSpec();
@@ -145,50 +174,44 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                 diskSpec.device = disk;
 
                 VirtualDiskFlatVer2BackingInfo diskFileBacking = new VirtualDiskFlatVer2BackingInfo();
-                String fileName = volume.getTag("filePath");
-                diskFileBacking.fileName = fileName;
+                diskFileBacking.fileName = volumes.get(i).getTag("filePath");
                 diskFileBacking.diskMode = "persistent";
                 diskFileBacking.thinProvisioned = true;
                 disk.backing = diskFileBacking;
+                diskSpecs.add(diskSpec);
+                disks.add(disk);
+            }
 
+            // any controllers go in ahead of the disks that use them
+            List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>(layout.getControllerChanges());
+            machineSpecs.addAll(diskSpecs);
 
-                if (!scsiExists) {
-                    machineSpecs[1] = diskSpec;
-                }
-                else {
-                    machineSpecs[0] = diskSpec;
-                }
-
-
-                VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
-                spec.setDeviceChange(machineSpecs);
+            VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+            spec.setDeviceChange(machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]));
 
-                CloudException lastError = null;
-                Task task = vm.reconfigVM_Task(spec);
-                String status = task.waitForTask();
+            TrackedTask tracked = track(VmTasks.reconfigure(vm, spec));
+            String status = tracked.waitForTask();
 
-                if( !status.equals(Task.SUCCESS) ) {
-                    lastError = new CloudException("Failed to attach volume: " + task.getTaskInfo().getError().getLocalizedMessage());
-                }
-                if( lastError != null ) {
-                    throw lastError;
-                }
+            if( !status.equals(Task.SUCCESS) ) {
+                throw new CloudException("Failed to attach volume: " + tracked.getErrorMessage());
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException(e);
-            }
-            catch( RuntimeFault e ) {
-                throw new InternalException(e);
-            }
-            catch( RemoteException e ) {
-                throw new CloudException(e);
-            }
-            catch (InterruptedException e) {
-                throw new CloudException(e);
+            // the device keys are assigned by vSphere, so the next lookup finds each disk by its file
+            VolumeIndex index = VolumeIndex.getInstance(provider);
+            for (int i=0; i<volumes.size(); i++) {
+                index.put(VolumeIndex.Entry.attached(volumes.get(i), vm.getMOR(), disks.get(i)));
             }
         }
-        finally {
-            APITrace.end();
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+        catch (InterruptedException e) {
+            throw new CloudException(e);
         }
     }
 
@@ -205,130 +228,220 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             com.vmware.vim25.mo.VirtualMachine vm = vmSupport.getVirtualMachine(instance, options.getProviderVirtualMachineId());
 
             if( vm != null ) {
-                try {
-                    //volumes change
-                    VirtualDeviceConfigSpec[] machineSpecs = null;
-
-                    VirtualDevice[] devices = vm.getConfig().getHardware().getDevice();
-                    int cKey = 1000;
-                    boolean scsiExists = false;
-                    int numDisks = 0;
-                    List<String> diskNames = new ArrayList<String>();
-                    for (VirtualDevice device : devices) {
-                        if (device instanceof VirtualSCSIController) {
-                            if (!scsiExists) {
-                                cKey = device.getKey();
-                                scsiExists = true;
-                            }
-                        }
-                        else if (device instanceof VirtualDisk) {
-                            numDisks++;
-                            VirtualDisk vDisk = (VirtualDisk) device;
-                            VirtualDiskFlatVer2BackingInfo bkInfo = (VirtualDiskFlatVer2BackingInfo) vDisk.getBacking();
-                            diskNames.add(bkInfo.getFileName());
-                        }
-                    }
+                return createVolumes(instance, vm, Collections.singletonList(options)).get(0);
+            }
+            return null;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                    if (!scsiExists) {
-                        machineSpecs = new VirtualDeviceConfigSpec[2];
-                        VirtualDeviceConfigSpec scsiSpec = new VirtualDeviceConfigSpec();
-                        scsiSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
-                        VirtualLsiLogicSASController scsiCtrl = new VirtualLsiLogicSASController();
-                        scsiCtrl.setKey(cKey);
-                        scsiCtrl.setBusNumber(0);
-                        scsiCtrl.setSharedBus(VirtualSCSISharing.noSharing);
-                        scsiSpec.setDevice(scsiCtrl);
-                        machineSpecs[0] = scsiSpec;
-                    } else {
-                        machineSpecs = new VirtualDeviceConfigSpec[1];
-                    }
-                    // Associate the virtual disk with the scsi controller
-                    VirtualDisk disk = new VirtualDisk();
-
-                    disk.controllerKey = cKey;
-                    disk.unitNumber = numDisks;
-                    //Storage<Gigabyte> diskGB = options.getVolumeSize();
-                    //Storage<Kilobyte> diskByte = (Storage<Kilobyte>) (diskGB.convertTo(Storage.KILOBYTE)); //Proper conversion is not desired here
-                    //Storage<Kilobyte> diskByte = new Storage<Kilobyte>((diskGB.intValue() * 1000), Storage.KILOBYTE);
-                    //disk.capacityInKB = diskByte.longValue();
-                    disk.setCapacityInKB(options.getVolumeSize().intValue() * 1000000);
-
-                    VirtualDeviceConfigSpec diskSpec = new VirtualDeviceConfigSpec();
-                    diskSpec.operation = VirtualDeviceConfigSpecOperation.add;
-                    diskSpec.fileOperation = VirtualDeviceConfigSpecFileOperation.create;
-                    diskSpec.device = disk;
-
-                    VirtualDiskFlatVer2BackingInfo diskFileBacking = new VirtualDiskFlatVer2BackingInfo();
-                    String fileName2 = "[" + vm.getDatastores()[0].getName() + "]" + vm.getName() + "/" + options.getName();
-                    diskFileBacking.setFileName(fileName2);
-                    diskFileBacking.setDiskMode("persistent");
-                    diskFileBacking.setThinProvisioned(false);
-                    diskFileBacking.setWriteThrough(false);
-                    disk.backing = diskFileBacking;
-
-                    if (!scsiExists) {
-                        machineSpecs[1] = diskSpec;
-                    }
-                    else {
-                        machineSpecs[0] = diskSpec;
-                    }
+    /**
+     * Creates several volumes on a virtual machine with a single reconfiguration. Each disk is placed on the datastore
+     * with the most room for it and laid out over the SCSI controllers of the virtual machine by the policy described
+     * in {@link DiskLayout}, which may add controllers.
+     * @param vmId the virtual machine to create the volumes on
+     * @param options the volumes to create; the virtual machine IDs they carry are ignored
+     * @return the IDs of the new volumes, in the order of the options
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the virtual machine does not exist, no datastore has room or the reconfiguration failed
+     */
+    public @Nonnull List<String> createVolumes(@Nonnull String vmId, @Nonnull List<VolumeCreateOptions> options) throws InternalException, CloudException {
+        APITrace.begin(provider, "HardDisk.createVolumes");
+        try {
+            ServiceInstance instance = getServiceInstance();
+            com.vmware.vim25.mo.VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(instance, vmId);
 
-                    VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
-                    spec.setDeviceChange(machineSpecs);
+            if (vm == null) {
+                throw new CloudException("Unable to find vm with id "+vmId);
+            }
+            return createVolumes(instance, vm, options);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                    CloudException lastError;
-                    Task task = vm.reconfigVM_Task(spec);
+    private @Nonnull List<String> createVolumes(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull List<VolumeCreateOptions> options) throws InternalException, CloudException {
+        if (options.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<DatastorePlacement.Reservation> reservations = new ArrayList<DatastorePlacement.Reservation>();
+        TrackedTask tracked = null;
 
-                    String status = task.waitForTask();
+        try {
+            DiskLayout layout = new DiskLayout(provider, vm.getConfig().getHardware().getDevice());
+            List<VirtualDeviceConfigSpec> diskSpecs = new ArrayList<VirtualDeviceConfigSpec>();
+            List<DiskLayout.Slot> slots = new ArrayList<DiskLayout.Slot>();
+            String vmName = vm.getName();
+            Set<String> folders = new HashSet<String>();
+
+            // any datastore the vm's host can see will do, so put each disk where there is room for it
+            DatastorePlacement placement = new DatastorePlacement(getProvider());
+            ManagedObjectReference host = vm.getRuntime().getHost();
+            List<DatastorePlacement.Candidate> datastores = placement.getCandidates(instance, (host == null ? vm.getMOR() : host));
+
+            for (VolumeCreateOptions option : options) {
+                DiskLayout.Slot slot = layout.allocate(null);
+                VirtualDisk disk = new VirtualDisk();
 
-                    if( status.equals(Task.SUCCESS) ) {
-                        long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+                disk.key = -(slots.size() + 1);
+                disk.controllerKey = slot.getControllerKey();
+                disk.unitNumber = slot.getUnitNumber();
+                disk.setCapacityInKB(option.getVolumeSize().intValue() * 1000000L);
 
-                        while( System.currentTimeMillis() < timeout ) {
-                            try { Thread.sleep(10000L); }
-                            catch( InterruptedException ignore ) { }
+                VirtualDeviceConfigSpec diskSpec = new VirtualDeviceConfigSpec();
+                diskSpec.operation = VirtualDeviceConfigSpecOperation.add;
+                diskSpec.fileOperation = VirtualDeviceConfigSpecFileOperation.create;
+                diskSpec.device = disk;
 
-                            vm = vmSupport.getVirtualMachine(instance, options.getProviderVirtualMachineId());
-                            devices = vm.getConfig().getHardware().getDevice();
-                            for (VirtualDevice device : devices) {
-                                if (device instanceof VirtualDisk) {
-                                    VirtualDisk vDisk = (VirtualDisk) device;
-                                    VirtualDiskFlatVer2BackingInfo bkInfo = (VirtualDiskFlatVer2BackingInfo) vDisk.getBacking();
-                                    String diskFileName = bkInfo.getFileName();
-                                    if (!diskNames.contains(diskFileName)) {
-                                        diskFileName = diskFileName.substring(diskFileName.lastIndexOf("/") + 1);
-                                        return diskFileName;
-                                    }
-                                }
-                            }
-                        }
-                        lastError = new CloudException("Unable to identify new volume.");
-                    }
-                    else {
-                        lastError = new CloudException("Failed to create volume: " + task.getTaskInfo().getError().getLocalizedMessage());
-                    }
-                    if( lastError != null ) {
-                        throw lastError;
-                    }
-                    throw new CloudException("No volume and no error");
+                DatastorePlacement.Reservation reservation = placement.place(datastores, disk.getCapacityInKB() * 1024L);
+
+                if( reservation == null ) {
+                    throw new CloudException("No datastore has room for a " + option.getVolumeSize() + " volume on " + vmName);
                 }
-                catch( InvalidProperty e ) {
-                    throw new CloudException(e);
+                reservations.add(reservation);
+                VirtualDiskFlatVer2BackingInfo diskFileBacking = new VirtualDiskFlatVer2BackingInfo();
+                String folder = "[" + reservation.getName() + "] " + vmName;
+
+                // the chosen datastore need not be the vm's home, so its folder may not exist there yet
+                if (folders.add(folder)) {
+                    makeDirectory(instance, folder);
                 }
-                catch( RuntimeFault e ) {
-                    throw new InternalException(e);
+                String fileName2 = folder + "/" + option.getName();
+                diskFileBacking.setFileName(fileName2);
+                diskFileBacking.setDiskMode("persistent");
+                diskFileBacking.setThinProvisioned(false);
+                diskFileBacking.setWriteThrough(false);
+                disk.backing = diskFileBacking;
+                diskSpecs.add(diskSpec);
+                slots.add(slot);
+            }
+
+            // any controllers go in ahead of the disks that use them
+            List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>(layout.getControllerChanges());
+            machineSpecs.addAll(diskSpecs);
+
+            VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+            spec.setDeviceChange(machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]));
+
+            tracked = track(VmTasks.reconfigure(vm, spec));
+            for (DatastorePlacement.Reservation reservation : reservations) {
+                tracked.addListener(reservation);
+            }
+            String status = tracked.waitForTask();
+
+            if( !status.equals(Task.SUCCESS) ) {
+                throw new CloudException("Failed to create volume: " + tracked.getErrorMessage());
+            }
+            return identifyNewDisks(instance, vm, layout, slots);
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+        catch (InterruptedException e) {
+            throw new CloudException(e);
+        }
+        finally {
+            if( tracked == null ) {
+                for (DatastorePlacement.Reservation reservation : reservations) {
+                    reservation.release();
                 }
-                catch( RemoteException e ) {
-                    throw new CloudException(e);
+            }
+        }
+    }
+
+    private void makeDirectory(@Nonnull ServiceInstance instance, @Nonnull String folder) throws InternalException, CloudException {
+        Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, provider.getContext().getRegionId());
+
+        if (dc == null) {
+            throw new CloudException("No such dc: " + provider.getContext().getRegionId());
+        }
+        try {
+            new FileManager(instance.getServerConnection(), instance.getServiceContent().getFileManager()).makeDirectory(folder, dc, true);
+        }
+        catch( FileAlreadyExists ignore ) {
+            // the usual case on the vm's home datastore
+        }
+        catch( FileFault e ) {
+            throw new CloudException("Unable to create " + folder + ": " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Finds the disks added by a reconfiguration from the bus and unit each was given, polling the virtual machine
+     * until all of them show up, and indexes them.
+     * @param instance the service instance to query
+     * @param vm the reconfigured virtual machine
+     * @param layout the layout the disks were allocated from
+     * @param slots the slot of each new disk
+     * @return the volume ID of each new disk, in the order of the slots
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the disks did not show up within 20 minutes
+     */
+    private @Nonnull List<String> identifyNewDisks(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull DiskLayout layout, @Nonnull List<DiskLayout.Slot> slots) throws InternalException, CloudException {
+        PropertyRetriever retriever = new PropertyRetriever(instance);
+        VolumeIndex index = VolumeIndex.getInstance(provider);
+        long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+
+        while( true ) {
+            ObjectProperties props = retriever.retrieve(vm.getMOR(), "config.hardware.device");
+            Object devices = (props == null ? null : props.get("config.hardware.device"));
+
+            if (devices != null && ((ArrayOfVirtualDevice)devices).getVirtualDevice() != null) {
+                VirtualDevice[] list = ((ArrayOfVirtualDevice)devices).getVirtualDevice();
+                Map<Integer,Integer> buses = new HashMap<Integer, Integer>();
+                String[] ids = new String[slots.size()];
+                int found = 0;
+
+                for (VirtualDevice device : list) {
+                    if (device instanceof VirtualSCSIController) {
+                        buses.put(device.getKey(), ((VirtualSCSIController)device).getBusNumber());
+                    }
                 }
-                catch (InterruptedException e) {
-                    throw new CloudException(e);
+                for (VirtualDevice device : list) {
+                    if (!(device instanceof VirtualDisk) || !(device.getBacking() instanceof VirtualDeviceFileBackingInfo)) {
+                        continue;
+                    }
+                    String filePath = ((VirtualDeviceFileBackingInfo)device.getBacking()).getFileName();
+                    Integer bus = buses.get(device.getControllerKey());
+
+                    if (filePath == null || bus == null || device.getUnitNumber() == null || layout.getFileNames().contains(filePath)) {
+                        continue;
+                    }
+                    for (int i=0; i<slots.size(); i++) {
+                        DiskLayout.Slot slot = slots.get(i);
+
+                        if (ids[i] == null && slot.getBusNumber() == bus && slot.getUnitNumber() == device.getUnitNumber()) {
+                            ids[i] = filePath.substring(filePath.lastIndexOf("/") + 1);
+                            index.put(VolumeIndex.Entry.attached(ids[i], filePath, vm.getMOR(), (VirtualDisk)device));
+                            found++;
+                            break;
+                        }
+                    }
+                }
+                if (found == slots.size()) {
+                    return Arrays.asList(ids);
                 }
             }
-            return null;
-        }
-        finally {
-            APITrace.end();
+            if (System.currentTimeMillis() >= timeout) {
+                throw new CloudException("Unable to identify new volume.");
+            }
+            try { Thread.sleep(10000L); }
+            catch( InterruptedException ignore ) { }
         }
     }
 
@@ -337,6 +450,9 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         APITrace.begin(provider, "HardDisk.detach");
         try {
             Volume volume = getVolume(volumeId);
+            if (volume == null) {
+                throw new CloudException("Unable to find volume with id "+volumeId);
+            }
             if (volume.getProviderVirtualMachineId() == null) {
                 throw new CloudException("Volume not currently attached");
             }
@@ -349,11 +465,18 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                 try {
                     VirtualDeviceConfigSpec[] machineSpecs = new VirtualDeviceConfigSpec[1];
 
-                    VirtualDevice[] devices = vm.getConfig().getHardware().getDevice();
+                    // getVolume() has just read the disk from this vm, so its index entry has the current keys
+                    VolumeIndex.Entry entry = VolumeIndex.getInstance(provider).get(volumeId);
                     String diskId;
                     int diskKey = 0;
                     int controller = 0;
                     boolean found = false;
+                    if (entry != null && entry.getVirtualMachine() != null && entry.getDeviceKey() != 0 && vm.getMOR().getVal().equals(entry.getVirtualMachine().getVal())) {
+                        diskKey = entry.getDeviceKey();
+                        controller = entry.getControllerKey();
+                        found = true;
+                    }
+                    VirtualDevice[] devices = (found ? new VirtualDevice[0] : vm.getConfig().getHardware().getDevice());
                     for (VirtualDevice device : devices) {
                         if (device instanceof VirtualDisk) {
                             VirtualDisk disk = (VirtualDisk)device;
@@ -389,16 +512,18 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                         spec.setDeviceChange(machineSpecs);
 
                         CloudException lastError = null;
-                        Task task = vm.reconfigVM_Task(spec);
+                        Task task = VmTasks.reconfigure(vm, spec);
 
-                        String status = task.waitForTask();
+                        TrackedTask tracked = track(task);
+                        String status = tracked.waitForTask();
 
                         if( !status.equals(Task.SUCCESS) ) {
-                            lastError = new CloudException("Failed to update VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                            lastError = new CloudException("Failed to update VM: " + tracked.getErrorMessage());
                         }
                         if( lastError != null ) {
                             throw lastError;
                         }
+                        VolumeIndex.getInstance(provider).put(VolumeIndex.Entry.detached(toDetachedVolume(volume)));
                     }
                     else {
                         throw new CloudException("Couldn't find device "+volumeId+" to detach in vm "+vm.getName());
@@ -433,6 +558,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         try {
             List<Volume> list = new ArrayList<Volume>();
             List<String> fileNames = new ArrayList<String>();
+            Map<String,VolumeIndex.Entry> entries = new HashMap<String, VolumeIndex.Entry>();
             ProviderContext ctx = provider.getContext();
             if (ctx != null) {
                 if (ctx.getRegionId() == null) {
@@ -444,20 +570,29 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
 
             //get attached volumes
             Folder folder = provider.getVmFolder(instance);
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
 
-            ManagedEntity[] mes;
+            ManagedEntity[] mes = null;
 
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            if (snapshot != null) {
+                for (Volume d : listAttachedVolumes(snapshot, true, entries)) {
+                    list.add(d);
+                    fileNames.add(d.getProviderVolumeId());
+                }
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            else {
+                try {
+                    mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+                }
+                catch( InvalidProperty e ) {
+                    throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+                }
+                catch( RuntimeFault e ) {
+                    throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+                }
+                catch( RemoteException e ) {
+                    throw new CloudException("Error in cluster processing request: " + e.getMessage());
+                }
             }
 
             if( mes != null && mes.length > 0 ) {
@@ -495,6 +630,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                                         d.setGuestOperatingSystem(guestOs);
                                         list.add(d);
                                         fileNames.add(d.getProviderVolumeId());
+                                        index(entries, VolumeIndex.Entry.attached(d, vm.getMOR(), disk));
                                     }
                                 }
                             }
@@ -505,66 +641,172 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             }
 
             //get .vmdk files
-            Collection<StoragePool> pools = provider.getDataCenterServices().listStoragePools();
-            Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
-            String name = dc.getName();
-            for (Datastore ds : dc.getDatastores()) {
-                String dataCenterId = null;
-                for (StoragePool pool : pools) {
-                    if (pool.getStoragePoolName().equalsIgnoreCase(ds.getName())) {
-                        dataCenterId = pool.getDataCenterId();
-                        break;
-                    }
+            HashMap<String,String> poolDataCenters = new HashMap<String, String>();
+
+            for (StoragePool pool : provider.getDataCenterServices().listStoragePools()) {
+                String key = pool.getStoragePoolName().toLowerCase();
+
+                if (!poolDataCenters.containsKey(key)) {
+                    poolDataCenters.put(key, pool.getDataCenterId());
                 }
-                HostDatastoreBrowser browser = ds.getBrowser();
-                try {
-                    Task task = browser.searchDatastoreSubFolders_Task("[" + ds.getName() + "]", null);
-                    String status = task.waitForTask();
-                    if( status.equals(Task.SUCCESS) ) {
-                        ArrayOfHostDatastoreBrowserSearchResults result = (ArrayOfHostDatastoreBrowserSearchResults)task.getTaskInfo().getResult();
-                        HostDatastoreBrowserSearchResults[] res = result.getHostDatastoreBrowserSearchResults();
-                        for (HostDatastoreBrowserSearchResults r : res) {
-                            FileInfo[] files = r.getFile();
-                            if (files != null) {
-                                for (FileInfo file : files) {
-                                    String filePath = file.getPath();
-                                    if (filePath.endsWith(".vmdk") && !filePath.endsWith("-flat.vmdk")) {
-                                        if (!fileNames.contains(file.getPath())) {
-                                            Volume d = toVolume(file, dataCenterId, ctx.getRegionId());
-                                            if (d != null) {
-                                                d.setTag("filePath", r.getFolderPath()+d.getProviderVolumeId());
-                                                list.add(d);
-                                            }
-                                        }
+            }
+            Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
+
+            if (dc == null) {
+                throw new CloudException("No such dc: " + ctx.getRegionId());
+            }
+            Set<String> attached = new HashSet<String>(fileNames);
+            Map<String,List<HostDatastoreBrowserSearchResults>> searches = new DatastoreSearch(provider).search(instance, dc);
+
+            for (Map.Entry<String,List<HostDatastoreBrowserSearchResults>> entry : searches.entrySet()) {
+                String dataCenterId = poolDataCenters.get(entry.getKey().toLowerCase());
+
+                for (HostDatastoreBrowserSearchResults r : entry.getValue()) {
+                    FileInfo[] files = r.getFile();
+                    if (files != null) {
+                        for (FileInfo file : files) {
+                            String filePath = file.getPath();
+                            if (filePath.endsWith(".vmdk") && !filePath.endsWith("-flat.vmdk")) {
+                                if (!attached.contains(file.getPath())) {
+                                    Volume d = toVolume(file, dataCenterId, ctx.getRegionId());
+                                    if (d != null) {
+                                        d.setTag("filePath", r.getFolderPath()+d.getProviderVolumeId());
+                                        list.add(d);
+                                        index(entries, VolumeIndex.Entry.detached(d));
                                     }
                                 }
                             }
                         }
                     }
-                    else {
-                        throw new CloudException("Failed listing volumes: " + task.getTaskInfo().getError().getLocalizedMessage());
-                    }
-                }
-                catch (InterruptedException e) {
-                    throw new InternalException(e);
                 }
-                catch( InvalidProperty e ) {
-                    throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            }
+            VolumeIndex.getInstance(provider).replace(entries);
+            return list;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Adds a volume to the entries of a listing, keeping the first volume listed under an ID as the full listing does.
+     */
+    private void index(@Nonnull Map<String,VolumeIndex.Entry> entries, @Nonnull VolumeIndex.Entry entry) {
+        if (!entries.containsKey(entry.getVolumeId())) {
+            entries.put(entry.getVolumeId(), entry);
+        }
+    }
+
+    @Override
+    public @Nullable Volume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
+        APITrace.begin(provider, "HardDisk.getVolume");
+        try {
+            VolumeIndex index = VolumeIndex.getInstance(provider);
+            VolumeIndex.Entry entry = index.get(volumeId);
+
+            if (entry != null) {
+                if (entry.getVirtualMachine() == null) {
+                    // the disk may have been removed or attached behind our back since it was indexed
+                    if (entry.getVolume() != null && entry.getFilePath() != null && isDetached(entry.getFilePath())) {
+                        return entry.getVolume();
+                    }
+                    index.remove(volumeId);
                 }
-                catch( RuntimeFault e ) {
-                    throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+                else {
+                    Volume volume = refresh(entry);
+
+                    if (volume != null) {
+                        return volume;
+                    }
+                    index.remove(volumeId);
                 }
-                catch( RemoteException e ) {
-                    throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            }
+            // not indexed or no longer where the index says, so list everything and rebuild the index on the way
+            for (Volume volume : listVolumes()) {
+                if (volume.getProviderVolumeId().equals(volumeId)) {
+                    return volume;
                 }
             }
-            return list;
+            return null;
         }
         finally {
             APITrace.end();
         }
     }
 
+    private boolean isDetached(@Nonnull String filePath) throws InternalException, CloudException {
+        ServiceInstance instance = getServiceInstance();
+        Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, provider.getContext().getRegionId());
+
+        return (dc != null && new DatastoreSearch(provider).isDetached(instance, dc, filePath));
+    }
+
+    /**
+     * Reads the current state of an indexed attached volume from its virtual machine alone and updates the index.
+     * @param entry the index entry of an attached volume
+     * @return the volume or null if the virtual machine no longer has the disk
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred reading the virtual machine
+     */
+    private @Nullable Volume refresh(@Nonnull VolumeIndex.Entry entry) throws InternalException, CloudException {
+        PropertyRetriever retriever = new PropertyRetriever(getServiceInstance());
+        ObjectProperties vm = retriever.retrieve(entry.getVirtualMachine(), "config.hardware.device", "config.instanceUuid", "config.guestFullName", "resourcePool");
+
+        if (vm == null || vm.getString("config.instanceUuid") == null) {
+            return null;
+        }
+        Object devices = vm.get("config.hardware.device");
+
+        if (devices == null || ((ArrayOfVirtualDevice)devices).getVirtualDevice() == null) {
+            return null;
+        }
+        for (VirtualDevice device : ((ArrayOfVirtualDevice)devices).getVirtualDevice()) {
+            if (device instanceof VirtualDisk && device.getBacking() instanceof VirtualDeviceFileBackingInfo) {
+                String filePath = ((VirtualDeviceFileBackingInfo)device.getBacking()).getFileName();
+
+                if (filePath == null || !filePath.equals(entry.getFilePath())) {
+                    continue;
+                }
+                String dc2;
+                String regionId;
+
+                if (entry.getVolume() != null && entry.getVolume().getProviderDataCenterId() != null) {
+                    dc2 = entry.getVolume().getProviderDataCenterId();
+                    regionId = entry.getVolume().getProviderRegionId();
+                }
+                else {
+                    ManagedObjectReference pool = vm.getReference("resourcePool");
+                    ObjectProperties rp = (pool == null ? null : retriever.retrieve(pool, "owner"));
+                    ManagedObjectReference owner = (rp == null ? null : rp.getReference("owner"));
+                    ObjectProperties cluster = (owner == null ? null : retriever.retrieve(owner, "name"));
+
+                    dc2 = (cluster == null ? null : cluster.getString("name"));
+                    if (dc2 == null) {
+                        return null;
+                    }
+                    DataCenter ourDC = provider.getDataCenterServices().getDataCenter(dc2);
+                    if (ourDC == null) {
+                        dc2 = dc2+"-a";
+                        regionId = dc2;
+                    }
+                    else {
+                        regionId = ourDC.getRegionId();
+                    }
+                }
+                Volume d = toVolume((VirtualDisk)device, vm.getString("config.instanceUuid"), dc2, regionId);
+
+                if (d != null) {
+                    d.setGuestOperatingSystem(Platform.guess(vm.getString("config.guestFullName")));
+                    if (d.getProviderVolumeId().equals(entry.getVolumeId())) {
+                        VolumeIndex.getInstance(provider).put(VolumeIndex.Entry.attached(d, vm.getMOR(), (VirtualDisk)device));
+                    }
+                }
+                return d;
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean isSubscribed() throws CloudException, InternalException {
         return (provider.getServiceInstance() != null);
@@ -575,16 +817,22 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         APITrace.begin(provider, "HardDisk.remove");
         try {
             Volume volume = null;
-            Iterable<Volume> attachedVolumes = getAttachedVolumes();
-            for (Volume v : attachedVolumes) {
-                if (v.getProviderVolumeId().equals(volumeId)) {
-                    throw new CloudException("Volume is attached to vm "+v.getProviderVirtualMachineId()+" - removing not allowed");
+            if (provider.getInventorySnapshot() != null) {
+                Iterable<Volume> attachedVolumes = getAttachedVolumes();
+                for (Volume v : attachedVolumes) {
+                    if (v.getProviderVolumeId().equals(volumeId)) {
+                        throw new CloudException("Volume is attached to vm "+v.getProviderVirtualMachineId()+" - removing not allowed");
+                    }
                 }
             }
 
+            // without a snapshot the volume index tells us where the volume is, so no need to crawl every vm
             volume = getVolume(volumeId);
 
             if (volume != null) {
+                if (volume.getProviderVirtualMachineId() != null) {
+                    throw new CloudException("Volume is attached to vm "+volume.getProviderVirtualMachineId()+" - removing not allowed");
+                }
                 ServiceInstance instance = provider.getServiceInstance();
 
                 Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, provider.getContext().getRegionId());
@@ -597,6 +845,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                     String flatfile = filePath.substring(0, filePath.indexOf(".vmdk"))+"-flat.vmdk";
                     fileManager.deleteDatastoreFile_Task(flatfile, dc);
                 }
+                VolumeIndex.getInstance(provider).remove(volumeId);
             }
             else {
                 throw new CloudException("Unable to find volume with id "+volumeId);
@@ -628,6 +877,17 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                 }
             }
 
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
+
+            if (snapshot != null) {
+                for (Volume d : listAttachedVolumes(snapshot, false, null)) {
+                    if (!fileNames.contains(d.getTag("filePath"))) {
+                        list.add(d);
+                        fileNames.add(d.getTag("filePath"));
+                    }
+                }
+                return list;
+            }
             ServiceInstance instance = getServiceInstance();
 
             Folder folder = provider.getVmFolder(instance);
@@ -694,6 +954,64 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         }
     }
 
+    /**
+     * Lists the disks attached to the virtual machines in an inventory snapshot.
+     * @param snapshot the inventory to search
+     * @param settledOnly true to skip virtual machines that are neither powered on nor powered off
+     * @param entries the volume index entries to which the volumes found are added or null if they are not wanted
+     * @return the attached volumes
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred looking up data centers
+     */
+    private @Nonnull List<Volume> listAttachedVolumes(@Nonnull InventorySnapshot snapshot, boolean settledOnly, @Nullable Map<String,VolumeIndex.Entry> entries) throws InternalException, CloudException {
+        List<Volume> list = new ArrayList<Volume>();
+
+        for (ObjectProperties vm : snapshot.list("VirtualMachine")) {
+            if (!vm.isSet("config.template") || vm.getBoolean("config.template")) {
+                continue;
+            }
+            VirtualMachinePowerState state = (VirtualMachinePowerState)vm.get("runtime.powerState");
+
+            if (settledOnly && !VirtualMachinePowerState.poweredOn.equals(state) && !VirtualMachinePowerState.poweredOff.equals(state)) {
+                continue;
+            }
+            String dc2 = snapshot.getClusterName(vm.getReference("resourcePool"));
+
+            if (dc2 == null) {
+                continue;
+            }
+            DataCenter ourDC = provider.getDataCenterServices().getDataCenter(dc2);
+            String regionId;
+            if (ourDC == null) {
+                dc2 = dc2+"-a";
+                regionId = dc2;
+            }
+            else {
+                regionId = ourDC.getRegionId();
+            }
+            Object devices = vm.get("config.hardware.device");
+
+            if (devices == null || ((ArrayOfVirtualDevice)devices).getVirtualDevice() == null) {
+                continue;
+            }
+            Platform guestOs = Platform.guess(vm.getString("config.guestFullName"));
+
+            for (VirtualDevice device : ((ArrayOfVirtualDevice)devices).getVirtualDevice()) {
+                if (device instanceof VirtualDisk) {
+                    Volume d = toVolume((VirtualDisk)device, vm.getString("config.instanceUuid"), dc2, regionId);
+                    if (d != null) {
+                        d.setGuestOperatingSystem(guestOs);
+                        list.add(d);
+                        if (entries != null) {
+                            index(entries, VolumeIndex.Entry.attached(d, vm.getMOR(), (VirtualDisk)device));
+                        }
+                    }
+                }
+            }
+        }
+        return list;
+    }
+
     private @Nullable Volume toVolume(@Nonnull VirtualDisk disk, @Nonnull String vmId, @Nonnull String dataCenterId, @Nonnull String regionId) {
         Volume volume = new Volume();
 
@@ -734,7 +1052,10 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         volume.setCurrentState(VolumeState.AVAILABLE);
         volume.setDeleteOnVirtualMachineTermination(true);
         volume.setFormat(VolumeFormat.BLOCK);
-        if (disk.getFileSize() != null) {
+        if (disk instanceof VmDiskFileInfo && ((VmDiskFileInfo)disk).getCapacityKb() != null) {
+            volume.setSize(new Storage<Kilobyte>(((VmDiskFileInfo)disk).getCapacityKb(), Storage.KILOBYTE));
+        }
+        else if (disk.getFileSize() != null) {
             volume.setSize(new Storage<org.dasein.util.uom.storage.Byte>(disk.getFileSize(), Storage.BYTE));
         }
         volume.setType(VolumeType.SSD);
@@ -745,4 +1066,25 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         volume.setRootVolume(false);
         return volume;
     }
+
+    /**
+     * @param attached a volume as it was while attached
+     * @return the same volume as a disk file attached to no virtual machine
+     */
+    private @Nonnull Volume toDetachedVolume(@Nonnull Volume attached) {
+        Volume volume = new Volume();
+        volume.setProviderVolumeId(attached.getProviderVolumeId());
+        volume.setName(attached.getName());
+        volume.setProviderDataCenterId(attached.getProviderDataCenterId());
+        volume.setProviderRegionId(attached.getProviderRegionId());
+        volume.setDescription(attached.getDescription());
+        volume.setCurrentState(VolumeState.AVAILABLE);
+        volume.setDeleteOnVirtualMachineTermination(true);
+        volume.setFormat(VolumeFormat.BLOCK);
+        volume.setSize(attached.getSize());
+        volume.setType(VolumeType.SSD);
+        volume.setTag("filePath", attached.getTag("filePath"));
+        volume.setRootVolume(false);
+        return volume;
+    }
 }
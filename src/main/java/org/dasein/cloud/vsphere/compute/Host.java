@@ -19,6 +19,8 @@
 package org.dasein.cloud.vsphere.compute;
 
 import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.RuntimeFault;
 import com.vmware.vim25.mo.*;
 import org.apache.log4j.Logger;
@@ -31,6 +33,8 @@ import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.Dc;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
 import org.dasein.cloud.vsphere.PrivateCloud;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
@@ -41,6 +45,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * User: daniellemayne
@@ -72,6 +77,16 @@ public class Host extends AbstractAffinityGroupSupport {
     public AffinityGroup get(@Nonnull String affinityGroupId) throws InternalException, CloudException {
         APITrace.begin(provider, "getAffinityGroup");
         try {
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
+
+            if( snapshot != null ) {
+                ObjectProperties host = snapshot.find("HostSystem", "name", affinityGroupId);
+
+                if( host == null ) {
+                    return null;
+                }
+                return toAffinityGroup(host, snapshot.getName(host.getReference("parent")));
+            }
             HostSystem host = getHostSystemForAffinity(affinityGroupId);
             if (host != null) {
                 String dataCenterId = null;
@@ -107,7 +122,14 @@ public class Host extends AbstractAffinityGroupSupport {
             ProviderContext ctx = provider.getContext();
             ArrayList<AffinityGroup> possibles = new ArrayList<AffinityGroup>();
             String dc = options.getDataCenterId();
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
 
+            if( snapshot != null ) {
+                for( ObjectProperties host : listHostSystems(snapshot, dc) ) {
+                    possibles.add(toAffinityGroup(host, snapshot.getName(host.getReference("parent"))));
+                }
+                return possibles;
+            }
             ServiceInstance instance = getServiceInstance();
             Dc dcServices = provider.getDataCenterServices();
             Datacenter vdc = dcServices.getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
@@ -223,6 +245,30 @@ public class Host extends AbstractAffinityGroupSupport {
         }
     }
 
+    /**
+     * Lists the hosts in the current region from an inventory snapshot, matching {@link #listHostSystems(String)}.
+     * @param snapshot the inventory to search
+     * @param datacenterId the cluster whose hosts should be listed or null for all hosts in the region
+     * @return the matching hosts
+     */
+    public @Nonnull List<ObjectProperties> listHostSystems(@Nonnull InventorySnapshot snapshot, @Nullable String datacenterId) {
+        String regionId = provider.getContext().getRegionId();
+        ArrayList<ObjectProperties> hostSystems = new ArrayList<ObjectProperties>();
+
+        for( ObjectProperties host : snapshot.list("HostSystem") ) {
+            ManagedObjectReference parent = host.getReference("parent");
+            ObjectProperties vdc = snapshot.getDatacenter(parent);
+
+            if( vdc == null || !vdc.getString("name").equals(regionId) ) {
+                continue;
+            }
+            if( datacenterId == null || datacenterId.equals(snapshot.getName(parent)) ) {
+                hostSystems.add(host);
+            }
+        }
+        return hostSystems;
+    }
+
     public Collection<Datastore> listDatastoresForHost(HostSystem host) throws CloudException, InternalException {
         ArrayList<Datastore> list = new ArrayList<Datastore>();
         try {
@@ -258,4 +304,17 @@ public class Host extends AbstractAffinityGroupSupport {
         ag.setTag("status", status);
         return ag;
     }
+
+    private AffinityGroup toAffinityGroup(@Nonnull ObjectProperties host, @Nullable String dataCenterID) {
+        String agID = host.getString("name");
+        String agDesc = "Affinity group for "+agID;
+
+        AffinityGroup ag = AffinityGroup.getInstance(agID, agID, agDesc, dataCenterID, 0);
+        ManagedEntityStatus status = (ManagedEntityStatus)host.get("configStatus");
+
+        if( status != null ) {
+            ag.setTag("status", status.toString());
+        }
+        return ag;
+    }
 }
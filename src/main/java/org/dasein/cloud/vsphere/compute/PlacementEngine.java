@@ -0,0 +1,460 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ClusterHostRecommendation;
+import com.vmware.vim25.DrsBehavior;
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.util.uom.time.Second;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses hosts for new and starting virtual machines by load rather than taking the first healthy host. The CPU and
+ * memory usage, capacity, state, virtual machine count and mounted datastores of every host are fetched in one
+ * property collector query and cached for 30 seconds. Only hosts that mount the datastores of a virtual machine are
+ * considered for it. Each placement is charged against the chosen host in the cached figures, so a burst of
+ * launches within that window spreads out across the cluster instead of piling onto the same host.
+ * <p>
+ * Clusters where DRS is enabled and automated are left to DRS: callers ask for a recommendation through
+ * {@link #recommendHost(ManagedObjectReference, VirtualMachine, ResourcePool)} where a virtual machine exists to ask
+ * about, and otherwise leave the host unset so that vCenter performs the initial placement itself.
+ * </p>
+ */
+class PlacementEngine {
+    static private final Logger log = PrivateCloud.getLogger(PlacementEngine.class, "std");
+
+    static private final String[] HOST_PROPERTIES = new String[] {
+            "name", "parent", "configStatus", "vm", "datastore",
+            "runtime.connectionState", "runtime.inMaintenanceMode",
+            "summary.quickStats.overallCpuUsage", "summary.quickStats.overallMemoryUsage",
+            "summary.hardware.cpuMhz", "summary.hardware.numCpuCores", "summary.hardware.memorySize"
+    };
+
+    /**
+     * The current load of a single host along with the cluster and datacenter it belongs to.
+     */
+    static class HostLoad {
+        static private final double VM_WEIGHT       = 0.002;
+        static private final double DEGRADED_WEIGHT = 0.1;
+
+        private ManagedObjectReference host;
+        private String                 name;
+        private String                 clusterKey;
+        private String                 clusterName;
+        private String                 datacenterKey;
+        private String                 datacenterName;
+        private boolean                degraded;
+        private boolean                drsAutomated;
+        private boolean                eligible;
+        private long                   cpuCapacityMhz;
+        private long                   cpuUsedMhz;
+        private long                   memoryCapacityMB;
+        private long                   memoryUsedMB;
+        private int                    vmCount;
+        private Set<String>            datastores = new HashSet<String>();
+
+        @Nonnull ManagedObjectReference getHost() {
+            return host;
+        }
+
+        @Nonnull String getName() {
+            return name;
+        }
+
+        @Nullable String getClusterKey() {
+            return clusterKey;
+        }
+
+        @Nullable String getClusterName() {
+            return clusterName;
+        }
+
+        @Nullable String getDatacenterKey() {
+            return datacenterKey;
+        }
+
+        synchronized long getCpuCapacityMhz() {
+            return cpuCapacityMhz;
+        }
+
+        synchronized long getFreeCpuMhz() {
+            return Math.max(0L, cpuCapacityMhz - cpuUsedMhz);
+        }
+
+        synchronized long getFreeMemoryMB() {
+            return Math.max(0L, memoryCapacityMB - memoryUsedMB);
+        }
+
+        synchronized long getMemoryCapacityMB() {
+            return memoryCapacityMB;
+        }
+
+        synchronized int getVmCount() {
+            return vmCount;
+        }
+
+        /**
+         * @return true if the host belongs to a cluster in which DRS places virtual machines automatically
+         */
+        boolean isDrsAutomated() {
+            return drsAutomated;
+        }
+
+        /**
+         * A connected host that is not in maintenance mode and whose configuration status is not red.
+         * @return true if virtual machines may be placed on this host
+         */
+        boolean isEligible() {
+            return eligible;
+        }
+
+        /**
+         * @param required the datastores a virtual machine needs, or null if it does not matter
+         * @return true if the host mounts every one of the required datastores
+         */
+        boolean canReach(@Nullable ManagedObjectReference[] required) {
+            if( required != null ) {
+                for( ManagedObjectReference ds : required ) {
+                    if( !datastores.contains(ObjectProperties.getKey(ds)) ) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Scores the host by the share of its CPU and memory that is free, favoring the scarcer of the two, with
+         * small penalties for the number of virtual machines already on it and for a yellow configuration status.
+         * @return the score, higher being better
+         */
+        synchronized double getScore() {
+            double cpuFree = (cpuCapacityMhz > 0 ? 1.0 - (( double ) cpuUsedMhz / cpuCapacityMhz) : 0.0);
+            double memoryFree = (memoryCapacityMB > 0 ? 1.0 - (( double ) memoryUsedMB / memoryCapacityMB) : 0.0);
+            double score = (0.6 * Math.min(cpuFree, memoryFree)) + (0.2 * (cpuFree + memoryFree)) - (VM_WEIGHT * vmCount);
+
+            return (degraded ? score - DEGRADED_WEIGHT : score);
+        }
+
+        /**
+         * Charges a new virtual machine against this host until the next refresh of the statistics.
+         * @param memoryMB the memory of the virtual machine or 0 if it is not known
+         */
+        synchronized void reserve(long memoryMB) {
+            memoryUsedMB += memoryMB;
+            vmCount++;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name + " [" + clusterName + "] score=" + getScore();
+        }
+    }
+
+    static private final Comparator<HostLoad> BY_SCORE = new Comparator<HostLoad>() {
+        public int compare(HostLoad a, HostLoad b) {
+            return Double.compare(b.getScore(), a.getScore());
+        }
+    };
+
+    private PrivateCloud provider;
+
+    PlacementEngine(@Nonnull PrivateCloud provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Provides the load of every host, fetching it from vSphere if the cached figures have expired.
+     * @return the load of every host visible to the current account
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @SuppressWarnings("unchecked")
+    @Nonnull Collection<HostLoad> getHostLoads() throws CloudException, InternalException {
+        Cache<HostLoad> cache = Cache.getInstance(provider, "hostLoads", HostLoad.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Second>(30, TimePeriod.SECOND));
+        Collection<HostLoad> loads = ( Collection<HostLoad> ) cache.get(provider.getContext());
+
+        if( loads == null ) {
+            loads = fetchHostLoads();
+            cache.put(provider.getContext(), loads);
+        }
+        return loads;
+    }
+
+    private @Nonnull Collection<HostLoad> fetchHostLoads() throws CloudException, InternalException {
+        APITrace.begin(provider, "PlacementEngine.fetchHostLoads");
+        try {
+            ServiceInstance instance = provider.getServiceInstance();
+
+            if( instance == null ) {
+                throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_UNAUTHORIZED, null, "Unauthorized");
+            }
+            PropertySpec[] specs = new PropertySpec[] {
+                    PropertyRetriever.spec("HostSystem", HOST_PROPERTIES),
+                    PropertyRetriever.spec("ComputeResource", "name", "parent"),
+                    PropertyRetriever.spec("ClusterComputeResource", "name", "parent", "configuration.drsConfig.enabled", "configuration.drsConfig.defaultVmBehavior"),
+                    PropertyRetriever.spec("Folder", "name", "parent"),
+                    PropertyRetriever.spec("Datacenter", "name", "parent")
+            };
+            InventorySnapshot inventory = new InventorySnapshot(new PropertyRetriever(instance).retrieve(instance.getRootFolder(), specs));
+            ArrayList<HostLoad> loads = new ArrayList<HostLoad>();
+
+            for( ObjectProperties host : inventory.list("HostSystem") ) {
+                loads.add(toHostLoad(host, inventory));
+            }
+            return loads;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull HostLoad toHostLoad(@Nonnull ObjectProperties host, @Nonnull InventorySnapshot inventory) {
+        HostLoad load = new HostLoad();
+        ManagedObjectReference parent = host.getReference("parent");
+        ObjectProperties cluster = inventory.get(parent);
+        ObjectProperties dc = inventory.getDatacenter(host.getMOR());
+        Object status = host.get("configStatus");
+        Object connectionState = host.get("runtime.connectionState");
+        Integer cpuMhz = host.getInteger("summary.hardware.cpuMhz");
+        Integer cores = host.getInteger("summary.hardware.numCpuCores");
+        Long memory = host.getLong("summary.hardware.memorySize");
+        Integer cpuUsage = host.getInteger("summary.quickStats.overallCpuUsage");
+        Integer memoryUsage = host.getInteger("summary.quickStats.overallMemoryUsage");
+
+        load.host = host.getMOR();
+        load.name = host.getString("name");
+        load.clusterKey = (parent == null ? null : ObjectProperties.getKey(parent));
+        load.clusterName = inventory.getName(parent);
+        load.datacenterKey = (dc == null ? null : dc.getKey());
+        load.datacenterName = (dc == null ? null : dc.getString("name"));
+        load.degraded = ManagedEntityStatus.yellow.equals(status);
+        load.drsAutomated = (cluster != null && cluster.getBoolean("configuration.drsConfig.enabled") && !DrsBehavior.manual.equals(cluster.get("configuration.drsConfig.defaultVmBehavior")));
+        load.eligible = (connectionState != null && connectionState.toString().equals("connected") && !host.getBoolean("runtime.inMaintenanceMode") && !ManagedEntityStatus.red.equals(status));
+        load.cpuCapacityMhz = (cpuMhz == null || cores == null ? 0L : ( long ) cpuMhz * cores);
+        load.cpuUsedMhz = (cpuUsage == null ? 0L : cpuUsage);
+        load.memoryCapacityMB = (memory == null ? 0L : memory / (1024L * 1024L));
+        load.memoryUsedMB = (memoryUsage == null ? 0L : memoryUsage);
+        load.vmCount = host.getReferences("vm").length;
+        for( ManagedObjectReference ds : host.getReferences("datastore") ) {
+            load.datastores.add(ObjectProperties.getKey(ds));
+        }
+        return load;
+    }
+
+    /**
+     * Totals the capacity, free resources and virtual machines of the eligible hosts in each cluster of a vSphere
+     * datacenter (a dasein region).
+     * @param datacenterName the name of the vSphere datacenter
+     * @return the load of each cluster with at least one eligible host, keyed by cluster name (the dasein data center ID)
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull Map<String,ClusterLoad> getClusterLoads(@Nonnull String datacenterName) throws CloudException, InternalException {
+        Map<String,ClusterLoad> clusters = new HashMap<String, ClusterLoad>();
+
+        for( HostLoad load : getHostLoads() ) {
+            if( !load.isEligible() || load.getClusterName() == null || !datacenterName.equals(load.datacenterName) ) {
+                continue;
+            }
+            ClusterLoad cluster = clusters.get(load.getClusterName());
+
+            if( cluster == null ) {
+                cluster = new ClusterLoad(load.getClusterName());
+                clusters.put(load.getClusterName(), cluster);
+            }
+            cluster.add(load.getCpuCapacityMhz(), load.getFreeCpuMhz(), load.getMemoryCapacityMB(), load.getFreeMemoryMB(), load.getVmCount());
+        }
+        return clusters;
+    }
+
+    /**
+     * Lists the eligible hosts of a compute resource, best first.
+     * @param computeResource the cluster or standalone compute resource
+     * @return the eligible hosts in order of preference
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull List<HostLoad> rankHosts(@Nonnull ManagedObjectReference computeResource) throws CloudException, InternalException {
+        return rankHosts(computeResource, null);
+    }
+
+    /**
+     * Lists the eligible hosts of a compute resource that mount all of the specified datastores, best first. Hosts
+     * in a cluster do not necessarily share all of their storage, and a virtual machine cannot run on a host that
+     * does not see its files.
+     * @param computeResource the cluster or standalone compute resource
+     * @param datastores the datastores holding the files of the virtual machine or null to consider every host
+     * @return the eligible hosts in order of preference
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull List<HostLoad> rankHosts(@Nonnull ManagedObjectReference computeResource, @Nullable ManagedObjectReference[] datastores) throws CloudException, InternalException {
+        String key = ObjectProperties.getKey(computeResource);
+        ArrayList<HostLoad> hosts = new ArrayList<HostLoad>();
+
+        for( HostLoad load : getHostLoads() ) {
+            if( load.isEligible() && key.equals(load.getClusterKey()) && load.canReach(datastores) ) {
+                hosts.add(load);
+            }
+        }
+        Collections.sort(hosts, BY_SCORE);
+        return hosts;
+    }
+
+    /**
+     * Lists the eligible hosts of the named cluster in a datacenter, best first.
+     * @param datacenter the datacenter holding the cluster
+     * @param clusterName the name of the cluster (the dasein data center ID)
+     * @return the eligible hosts in order of preference
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull List<HostLoad> rankHosts(@Nonnull ManagedObjectReference datacenter, @Nonnull String clusterName) throws CloudException, InternalException {
+        String key = ObjectProperties.getKey(datacenter);
+        ArrayList<HostLoad> hosts = new ArrayList<HostLoad>();
+
+        for( HostLoad load : getHostLoads() ) {
+            if( load.isEligible() && key.equals(load.getDatacenterKey()) && clusterName.equals(load.getClusterName()) ) {
+                hosts.add(load);
+            }
+        }
+        Collections.sort(hosts, BY_SCORE);
+        return hosts;
+    }
+
+    /**
+     * Determines whether DRS automatically places virtual machines in the specified compute resource, in which case
+     * new virtual machines are best left for vCenter to place.
+     * @param computeResource the cluster or standalone compute resource
+     * @return true if DRS is enabled and not in manual mode
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    boolean isDrsAutomated(@Nonnull ManagedObjectReference computeResource) throws CloudException, InternalException {
+        String key = ObjectProperties.getKey(computeResource);
+
+        for( HostLoad load : getHostLoads() ) {
+            if( key.equals(load.getClusterKey()) ) {
+                return load.isDrsAutomated();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asks DRS where to run a virtual machine in a cluster with <code>RecommendHostsForVm</code>, choosing the
+     * highest rated eligible host.
+     * @param computeResource the DRS cluster
+     * @param vm the virtual machine to place (or the source of a clone, which has the same requirements)
+     * @param pool the resource pool in which the virtual machine will run
+     * @return the recommended host or null if DRS made no usable recommendation
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nullable ManagedObjectReference recommendHost(@Nonnull ManagedObjectReference computeResource, @Nonnull VirtualMachine vm, @Nullable ResourcePool pool) throws CloudException, InternalException {
+        APITrace.begin(provider, "PlacementEngine.recommendHost");
+        try {
+            ClusterComputeResource cluster = new ClusterComputeResource(vm.getServerConnection(), computeResource);
+            ClusterHostRecommendation[] recommendations;
+
+            try {
+                recommendations = cluster.recommendHostsForVm(vm, pool);
+            }
+            catch( RuntimeFault e ) {
+                log.warn("DRS could not recommend a host for " + vm.getMOR().getVal() + ": " + e.getMessage());
+                return null;
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            }
+            if( recommendations == null ) {
+                return null;
+            }
+            List<HostLoad> eligible = rankHosts(computeResource);
+            ClusterHostRecommendation best = null;
+
+            for( ClusterHostRecommendation recommendation : recommendations ) {
+                if( best == null || recommendation.getRating() > best.getRating() ) {
+                    String key = ObjectProperties.getKey(recommendation.getHost());
+
+                    for( HostLoad load : eligible ) {
+                        if( key.equals(ObjectProperties.getKey(load.getHost())) ) {
+                            best = recommendation;
+                            break;
+                        }
+                    }
+                }
+            }
+            return (best == null ? null : best.getHost());
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Picks the least loaded of the specified hosts and charges the new virtual machine against it.
+     * @param hosts candidate hosts as returned by one of the <code>rankHosts</code> methods
+     * @param memoryMB the memory of the virtual machine being placed or 0 if it is not known
+     * @return the chosen host or null if there are no candidates
+     */
+    @Nullable ManagedObjectReference place(@Nonnull List<HostLoad> hosts, long memoryMB) {
+        if( hosts.isEmpty() ) {
+            return null;
+        }
+        // another placement may have been charged since the hosts were ranked
+        HostLoad best = Collections.min(hosts, BY_SCORE);
+
+        best.reserve(memoryMB);
+        return best.getHost();
+    }
+}
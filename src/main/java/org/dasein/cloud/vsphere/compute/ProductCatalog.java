@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.dc.ResourcePool;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.util.uom.storage.Gigabyte;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The virtual machine products of a region: every standard CPU and memory combination on its own and in each resource
+ * pool, for each supported architecture. The catalog is built once per account and region and kept in the Dasein cache
+ * for an hour or until the set of resource pools it was built from changes, so listing products and mapping the hardware of thousands of
+ * virtual machines to products no longer rebuilds the product list each time. Products are indexed by provider
+ * product ID; non-standard sizes are built on first request and remembered.
+ */
+class ProductCatalog {
+    /**
+     * Provides the catalog for the current region, building it if there is none or the resource pools have changed.
+     * @param provider the cloud provider
+     * @param pools the resource pools of the region
+     * @param supported the architectures supported by the cloud
+     * @return the product catalog
+     * @throws CloudException an error occurred identifying the session
+     * @throws InternalException no context was set for this request
+     */
+    static @Nonnull ProductCatalog getInstance(@Nonnull PrivateCloud provider, @Nonnull Collection<ResourcePool> pools, @Nonnull Iterable<Architecture> supported) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new InternalException("No context was set for this request");
+        }
+        Cache<ProductCatalog> cache = Cache.getInstance(provider, "productCatalog", ProductCatalog.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+        String signature = getSignature(pools);
+
+        synchronized( ProductCatalog.class ) {
+            Collection<ProductCatalog> list = ( Collection<ProductCatalog> ) cache.get(ctx);
+            ProductCatalog catalog = (list == null ? null : list.iterator().next());
+
+            if( catalog == null || !catalog.signature.equals(signature) ) {
+                catalog = new ProductCatalog(signature, pools, supported);
+                cache.put(ctx, Collections.singletonList(catalog));
+            }
+            return catalog;
+        }
+    }
+
+    static private @Nonnull String getSignature(@Nonnull Collection<ResourcePool> pools) {
+        TreeSet<String> ids = new TreeSet<String>();
+
+        for( ResourcePool pool : pools ) {
+            ids.add(pool.getProvideResourcePoolId() + "=" + pool.getName());
+        }
+        return ids.toString();
+    }
+
+    private final String                                        signature;
+    private final List<VirtualMachineProduct>                   all;
+    private final Map<Architecture,List<VirtualMachineProduct>> byArchitecture = new HashMap<Architecture, List<VirtualMachineProduct>>();
+    private final Map<String,VirtualMachineProduct>             index          = new HashMap<String, VirtualMachineProduct>();
+    private final Map<String,VirtualMachineProduct>             custom         = new ConcurrentHashMap<String, VirtualMachineProduct>();
+
+    private ProductCatalog(@Nonnull String signature, @Nonnull Collection<ResourcePool> pools, @Nonnull Iterable<Architecture> supported) {
+        this.signature = signature;
+        for( Architecture a : supported ) {
+            if( a.equals(Architecture.I32) ) {
+                byArchitecture.put(a, build(a, pools, new int[] { 1, 2 }, new int[] { 512, 1024, 2048 }));
+            }
+            else {
+                byArchitecture.put(a, build(a, pools, new int[] { 1, 2, 4, 8 }, new int[] { 1024, 2048, 4096, 10240, 20480 }));
+            }
+        }
+        all = build(null, pools, new int[] { 1, 2, 4, 8 }, new int[] { 512, 1024, 2048, 4096, 10240, 20480 });
+
+        // 64-bit products win over 32-bit ones with the same ID, as the linear search of both lists used to
+        for( Architecture a : new Architecture[] { Architecture.I64, Architecture.I32 } ) {
+            List<VirtualMachineProduct> products = byArchitecture.get(a);
+
+            if( products != null ) {
+                for( VirtualMachineProduct product : products ) {
+                    if( !index.containsKey(product.getProviderProductId()) ) {
+                        index.put(product.getProviderProductId(), product);
+                    }
+                }
+            }
+        }
+    }
+
+    private @Nonnull List<VirtualMachineProduct> build(@Nullable Architecture architecture, @Nonnull Collection<ResourcePool> pools, @Nonnull int[] cpus, @Nonnull int[] rams) {
+        ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+
+        for( int cpu : cpus ) {
+            for( int ram : rams ) {
+                // add in product without pool
+                VirtualMachineProduct product = new VirtualMachineProduct();
+
+                product.setCpuCount(cpu);
+                product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
+                product.setName(cpu + " CPU/" + ram + " MB RAM");
+                product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+                product.setProviderProductId(cpu + ":" + ram);
+                product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
+                if( architecture != null ) {
+                    product.setArchitectures(architecture);
+                }
+                products.add(product);
+
+                //resource pools
+                for( ResourcePool pool : pools ) {
+                    product = new VirtualMachineProduct();
+                    product.setCpuCount(cpu);
+                    product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
+                    product.setName("Pool " + pool.getName() + "/" + cpu + " CPU/" + ram + " MB RAM");
+                    product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+                    product.setProviderProductId(pool.getProvideResourcePoolId() + ":" + cpu + ":" + ram);
+                    product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
+                    products.add(product);
+                }
+            }
+        }
+        return Collections.unmodifiableList(products);
+    }
+
+    /**
+     * @param architecture the architecture or null for the products offered regardless of architecture
+     * @return the products for the architecture, empty if it is not supported
+     */
+    @Nonnull List<VirtualMachineProduct> list(@Nullable Architecture architecture) {
+        if( architecture == null ) {
+            return all;
+        }
+        List<VirtualMachineProduct> products = byArchitecture.get(architecture);
+
+        if( products == null ) {
+            return Collections.emptyList();
+        }
+        return products;
+    }
+
+    /**
+     * Looks up a product by ID, describing a non-standard <code>cpu:ram</code> size if the catalog does not list it.
+     * @param productId the provider product ID
+     * @return the matching product
+     */
+    @Nonnull VirtualMachineProduct get(@Nonnull String productId) {
+        VirtualMachineProduct product = index.get(productId);
+
+        if( product != null ) {
+            return product;
+        }
+        product = custom.get(productId);
+        if( product == null ) {
+            //Product is non-standard so build a new one
+            String[] parts = productId.split(":");
+
+            product = new VirtualMachineProduct();
+            product.setCpuCount(Integer.parseInt(parts[0]));
+            product.setRamSize(new Storage<Megabyte>(Integer.parseInt(parts[1]), Storage.MEGABYTE));
+            product.setDescription("Custom product " + parts[0] + " CPU, " + parts[1] + " RAM");
+            product.setName(parts[0] + " CPU/" + parts[1] + " MB RAM");
+            product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+            product.setProviderProductId(parts[0] + ":" + parts[1]);
+            custom.put(productId, product);
+        }
+        return product;
+    }
+}
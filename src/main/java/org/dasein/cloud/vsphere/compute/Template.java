@@ -43,6 +43,8 @@ import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
 import org.dasein.cloud.vsphere.PrivateCloud;
 
 import org.dasein.util.uom.time.Day;
@@ -73,48 +75,26 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
         APITrace.begin(getProvider(), "Image.remove");
         try {
             ServiceInstance instance = getServiceInstance();
+            TemplateIndex index = TemplateIndex.getInstance(getProvider());
+            TemplateIndex.Entry entry = index.get(getProvider(), instance, providerImageId);
 
-            Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
+            if( entry == null ) {
+                log.warn("No templates found in inventory when removing image: "+providerImageId);
+                return;
+            }
+            VirtualMachine template = new VirtualMachine(instance.getServerConnection(), entry.getTemplate());
 
             try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage(), e);
+                VmTasks.destroy(template);
             }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage(), e);
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage(), e);
+            catch( RuntimeException e ) {
+                throw new InternalException("Error while running a destroy task for image: "+providerImageId, e);
             }
-            if( mes == null ) {
-                log.warn("No templates found in inventory when removing image: "+providerImageId);
-                return;
+            catch( RemoteException ex ) {
+                throw new CloudException("Error while running a destroy task for image: "+providerImageId, ex);
             }
-
-            for( ManagedEntity entity : mes ) {
-                VirtualMachine template = ( VirtualMachine ) entity;
-                if( template == null ) {
-                    continue;
-                }
-                VirtualMachineConfigInfo cfg = template.getConfig();
-                if( cfg == null || !cfg.isTemplate() ) {
-                    continue;
-                }
-                if( providerImageId.equals(cfg.getUuid()) ) {
-                    try {
-                        template.destroy_Task();
-                    }
-                    catch( RuntimeException e ) {
-                        throw new InternalException("Error while running a destroy task for image: "+providerImageId, e);
-                    }
-                    catch( RemoteException ex ) {
-                        throw new CloudException("Error while running a destroy task for image: "+providerImageId, ex);
-                    }
-                    break; // job's done, stop traversing
-                }
+            finally {
+                index.invalidate();
             }
         }
         finally {
@@ -135,14 +115,22 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
     public MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.getImage");
         try {
-            for( ImageClass cls : getCapabilities().listSupportedImageClasses() ) {
-                for( MachineImage image : listImages(ImageFilterOptions.getInstance(cls)) ) {
-                    if( image.getProviderMachineImageId().equals(providerImageId) ) {
-                        return image;
-                    }
+            InventorySnapshot snapshot = getProvider().getInventorySnapshot();
+
+            if( snapshot != null ) {
+                ObjectProperties template = snapshot.find("VirtualMachine", "config.uuid", providerImageId);
+
+                if( template == null || !template.getBoolean("config.template") ) {
+                    return null;
                 }
+                return toMachineImage(template, snapshot);
             }
-            return null;
+            TemplateIndex.Entry entry = TemplateIndex.getInstance(getProvider()).get(getProvider(), getServiceInstance(), providerImageId);
+
+            if( entry == null ) {
+                return null;
+            }
+            return toMachineImage(entry);
         }
         finally {
             APITrace.end();
@@ -221,6 +209,64 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
         return null;
     }
 
+    private @Nullable MachineImage toMachineImage(@Nonnull ObjectProperties template, @Nonnull InventorySnapshot snapshot) throws InternalException, CloudException {
+        String guestId = template.getString("config.guestId");
+        String imageId = template.getString("config.uuid");
+
+        if( guestId == null || imageId == null ) {
+            return null;
+        }
+        VirtualMachineGuestOsIdentifier os;
+        Platform platform;
+        Architecture arch;
+
+        try {
+            os = VirtualMachineGuestOsIdentifier.valueOf(guestId);
+            platform = Platform.guess(template.getString("config.guestFullName"));
+        }
+        catch( IllegalArgumentException e ) {
+            os = null;
+            platform = Platform.guess(guestId);
+        }
+        if( os == null ) {
+            arch = (guestId.contains("64") ? Architecture.I32 : Architecture.I64);
+        }
+        else {
+            arch = (getProvider().getComputeServices().getVirtualMachineSupport().getArchitecture(os));
+        }
+        String name = template.getString("name");
+        String regionId = "";
+        ObjectProperties vdc = snapshot.getDatacenter(template.getReference("parent"));
+
+        if( vdc != null ) {
+            regionId = vdc.getString("name");
+        }
+        VirtualMachinePowerState state = (VirtualMachinePowerState)template.get("runtime.powerState");
+        MachineImageState imgState = (state == null || state.equals(VirtualMachinePowerState.poweredOff) ? MachineImageState.ACTIVE : MachineImageState.PENDING);
+        MachineImage image = MachineImage.getMachineImageInstance(getContext().getAccountNumber(), regionId, imageId, imgState, name, name, arch, platform);
+
+        image.withSoftware("");
+        image.setTags(new HashMap<String, String>());
+        return image;
+    }
+
+    /**
+     * Provides the machine image for an indexed template, building it only the first time it is requested.
+     * @param entry the template index entry
+     * @return the machine image or null if the template does not describe its guest
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred identifying the template architecture
+     */
+    private @Nullable MachineImage toMachineImage(@Nonnull TemplateIndex.Entry entry) throws InternalException, CloudException {
+        MachineImage image = entry.getImage();
+
+        if( image == null ) {
+            image = toMachineImage(entry.getProperties(), entry.getInventory());
+            entry.setImage(image);
+        }
+        return image;
+    }
+
     @Override
     protected MachineImage capture(@Nonnull ImageCreateOptions options, @Nullable AsynchronousTask<MachineImage> task) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.capture");
@@ -288,60 +334,27 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
         APITrace.begin(getProvider(), "Image.listImages");
         try {
             ArrayList<MachineImage> machineImages = new ArrayList<MachineImage>();
-            ServiceInstance instance = getServiceInstance();
-
-            Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
-
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine template = (VirtualMachine)entity;
+            InventorySnapshot snapshot = getProvider().getInventorySnapshot();
 
-                    if( template != null ) {
-                        VirtualMachineConfigInfo cfg = null;
+            if( snapshot != null ) {
+                for( ObjectProperties template : snapshot.list("VirtualMachine") ) {
+                    if( template.getBoolean("config.template") ) {
+                        MachineImage image = toMachineImage(template, snapshot);
 
-                        try {
-                            cfg = template.getConfig();
-                        }
-                        catch( RuntimeException e ) {
-                            e.printStackTrace();
-                        }
-                        if( cfg != null && cfg.isTemplate() ) {
-                            MachineImage image = toMachineImage(template);
-
-                            if( image != null && (options == null || options.matches(image)) ) {
-                                if (options!= null) {
-                                    if (options.getWithAllRegions()) {
-                                        machineImages.add(image);
-                                    }
-                                    else {
-                                        if (image.getProviderRegionId().equals(getContext().getRegionId())) {
-                                            machineImages.add(image);
-                                        }
-                                    }
-                                }
-                                else {
-                                    machineImages.add(image);
-                                }
-                            }
+                        if( matches(image, options) ) {
+                            machineImages.add(image);
                         }
                     }
                 }
+                return machineImages;
             }
+            for( TemplateIndex.Entry entry : TemplateIndex.getInstance(getProvider()).list(getProvider(), getServiceInstance()) ) {
+                MachineImage image = toMachineImage(entry);
 
+                if( matches(image, options) ) {
+                    machineImages.add(image);
+                }
+            }
             return machineImages;
         }
         finally {
@@ -349,6 +362,16 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
         }
     }
 
+    private boolean matches(@Nullable MachineImage image, @Nullable ImageFilterOptions options) throws CloudException {
+        if( image == null || (options != null && !options.matches(image)) ) {
+            return false;
+        }
+        if( options == null || options.getWithAllRegions() ) {
+            return true;
+        }
+        return image.getProviderRegionId().equals(getContext().getRegionId());
+    }
+
     @Nonnull
     @Override
     public Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options) throws CloudException, InternalException {
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps template UUIDs (dasein machine image IDs) to the templates that carry them. The index is filled by a single
+ * property collector query for every virtual machine along with the folders and datacenters needed to place it in a
+ * region; only templates are kept. It is rebuilt after five minutes, when a lookup misses and the index is more than
+ * 30 seconds old, and after this process creates or removes a template. The machine image for each template is built
+ * on first request and kept with the entry. Indexes are held in the Dasein cache, which replaces each one after
+ * an hour.
+ */
+class TemplateIndex {
+    static private final Logger log = PrivateCloud.getLogger(TemplateIndex.class, "std");
+
+    static private final long INDEX_TIMEOUT = CalendarWrapper.MINUTE * 5L;
+    static private final long MISS_DELAY    = CalendarWrapper.SECOND * 30L;
+
+    static private final String[] TEMPLATE_PROPERTIES = new String[] {
+            "name", "parent", "config.template", "config.uuid", "config.guestId", "config.guestFullName", "runtime.powerState"
+    };
+
+    static @Nonnull TemplateIndex getInstance(@Nonnull PrivateCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<TemplateIndex> cache = Cache.getInstance(provider, "templateIndex", TemplateIndex.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+        synchronized( TemplateIndex.class ) {
+            Collection<TemplateIndex> list = ( Collection<TemplateIndex> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = Collections.singletonList(new TemplateIndex());
+                cache.put(ctx, list);
+            }
+            return list.iterator().next();
+        }
+    }
+
+    /**
+     * A template as of the query that found it.
+     */
+    static class Entry {
+        private ObjectProperties      properties;
+        private InventorySnapshot     inventory;
+        private volatile MachineImage image;
+
+        @Nonnull ManagedObjectReference getTemplate() {
+            return properties.getMOR();
+        }
+
+        @Nonnull ObjectProperties getProperties() {
+            return properties;
+        }
+
+        /**
+         * @return the templates, folders and datacenters of the query that found this template
+         */
+        @Nonnull InventorySnapshot getInventory() {
+            return inventory;
+        }
+
+        @Nullable MachineImage getImage() {
+            return image;
+        }
+
+        void setImage(@Nullable MachineImage image) {
+            this.image = image;
+        }
+    }
+
+    private Map<String,Entry> entries = new HashMap<String, Entry>();
+    private long              loaded;
+
+    private TemplateIndex() { }
+
+    /**
+     * Looks up a template by UUID, reloading the index if it has expired or, when the last load is not too recent,
+     * if the template is not in it.
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @param templateId the template UUID
+     * @return the matching template or null if there is no such template
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nullable Entry get(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull String templateId) throws CloudException {
+        long now = System.currentTimeMillis();
+
+        if( now - loaded > INDEX_TIMEOUT ) {
+            load(provider, instance);
+        }
+        Entry entry = entries.get(templateId);
+
+        if( entry == null && now - loaded > MISS_DELAY ) {
+            load(provider, instance);
+            entry = entries.get(templateId);
+        }
+        return entry;
+    }
+
+    /**
+     * @param provider the cloud provider
+     * @param instance the service instance to query
+     * @return all indexed templates, reloading the index if it has expired
+     * @throws CloudException an error occurred querying vSphere
+     */
+    synchronized @Nonnull List<Entry> list(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        if( System.currentTimeMillis() - loaded > INDEX_TIMEOUT ) {
+            load(provider, instance);
+        }
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Forces the next lookup to reload the index, such as after a template has been created or removed.
+     */
+    synchronized void invalidate() {
+        loaded = 0L;
+    }
+
+    private void load(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance) throws CloudException {
+        APITrace.begin(provider, "TemplateIndex.load");
+        try {
+            List<ObjectProperties> contents = new PropertyRetriever(instance).retrieve(instance.getRootFolder(),
+                    PropertyRetriever.spec("VirtualMachine", TEMPLATE_PROPERTIES),
+                    PropertyRetriever.spec("Folder", "name", "parent"),
+                    PropertyRetriever.spec("Datacenter", "name", "parent"));
+            ArrayList<ObjectProperties> kept = new ArrayList<ObjectProperties>();
+            ArrayList<ObjectProperties> templates = new ArrayList<ObjectProperties>();
+
+            for( ObjectProperties p : contents ) {
+                if( !p.getType().equals("VirtualMachine") ) {
+                    kept.add(p);
+                }
+                else if( p.getBoolean("config.template") && p.getString("config.uuid") != null ) {
+                    kept.add(p);
+                    templates.add(p);
+                }
+            }
+            InventorySnapshot inventory = new InventorySnapshot(kept);
+            HashMap<String,Entry> map = new HashMap<String, Entry>();
+
+            for( ObjectProperties template : templates ) {
+                String uuid = template.getString("config.uuid");
+                Entry entry = entries.get(uuid);
+                Entry fresh = new Entry();
+
+                fresh.properties = template;
+                fresh.inventory = inventory;
+                // keep the machine image of a template that has not changed
+                if( entry != null && isUnchanged(entry.properties, template) ) {
+                    fresh.image = entry.image;
+                }
+                map.put(uuid, fresh);
+            }
+            entries = map;
+            loaded = System.currentTimeMillis();
+            if( log.isDebugEnabled() ) {
+                log.debug("Indexed " + map.size() + " templates among " + contents.size() + " inventory objects");
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private boolean isUnchanged(@Nonnull ObjectProperties before, @Nonnull ObjectProperties after) {
+        if( !before.getKey().equals(after.getKey()) ) {
+            return false;
+        }
+        for( String path : TEMPLATE_PROPERTIES ) {
+            Object a = before.get(path);
+            Object b = after.get(path);
+
+            if( a instanceof ManagedObjectReference ) {
+                a = ObjectProperties.getKey(( ManagedObjectReference ) a);
+            }
+            if( b instanceof ManagedObjectReference ) {
+                b = ObjectProperties.getKey(( ManagedObjectReference ) b);
+            }
+            if( a == null ? b != null : !a.equals(b) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,6 +20,15 @@ package org.dasein.cloud.vsphere.compute;
 
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.vmware.vim25.*;
 import org.dasein.cloud.CloudErrorType;
@@ -37,7 +46,12 @@ import org.dasein.cloud.network.VLANSupport;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
 import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
 
 import com.vmware.vim25.mo.ComputeResource;
 import com.vmware.vim25.mo.Datacenter;
@@ -50,12 +64,9 @@ import com.vmware.vim25.mo.ResourcePool;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 
-import org.dasein.util.CalendarWrapper;
 
-import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Kilobyte;
-import org.dasein.util.uom.storage.Megabyte;
-import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
 
@@ -66,6 +77,33 @@ import javax.servlet.http.HttpServletResponse;
 public class Vm extends AbstractVMSupport<PrivateCloud> {
     static private final Logger log = PrivateCloud.getLogger(Vm.class, "std");
 
+    static public final String[] VM_PROPERTIES = new String[] {
+            "name", "parent", "resourcePool",
+            "config.template", "config.instanceUuid", "config.guestId", "config.guestFullName", "config.annotation",
+            "config.hardware.numCPU", "config.hardware.memoryMB", "config.datastoreUrl",
+            "runtime.host", "runtime.powerState", "runtime.bootTime", "runtime.suspendTime",
+            "guest.hostName", "guest.ipAddress", "guest.net"
+    };
+
+    /**
+     * The name of the snapshot on the base of a template's linked clones from which the linked clones are created.
+     */
+    static public final String LINKED_CLONE_SNAPSHOT = "dasein-linked-clone-base";
+
+    /**
+     * The annotation marking the base of a template's linked clones, followed by the ID of the template.
+     */
+    static public final String LINKED_CLONE_BASE = "dasein-cloud:linked-clone-base:";
+
+    /**
+     * Space set aside on the datastore of a new virtual machine for its configuration, logs and other small files.
+     */
+    static private final long VM_FILE_OVERHEAD_MB = 512L;
+
+    static private final int DEFAULT_LAUNCH_CONCURRENCY = 8;
+
+    static private final Object linkedCloneLock = new Object();
+
     Vm(@Nonnull PrivateCloud provider) {
         super(provider);
     }
@@ -79,6 +117,10 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return instance;
     }
 
+    private @Nonnull TrackedTask track(@Nonnull Task task) throws CloudException, InternalException {
+        return TaskTracker.getInstance(getProvider()).track(task);
+    }
+
     @Override
     public void start(@Nonnull String serverId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.start");
@@ -95,21 +137,24 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                     if( dc == null ) {
                         throw new CloudException("Could not identify a deployment data center.");
                     }
-                    HostSystem host = getHost(vm);
+                    // any host of the VM's compute resource will do, so power on wherever DRS or the load says
+                    ManagedObjectReference target = chooseHost(vm.getResourcePool(), vm, 0L, getDatastores(vm));
+                    HostSystem host = (target == null ? getHost(vm) : new HostSystem(vm.getServerConnection(), target));
                     Task task = null;
                     if( host == null ) {
-                        task = vm.powerOnVM_Task(getBestHost(dc, datacenter));
+                        task = VmTasks.powerOn(vm, getBestHost(dc, datacenter));
                     }
                     else {
-                        task = vm.powerOnVM_Task(host);
+                        task = VmTasks.powerOn(vm, host);
                     }
-                    String status = task.waitForTask();
+                    TrackedTask tracked = track(task);
+                    String status = tracked.waitForTask();
 
                     if( !status.equals(Task.SUCCESS) ) {
-                        if( task.getTaskInfo().getError().getLocalizedMessage().contains("lock the file") ) {
-                            throw new CloudException("Failed to start VM: " + task.getTaskInfo().getError().getLocalizedMessage() + ". This vm may be using a disk file already in use");
+                        if( tracked.getErrorMessage().contains("lock the file") ) {
+                            throw new CloudException("Failed to start VM: " + tracked.getErrorMessage() + ". This vm may be using a disk file already in use");
                         }
-                        throw new CloudException("Failed to start VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                        throw new CloudException("Failed to start VM: " + tracked.getErrorMessage());
                     }
                 }
                 catch( TaskInProgress e ) {
@@ -135,10 +180,27 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     @Nonnull com.vmware.vim25.mo.VirtualMachine clone(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull String name, boolean asTemplate) throws InternalException, CloudException {
+        return clone(instance, vm, name, asTemplate, null, null);
+    }
+
+    /**
+     * Clones a virtual machine or template into a powered-off virtual machine (or a template).
+     * @param instance the service instance to work through
+     * @param vm the virtual machine or template to clone
+     * @param name the name of the clone
+     * @param asTemplate true to make the clone a template
+     * @param into the resource pool for the clone or null to use that of the source, which must then be a virtual machine
+     * @param annotation the annotation of the clone or null to copy that of the source
+     * @return the clone
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the clone failed
+     */
+    @Nonnull com.vmware.vim25.mo.VirtualMachine clone(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull String name, boolean asTemplate, @Nullable ResourcePool into, @Nullable String annotation) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.clone(ServiceInstance, VirtualMachine)");
         try {
             try {
-                String dcId = getDataCenter(vm);
+                ResourcePool pool = (into == null ? vm.getResourcePool() : into);
+                String dcId = (pool == null ? null : pool.getOwner().getName());
 
                 if( dcId == null ) {
                     throw new CloudException("Virtual machine " + vm + " has no data center parent");
@@ -153,8 +215,6 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 else {
                     dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dcId);
                 }
-                ResourcePool pool = vm.getResourcePool();
-
                 if( dc == null ) {
                     throw new CloudException("Invalid DC for cloning operation: " + dcId);
                 }
@@ -167,7 +227,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 long memory = Long.parseLong(sizeInfo[1]);
 
                 config.setName(name);
-                config.setAnnotation(vm.getConfig().getAnnotation());
+                config.setAnnotation(annotation == null ? vm.getConfig().getAnnotation() : annotation);
                 config.setMemoryMB(memory);
                 config.setNumCPUs(cpuCount);
                 config.setCpuHotAddEnabled(true);
@@ -176,27 +236,33 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
                 VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
 
-                HostSystem host = getHost(vm);
-                if( host == null ) {
-                    location.setHost(getBestHost(dc, dcId).getConfig().getHost());
-                }
-                else {
-                    location.setHost(host.getConfig().getHost());
+                // a template has no host of its own to fall back on, so its clones are left for vCenter to place
+                ManagedObjectReference target = chooseHost(pool, (into == null ? vm : null), memory, getDatastores(vm));
+
+                if( target == null && into == null ) {
+                    HostSystem host = getHost(vm);
+
+                    target = (host == null ? getBestHost(dc, dcId) : host).getMOR();
                 }
+                location.setHost(target);
                 location.setPool(pool.getConfig().getEntity());
                 spec.setLocation(location);
                 spec.setPowerOn(false);
                 spec.setTemplate(asTemplate);
                 spec.setConfig(config);
 
-                Task task = vm.cloneVM_Task(vmFolder, name, spec);
-                String status = task.waitForTask();
+                Task task = VmTasks.cloneVm(vm, vmFolder, name, spec);
+                TrackedTask tracked = track(task);
+                String status = tracked.waitForTask();
 
                 if( status.equals(Task.SUCCESS) ) {
-                    return ( com.vmware.vim25.mo.VirtualMachine ) ( new InventoryNavigator(vmFolder).searchManagedEntity("VirtualMachine", name) );
+                    if( asTemplate ) {
+                        TemplateIndex.getInstance(getProvider()).invalidate();
+                    }
+                    return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), getCreatedVirtualMachine(tracked));
                 }
                 else {
-                    throw new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                    throw new CloudException("Failed to create VM: " + tracked.getErrorMessage());
                 }
             }
             catch( InvalidProperty e ) {
@@ -217,6 +283,78 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Turns a powered-off virtual machine from the {@link WarmPool} into the one described by the launch options. The
+     * virtual machine is renamed and sized to the requested product in one reconfiguration and then powered on.
+     * @param instance the service instance to work through
+     * @param mor the pooled virtual machine
+     * @param options the launch options
+     * @return the launched virtual machine
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the virtual machine could not be reconfigured or started
+     */
+    @Nonnull VirtualMachine activate(@Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference mor, @Nonnull VMLaunchOptions options) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.activate");
+        try {
+            try {
+                com.vmware.vim25.mo.VirtualMachine vm = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), mor);
+                VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
+                String[] vmInfo = options.getStandardProductId().split(":");
+                int cpuCount;
+                long memory;
+                if( vmInfo.length == 2 ) {
+                    cpuCount = Integer.parseInt(vmInfo[0]);
+                    memory = Long.parseLong(vmInfo[1]);
+                }
+                else {
+                    cpuCount = Integer.parseInt(vmInfo[1]);
+                    memory = Long.parseLong(vmInfo[2]);
+                }
+
+                config.setName(validateName(options.getHostName()));
+                config.setAnnotation(options.getMachineImageId());
+                config.setMemoryMB(memory);
+                config.setNumCPUs(cpuCount);
+                config.setCpuHotAddEnabled(true);
+                config.setNumCoresPerSocket(cpuCount);
+
+                TrackedTask tracked = track(VmTasks.reconfigure(vm, config));
+
+                if( !tracked.waitForTask().equals(Task.SUCCESS) ) {
+                    throw new CloudException("Failed to reconfigure pooled VM: " + tracked.getErrorMessage());
+                }
+                ManagedObjectReference target = chooseHost(vm.getResourcePool(), vm, memory, getDatastores(vm));
+
+                tracked = track(VmTasks.powerOn(vm, target == null ? null : new HostSystem(instance.getServerConnection(), target)));
+                if( !tracked.waitForTask().equals(Task.SUCCESS) ) {
+                    throw new CloudException("Failed to start VM: " + tracked.getErrorMessage());
+                }
+                VirtualMachine server = toServer(instance, mor);
+
+                if( server == null ) {
+                    throw new CloudException("Unable to identify newly created server.");
+                }
+                return server;
+            }
+            catch( ManagedObjectNotFound e ) {
+                // deleted behind the pool's back, so the caller discards it and launches normally
+                throw new CloudException("Pooled VM no longer exists: " + e.getMessage());
+            }
+            catch( RuntimeFault e ) {
+                throw new InternalException(e);
+            }
+            catch( RemoteException e ) {
+                throw new CloudException(e);
+            }
+            catch( InterruptedException e ) {
+                throw new InternalException(e);
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
     @Override
     public VirtualMachine alterVirtualMachineSize(@Nonnull String virtualMachineId, @Nullable String cpuCount, @Nullable String ramInMB) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.alterVirtualMachine");
@@ -244,30 +382,21 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         }
 
                         CloudException lastError;
-                        Task task = vm.reconfigVM_Task(spec);
+                        Task task = VmTasks.reconfigure(vm, spec);
 
-                        String status = task.waitForTask();
+                        TrackedTask tracked = track(task);
+                        String status = tracked.waitForTask();
 
                         if( status.equals(Task.SUCCESS) ) {
-                            long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 20L );
-
-                            while( System.currentTimeMillis() < timeout ) {
-                                try {
-                                    Thread.sleep(10000L);
-                                }
-                                catch( InterruptedException ignore ) {
-                                }
+                            VirtualMachine s = toServer(instance, vm.getMOR());
 
-                                for( VirtualMachine s : listVirtualMachines() ) {
-                                    if( s.getProviderVirtualMachineId().equals(virtualMachineId) ) {
-                                        return s;
-                                    }
-                                }
+                            if( s != null ) {
+                                return s;
                             }
                             lastError = new CloudException("Unable to identify updated server.");
                         }
                         else {
-                            lastError = new CloudException("Failed to update VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                            lastError = new CloudException("Failed to update VM: " + tracked.getErrorMessage());
                         }
                         if( lastError != null ) {
                             throw lastError;
@@ -344,24 +473,68 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return source; // TODO: make this random
     }
 
-    private Random random = new Random();
-
     private @Nonnull VirtualMachine defineFromTemplate(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.define");
+        try {
+            ServiceInstance instance = getServiceInstance();
+            TemplateLaunch launch = prepareTemplateLaunch(instance, options);
+
+            return cloneFromTemplate(instance, launch, validateName(options.getHostName()));
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Everything about a template launch that is the same for every virtual machine it creates.
+     */
+    static private class TemplateLaunch {
+        VMLaunchOptions                    options;
+        com.vmware.vim25.mo.VirtualMachine template;
+        String                             dataCenterId;
+        ManagedEntity[]                    pools;
+        Folder                             vmFolder;
+        ManagedObjectReference             affinityHost;
+        int                                cpuCount;
+        long                               memory;
+        VirtualDeviceConfigSpec[]          deviceChange;
+        CustomizationSpec                  customization;
+        boolean                            linked;
+        com.vmware.vim25.mo.VirtualMachine base;
+        ManagedObjectReference             baseSnapshot;
+        long                               templateBytes;
+    }
+
+    /**
+     * Resolves the parts of a template launch that do not vary from one virtual machine to the next: the template, the
+     * resource pools to try, the folder, the size, the network changes, the guest customization and the base snapshot
+     * of a linked clone. Launching many virtual machines does this work once rather than once per virtual machine.
+     * @param instance the service instance to work through
+     * @param options the launch options
+     * @return the resolved launch
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the template, data center or resource pool could not be resolved
+     */
+    private @Nonnull TemplateLaunch prepareTemplateLaunch(@Nonnull ServiceInstance instance, @Nonnull VMLaunchOptions options) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.prepareTemplateLaunch");
         try {
             ProviderContext ctx = getProvider().getContext();
 
             if( ctx == null ) {
                 throw new InternalException("No context was set for this request");
             }
-            ServiceInstance instance = getServiceInstance();
             try {
                 com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, options.getMachineImageId());
 
                 if( template == null ) {
                     throw new CloudException("No such template: " + options.getMachineImageId());
                 }
-                String hostName = validateName(options.getHostName());
+                TemplateLaunch launch = new TemplateLaunch();
+
+                launch.options = options;
+                launch.template = template;
+
                 String dataCenterId = options.getDataCenterId();
                 String resourceProductStr = options.getStandardProductId();
                 String[] items = resourceProductStr.split(":");
@@ -373,14 +546,10 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                     String rid = ctx.getRegionId();
 
                     if( rid != null ) {
-                        for( DataCenter dsdc : getProvider().getDataCenterServices().listDataCenters(rid) ) {
-                            dataCenterId = dsdc.getProviderDataCenterId();
-                            if( random.nextInt() % 3 == 0 ) {
-                                break;
-                            }
-                        }
+                        dataCenterId = selectDataCenter(rid);
                     }
                 }
+                launch.dataCenterId = dataCenterId;
                 ManagedEntity[] pools = null;
 
                 Datacenter vdc = null;
@@ -412,8 +581,6 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                     }
                 }
 
-                CloudException lastError = null;
-
                 if( options.getResourcePoolId() != null ) {
                     ResourcePool pool = getProvider().getDataCenterServices().getVMWareResourcePool(options.getResourcePoolId());
                     if( pool != null ) {
@@ -423,310 +590,261 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         throw new CloudException("Unable to find resource pool with id " + options.getResourcePoolId());
                     }
                 }
+                if( pools == null || pools.length < 1 ) {
+                    throw new CloudException("Unable to identify a resource pool for " + dataCenterId);
+                }
+                launch.pools = pools;
 
-                for( ManagedEntity p : pools ) {
-                    ResourcePool pool = ( ResourcePool ) p;
-                    Folder vmFolder = vdc.getVmFolder();
-                    if( options.getVmFolderId() != null ) {
-                        ManagedEntity tmp = new InventoryNavigator(vmFolder).searchManagedEntity("Folder", options.getVmFolderId());
-                        if( tmp != null ) {
-                            vmFolder = ( Folder ) tmp;
-                        }
-                    }
-
-                    VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
-                    String[] vmInfo = options.getStandardProductId().split(":");
-                    int cpuCount;
-                    long memory;
-                    if( vmInfo.length == 2 ) {
-                        cpuCount = Integer.parseInt(vmInfo[0]);
-                        memory = Long.parseLong(vmInfo[1]);
-                    }
-                    else {
-                        cpuCount = Integer.parseInt(vmInfo[1]);
-                        memory = Long.parseLong(vmInfo[2]);
+                Folder vmFolder = vdc.getVmFolder();
+                if( options.getVmFolderId() != null ) {
+                    ManagedEntity tmp = new InventoryNavigator(vmFolder).searchManagedEntity("Folder", options.getVmFolderId());
+                    if( tmp != null ) {
+                        vmFolder = ( Folder ) tmp;
                     }
+                }
+                launch.vmFolder = vmFolder;
 
-                    config.setName(hostName);
-                    config.setAnnotation(options.getMachineImageId());
-                    config.setMemoryMB(memory);
-                    config.setNumCPUs(cpuCount);
-                    config.setCpuHotAddEnabled(true);
-                    config.setNumCoresPerSocket(cpuCount);
-
-                    // record all networks we will end up with so that we can configure NICs correctly
-                    List<String> resultingNetworks = new ArrayList<String>();
-
-                    //networking section
-                    //borrowed heavily from https://github.com/jedi4ever/jvspherecontrol
-                    String vlan = options.getVlanId();
-
-                    if( vlan != null ) {
-
-                        // we don't need to do network config if the selected network
-                        // is part of the template config anyway
-                        VLANSupport vlanSupport = getProvider().getNetworkServices().getVlanSupport();
-                        Iterable<VLAN> accessibleNetworks = vlanSupport.listVlans();
-                        boolean changeRequired = true;
-                        List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>();
-                            log.warn("Template" + template.getName() + " (" + template.getConfig().getInstanceUuid() + ") doesn't have VMware tools installed, going through hardware");
-                            VirtualDevice[] virtualDevices = template.getConfig().getHardware().getDevice();
-                            VLAN targetVlan = null;
-                            for(VirtualDevice virtualDevice : virtualDevices) {
-                                if( virtualDevice instanceof VirtualEthernetCard ) {
-                                    VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
-                                    if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
-                                        boolean nicDeleted = false;
-                                        VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
-                                        if( vlan.equals(nicBacking.getNetwork().getVal()) ) {
-                                            changeRequired = false;
-                                        }
-                                        else {
-                                            for( VLAN accessibleNetwork : accessibleNetworks ) {
-                                                if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getNetwork().getVal()) ) {
-                                                    VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                                                    nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
-
-                                                    nicSpec.setDevice(veCard);
-                                                    machineSpecs.add(nicSpec);
-                                                    nicDeleted = true;
-                                                    break;
-                                                }
-                                                else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                    targetVlan = accessibleNetwork;
-                                                }
+                String[] vmInfo = options.getStandardProductId().split(":");
+                if( vmInfo.length == 2 ) {
+                    launch.cpuCount = Integer.parseInt(vmInfo[0]);
+                    launch.memory = Long.parseLong(vmInfo[1]);
+                }
+                else {
+                    launch.cpuCount = Integer.parseInt(vmInfo[1]);
+                    launch.memory = Long.parseLong(vmInfo[2]);
+                }
+
+                // record all networks we will end up with so that we can configure NICs correctly
+                List<String> resultingNetworks = new ArrayList<String>();
+
+                //networking section
+                //borrowed heavily from https://github.com/jedi4ever/jvspherecontrol
+                String vlan = options.getVlanId();
+
+                if( vlan != null ) {
+
+                    // we don't need to do network config if the selected network
+                    // is part of the template config anyway
+                    VLANSupport vlanSupport = getProvider().getNetworkServices().getVlanSupport();
+                    Iterable<VLAN> accessibleNetworks = vlanSupport.listVlans();
+                    boolean changeRequired = true;
+                    List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>();
+                        log.warn("Template" + template.getName() + " (" + template.getConfig().getInstanceUuid() + ") doesn't have VMware tools installed, going through hardware");
+                        VirtualDevice[] virtualDevices = template.getConfig().getHardware().getDevice();
+                        VLAN targetVlan = null;
+                        for(VirtualDevice virtualDevice : virtualDevices) {
+                            if( virtualDevice instanceof VirtualEthernetCard ) {
+                                VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
+                                if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
+                                    boolean nicDeleted = false;
+                                    VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
+                                    if( vlan.equals(nicBacking.getNetwork().getVal()) ) {
+                                        changeRequired = false;
+                                    }
+                                    else {
+                                        for( VLAN accessibleNetwork : accessibleNetworks ) {
+                                            if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getNetwork().getVal()) ) {
+                                                VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                                                nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
+
+                                                nicSpec.setDevice(veCard);
+                                                machineSpecs.add(nicSpec);
+                                                nicDeleted = true;
+                                                break;
+                                            }
+                                            else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                                targetVlan = accessibleNetwork;
                                             }
-                                        }
-                                        if( !nicDeleted ) {
-                                            resultingNetworks.add(nicBacking.getNetwork().getVal());
                                         }
                                     }
-                                    else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ){
-                                        boolean nicDeleted = false;
-                                        VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
-                                        if( vlan.equals(nicBacking.getPort().getPortgroupKey()) ) {
-                                            changeRequired = false;
-                                        }
-                                        else {
-                                            for( VLAN accessibleNetwork : accessibleNetworks ) {
-                                                if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getPort().getPortgroupKey()) ) {
-                                                    VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                                                    nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
-
-                                                    nicSpec.setDevice(veCard);
-                                                    machineSpecs.add(nicSpec);
-                                                    nicDeleted = true;
-                                                }
-                                                else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                    targetVlan = accessibleNetwork;
-                                                }
-                                                if( nicDeleted && targetVlan != null ) {
-                                                    break;
-                                                }
+                                    if( !nicDeleted ) {
+                                        resultingNetworks.add(nicBacking.getNetwork().getVal());
+                                    }
+                                }
+                                else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ){
+                                    boolean nicDeleted = false;
+                                    VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
+                                    if( vlan.equals(nicBacking.getPort().getPortgroupKey()) ) {
+                                        changeRequired = false;
+                                    }
+                                    else {
+                                        for( VLAN accessibleNetwork : accessibleNetworks ) {
+                                            if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getPort().getPortgroupKey()) ) {
+                                                VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                                                nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
+
+                                                nicSpec.setDevice(veCard);
+                                                machineSpecs.add(nicSpec);
+                                                nicDeleted = true;
+                                            }
+                                            else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                                targetVlan = accessibleNetwork;
+                                            }
+                                            if( nicDeleted && targetVlan != null ) {
+                                                break;
                                             }
-                                        }
-                                        if( !nicDeleted ) {
-                                            resultingNetworks.add(nicBacking.getPort().getPortgroupKey());
                                         }
                                     }
+                                    if( !nicDeleted ) {
+                                        resultingNetworks.add(nicBacking.getPort().getPortgroupKey());
+                                    }
                                 }
                             }
+                        }
 //                        }
 
-                        if( changeRequired && targetVlan != null ) {
-                            VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                            nicSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
+                    if( changeRequired && targetVlan != null ) {
+                        VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                        nicSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
 
-                            VirtualEthernetCard nic = new VirtualVmxnet3();
-                            nic.setConnectable(new VirtualDeviceConnectInfo());
-                            nic.connectable.connected = true;
-                            nic.connectable.startConnected = true;
+                        VirtualEthernetCard nic = new VirtualVmxnet3();
+                        nic.setConnectable(new VirtualDeviceConnectInfo());
+                        nic.connectable.connected = true;
+                        nic.connectable.startConnected = true;
 
-                            Description info = new Description();
-                            info.setLabel(targetVlan.getName());
-                            if( targetVlan.getProviderVlanId().startsWith("network") ) {
-                                info.setSummary("Nic for network " + targetVlan.getName());
+                        Description info = new Description();
+                        info.setLabel(targetVlan.getName());
+                        if( targetVlan.getProviderVlanId().startsWith("network") ) {
+                            info.setSummary("Nic for network " + targetVlan.getName());
 
-                                VirtualEthernetCardNetworkBackingInfo nicBacking = new VirtualEthernetCardNetworkBackingInfo();
-                                nicBacking.setDeviceName(targetVlan.getName());
+                            VirtualEthernetCardNetworkBackingInfo nicBacking = new VirtualEthernetCardNetworkBackingInfo();
+                            nicBacking.setDeviceName(targetVlan.getName());
 
-                                nic.setAddressType("generated");
-                                nic.setBacking(nicBacking);
-                                nic.setKey(0);
-                            }
-                            else {
-                                info.setSummary("Nic for DVS " + targetVlan.getName());
-
-                                VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = new VirtualEthernetCardDistributedVirtualPortBackingInfo();
-                                DistributedVirtualSwitchPortConnection connection = new DistributedVirtualSwitchPortConnection();
-                                connection.setPortgroupKey(targetVlan.getProviderVlanId());
-                                connection.setSwitchUuid(targetVlan.getTag("switch.uuid"));
-                                nicBacking.setPort(connection);
-                                nic.setAddressType("generated");
-                                nic.setBacking(nicBacking);
-                                nic.setKey(0);
-                            }
-                            nicSpec.setDevice(nic);
+                            nic.setAddressType("generated");
+                            nic.setBacking(nicBacking);
+                            nic.setKey(0);
+                        }
+                        else {
+                            info.setSummary("Nic for DVS " + targetVlan.getName());
+
+                            VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = new VirtualEthernetCardDistributedVirtualPortBackingInfo();
+                            DistributedVirtualSwitchPortConnection connection = new DistributedVirtualSwitchPortConnection();
+                            connection.setPortgroupKey(targetVlan.getProviderVlanId());
+                            connection.setSwitchUuid(targetVlan.getTag("switch.uuid"));
+                            nicBacking.setPort(connection);
+                            nic.setAddressType("generated");
+                            nic.setBacking(nicBacking);
+                            nic.setKey(0);
+                        }
+                        nicSpec.setDevice(nic);
 
-                            machineSpecs.add(nicSpec);
-                            resultingNetworks.add(vlan);
+                        machineSpecs.add(nicSpec);
+                        resultingNetworks.add(vlan);
 
-                        }
-                        config.setDeviceChange(machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]));
-                        // end networking section
                     }
+                    launch.deviceChange = machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]);
+                    // end networking section
+                }
 
-                    VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
-                    if( options.getAffinityGroupId() != null ) {
-                        Host agSupport = getProvider().getComputeServices().getAffinityGroupSupport();
-                        location.setHost(agSupport.getHostSystemForAffinity(options.getAffinityGroupId()).getConfig().getHost());
-                    }
-                    if( options.getStoragePoolId() != null ) {
-                        String locationId = options.getStoragePoolId();
+                if( options.getAffinityGroupId() != null ) {
+                    Host agSupport = getProvider().getComputeServices().getAffinityGroupSupport();
+                    launch.affinityHost = agSupport.getHostSystemForAffinity(options.getAffinityGroupId()).getConfig().getHost();
+                }
 
-                        Datastore[] datastores = vdc.getDatastores();
-                        for( Datastore ds : datastores ) {
-                            if( ds.getName().equals(locationId) ) {
-                                location.setDatastore(ds.getMOR());
-                                break;
-                            }
-                        }
+                boolean isCustomised = false;
+                if( options.getPrivateIp() != null ) {
+                    isCustomised = true;
+                    log.debug("isCustomised");
+                } else {
+                    log.debug("notCustomised");
+                }
+                CustomizationSpec customizationSpec = new CustomizationSpec();
+                if( isCustomised ) {
+                    String templatePlatform = template.getGuest().getGuestFullName();
+                    if(templatePlatform == null) templatePlatform = template.getName();
+                    Platform platform = Platform.guess(templatePlatform.toLowerCase());
+                    if (platform.isLinux()) {
+
+                        CustomizationLinuxPrep lPrep = new CustomizationLinuxPrep();
+                        lPrep.setDomain(options.getDnsDomain()); // not null
+                        lPrep.setHostName(new CustomizationVirtualMachineName()); // not null
+                        customizationSpec.setIdentity(lPrep);
                     }
-                    location.setPool(pool.getConfig().getEntity());
-
-                    boolean isCustomised = false;
-                    if( options.getPrivateIp() != null ) {
-                        isCustomised = true;
-                        log.debug("isCustomised");
-                    } else {
-                        log.debug("notCustomised");
+                    else if( platform.isWindows() ) {
+                        CustomizationSysprep sysprep = new CustomizationSysprep();
+
+                        CustomizationGuiUnattended guiCust = new CustomizationGuiUnattended();
+                        guiCust.setAutoLogon(false);
+                        guiCust.setAutoLogonCount(0);
+                        CustomizationPassword password = new CustomizationPassword();
+                        password.setPlainText(true);
+                        password.setValue(options.getBootstrapPassword());
+                        guiCust.setPassword(password);
+                        //log.debug("Windows pass for "+hostName+": "+password.getValue());
+
+                        sysprep.setGuiUnattended(guiCust);
+
+                        CustomizationIdentification identification = new CustomizationIdentification();
+                        identification.setJoinWorkgroup(options.getWinWorkgroupName());
+                        sysprep.setIdentification(identification);
+
+                        CustomizationUserData userData = new CustomizationUserData();
+                        userData.setComputerName(new CustomizationVirtualMachineName());
+                        userData.setFullName(options.getWinOwnerName());
+                        userData.setOrgName(options.getWinOrgName());
+                        userData.setProductId(options.getWinProductSerialNum());
+                        sysprep.setUserData(userData);
+
+                        customizationSpec.setIdentity(sysprep);
+                    }
+                    else {
+                        log.error("Guest customisation could not take place as platform is not linux or windows: " + platform);
+                        isCustomised = false;
                     }
-                    CustomizationSpec customizationSpec = new CustomizationSpec();
-                    if( isCustomised ) {
-                        String templatePlatform = template.getGuest().getGuestFullName();
-                        if(templatePlatform == null) templatePlatform = template.getName();
-                        Platform platform = Platform.guess(templatePlatform.toLowerCase());
-                        if (platform.isLinux()) {
-
-                            CustomizationLinuxPrep lPrep = new CustomizationLinuxPrep();
-                            lPrep.setDomain(options.getDnsDomain()); // not null
-                            lPrep.setHostName(new CustomizationVirtualMachineName()); // not null
-                            customizationSpec.setIdentity(lPrep);
-                        }
-                        else if( platform.isWindows() ) {
-                            CustomizationSysprep sysprep = new CustomizationSysprep();
-
-                            CustomizationGuiUnattended guiCust = new CustomizationGuiUnattended();
-                            guiCust.setAutoLogon(false);
-                            guiCust.setAutoLogonCount(0);
-                            CustomizationPassword password = new CustomizationPassword();
-                            password.setPlainText(true);
-                            password.setValue(options.getBootstrapPassword());
-                            guiCust.setPassword(password);
-                            //log.debug("Windows pass for "+hostName+": "+password.getValue());
-
-                            sysprep.setGuiUnattended(guiCust);
-
-                            CustomizationIdentification identification = new CustomizationIdentification();
-                            identification.setJoinWorkgroup(options.getWinWorkgroupName());
-                            sysprep.setIdentification(identification);
-
-                            CustomizationUserData userData = new CustomizationUserData();
-                            userData.setComputerName(new CustomizationVirtualMachineName());
-                            userData.setFullName(options.getWinOwnerName());
-                            userData.setOrgName(options.getWinOrgName());
-                            userData.setProductId(options.getWinProductSerialNum());
-                            sysprep.setUserData(userData);
-
-                            customizationSpec.setIdentity(sysprep);
-                        }
-                        else {
-                            log.error("Guest customisation could not take place as platform is not linux or windows: " + platform);
-                            isCustomised = false;
-                        }
-
-                        if( isCustomised ) {
-                            List<CustomizationAdapterMapping> adapterMappings = new ArrayList<CustomizationAdapterMapping>();
-                            for( String network : resultingNetworks ) {
-                                CustomizationAdapterMapping adapterMap = new CustomizationAdapterMapping();
-                                if( network.equalsIgnoreCase(vlan) ) {
-                                    CustomizationGlobalIPSettings globalIPSettings = new CustomizationGlobalIPSettings();
-                                    globalIPSettings.setDnsServerList(options.getDnsServerList());
-                                    globalIPSettings.setDnsSuffixList(options.getDnsSuffixList());
-                                    customizationSpec.setGlobalIPSettings(globalIPSettings);
-
-                                    CustomizationIPSettings adapter = new CustomizationIPSettings();
-                                    adapter.setDnsDomain(options.getDnsDomain());
-                                    adapter.setGateway(options.getGatewayList());
-                                    CustomizationFixedIp fixedIp = new CustomizationFixedIp();
-                                    fixedIp.setIpAddress(options.getPrivateIp());
-                                    adapter.setIp(fixedIp);
-                                    if( options.getMetaData().containsKey("vSphereNetMaskNothingToSeeHere") ) {
-                                        String netmask = ( String ) options.getMetaData().get("vSphereNetMaskNothingToSeeHere");
-                                        adapter.setSubnetMask(netmask);
-                                        log.debug("custom subnet mask: " + netmask);
-                                    }
-                                    else {
-                                        adapter.setSubnetMask("255.255.252.0");
-                                        log.debug("default subnet mask");
-                                    }
 
-                                    adapterMap.setAdapter(adapter);
+                    if( isCustomised ) {
+                        List<CustomizationAdapterMapping> adapterMappings = new ArrayList<CustomizationAdapterMapping>();
+                        for( String network : resultingNetworks ) {
+                            CustomizationAdapterMapping adapterMap = new CustomizationAdapterMapping();
+                            if( network.equalsIgnoreCase(vlan) ) {
+                                CustomizationGlobalIPSettings globalIPSettings = new CustomizationGlobalIPSettings();
+                                globalIPSettings.setDnsServerList(options.getDnsServerList());
+                                globalIPSettings.setDnsSuffixList(options.getDnsSuffixList());
+                                customizationSpec.setGlobalIPSettings(globalIPSettings);
+
+                                CustomizationIPSettings adapter = new CustomizationIPSettings();
+                                adapter.setDnsDomain(options.getDnsDomain());
+                                adapter.setGateway(options.getGatewayList());
+                                CustomizationFixedIp fixedIp = new CustomizationFixedIp();
+                                fixedIp.setIpAddress(options.getPrivateIp());
+                                adapter.setIp(fixedIp);
+                                if( options.getMetaData().containsKey("vSphereNetMaskNothingToSeeHere") ) {
+                                    String netmask = ( String ) options.getMetaData().get("vSphereNetMaskNothingToSeeHere");
+                                    adapter.setSubnetMask(netmask);
+                                    log.debug("custom subnet mask: " + netmask);
                                 }
                                 else {
-                                    CustomizationIPSettings adapter = new CustomizationIPSettings();
-                                    adapter.setDnsDomain(options.getDnsDomain());
-                                    adapter.setIp(new CustomizationDhcpIpGenerator());
-                                    adapterMap.setAdapter(adapter);
+                                    adapter.setSubnetMask("255.255.252.0");
+                                    log.debug("default subnet mask");
                                 }
-                                adapterMappings.add(adapterMap);
-                            }
-                            customizationSpec.setNicSettingMap(adapterMappings.toArray(new CustomizationAdapterMapping[adapterMappings.size()]));
-                        }
-                    }
-
-                    VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
-                    spec.setLocation(location);
-                    spec.setPowerOn(true);
-                    spec.setTemplate(false);
-                    spec.setConfig(config);
-                    if( isCustomised ) {
-                        spec.setCustomization(customizationSpec);
-                    }
 
-                    Task task = template.cloneVM_Task(vmFolder, hostName, spec);
-
-                    String status = task.waitForTask();
-
-                    if( status.equals(Task.SUCCESS) ) {
-                        long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 20L );
-
-                        while( System.currentTimeMillis() < timeout ) {
-                            try {
-                                Thread.sleep(10000L);
-                            }
-                            catch( InterruptedException ignore ) {
+                                adapterMap.setAdapter(adapter);
                             }
-
-                            for( VirtualMachine s : listVirtualMachines() ) {
-                                if( s.getName().equals(hostName) ) {
-                                    if( isCustomised && s.getPlatform().equals(Platform.WINDOWS) ) {
-                                        s.setRootPassword(options.getBootstrapPassword());
-                                    }
-                                    return s;
-                                }
+                            else {
+                                CustomizationIPSettings adapter = new CustomizationIPSettings();
+                                adapter.setDnsDomain(options.getDnsDomain());
+                                adapter.setIp(new CustomizationDhcpIpGenerator());
+                                adapterMap.setAdapter(adapter);
                             }
+                            adapterMappings.add(adapterMap);
                         }
-                        lastError = new CloudException("Unable to identify newly created server.");
-                    }
-                    else {
-                        lastError = new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                        customizationSpec.setNicSettingMap(adapterMappings.toArray(new CustomizationAdapterMapping[adapterMappings.size()]));
                     }
                 }
-                if( lastError != null ) {
-                    throw lastError;
+                if( isCustomised ) {
+                    launch.customization = customizationSpec;
                 }
-                throw new CloudException("No server and no error");
+
+                launch.linked = isLinkedClone(options);
+                if( launch.linked ) {
+                    launch.base = getLinkedCloneBase(instance, launch);
+                    launch.baseSnapshot = getLinkedCloneSnapshot(launch.base);
+                }
+                ObjectProperties templateStorage = new PropertyRetriever(instance).retrieve(template.getMOR(), "summary.storage.committed");
+                Long committed = (templateStorage == null ? null : templateStorage.getLong("summary.storage.committed"));
+
+                launch.templateBytes = (committed == null ? 0L : committed);
+                return launch;
             }
             catch( InvalidProperty e ) {
                 throw new CloudException(e);
@@ -746,75 +864,352 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
-    private @Nonnull VirtualMachine defineFromScratch(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.define");
-        try {
-            ProviderContext ctx = getProvider().getContext();
+    /**
+     * Clones a virtual machine from a prepared template launch, trying each of its resource pools in turn.
+     * @param instance the service instance to work through
+     * @param launch the prepared launch
+     * @param hostName the name of the new virtual machine
+     * @return the new virtual machine
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException the clone failed in every resource pool
+     */
+    private @Nonnull VirtualMachine cloneFromTemplate(@Nonnull ServiceInstance instance, @Nonnull TemplateLaunch launch, @Nonnull String hostName) throws InternalException, CloudException {
+        VMLaunchOptions options = launch.options;
+        // linked clones are made from the base prepared for them rather than from the template itself
+        com.vmware.vim25.mo.VirtualMachine source = (launch.linked ? launch.base : launch.template);
 
-            if( ctx == null ) {
-                throw new InternalException("No context was set for this request");
-            }
-            ServiceInstance instance = getServiceInstance();
-            try {
-                String hostName = validateName(options.getHostName());
-                String dataCenterId = options.getDataCenterId();
-                String resourceProductStr = options.getStandardProductId();
-                String imageId = options.getMachineImageId();
-                String[] items = resourceProductStr.split(":");
-                if( items.length == 3 ) {
-                    options.withResourcePoolId(items[0]);
-                }
+        try {
+            CloudException lastError = null;
 
-                if( dataCenterId == null ) {
-                    String rid = ctx.getRegionId();
+            for( ManagedEntity p : launch.pools ) {
+                ResourcePool pool = ( ResourcePool ) p;
+                VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
 
-                    if( rid != null ) {
-                        for( DataCenter dsdc : getProvider().getDataCenterServices().listDataCenters(rid) ) {
-                            dataCenterId = dsdc.getProviderDataCenterId();
-                            if( random.nextInt() % 3 == 0 ) {
-                                break;
-                            }
-                        }
-                    }
+                config.setName(hostName);
+                config.setAnnotation(options.getMachineImageId());
+                config.setMemoryMB(launch.memory);
+                config.setNumCPUs(launch.cpuCount);
+                config.setCpuHotAddEnabled(true);
+                config.setNumCoresPerSocket(launch.cpuCount);
+                if( launch.deviceChange != null ) {
+                    config.setDeviceChange(launch.deviceChange);
                 }
-                ManagedEntity[] pools = null;
 
-                Datacenter vdc = null;
+                VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+                location.setPool(pool.getConfig().getEntity());
 
-                if( dataCenterId != null ) {
-                    DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
-                    if( ourDC != null ) {
-                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
+                // full clones copy the template's disks, so they go where there is room unless a datastore was named;
+                // linked clones stay with the datastore of their base by default
+                DatastorePlacement.Reservation reservation = null;
 
-                        if( vdc == null ) {
-                            throw new CloudException("Unable to identify VDC " + dataCenterId);
-                        }
+                if( options.getStoragePoolId() != null || !launch.linked ) {
+                    DatastorePlacement placement = new DatastorePlacement(getProvider());
+                    List<DatastorePlacement.Candidate> datastores = placement.getCandidates(instance, pool.getOwner().getMOR());
+                    long bytes = (launch.memory + VM_FILE_OVERHEAD_MB) * 1024L * 1024L;
 
-                        if( options.getResourcePoolId() == null ) {
-                            ResourcePool pool = getProvider().getDataCenterServices().getResourcePoolFromClusterId(instance, dataCenterId);
-                            if( pool != null ) {
-                                pools = new ManagedEntity[]{pool};
-                            }
+                    if( options.getStoragePoolId() != null ) {
+                        DatastorePlacement.Candidate ds = placement.find(datastores, options.getStoragePoolId());
+
+                        if( ds == null ) {
+                            // another resource pool's cluster may mount it
+                            lastError = new CloudException("No such storage pool " + options.getStoragePoolId() + " for vm " + hostName);
+                            continue;
                         }
+                        reservation = placement.reserve(ds, (launch.linked ? bytes : bytes + launch.templateBytes));
                     }
                     else {
-                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dataCenterId);
-                        if( options.getResourcePoolId() == null ) {
-                            pools = new InventoryNavigator(vdc).searchManagedEntities("ResourcePool");
+                        reservation = placement.place(datastores, bytes + launch.templateBytes);
+                        if( reservation == null ) {
+                            lastError = new CloudException("Unable to find a datastore for vm " + hostName);
+                            continue;
                         }
                     }
+                    location.setDatastore(reservation.getDatastore());
                 }
+                location.setHost(launch.affinityHost);
+                if( location.getHost() == null ) {
+                    // the clone's files go to the reserved datastore or otherwise stay with the template's
+                    ManagedObjectReference[] stores = (reservation == null ? getDatastores(source) : new ManagedObjectReference[] { reservation.getDatastore() });
 
-                CloudException lastError = null;
+                    location.setHost(chooseHost(pool, null, launch.memory, stores));
+                }
 
-                if( options.getResourcePoolId() != null ) {
-                    ResourcePool pool = getProvider().getDataCenterServices().getVMWareResourcePool(options.getResourcePoolId());
-                    if( pool != null ) {
-                        pools = new ManagedEntity[]{pool};
-                    }
-                    else {
-                        throw new CloudException("Unable to find resource pool with id " + options.getResourcePoolId());
-                    }
+                VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+                spec.setLocation(location);
+                spec.setPowerOn(true);
+                spec.setTemplate(false);
+                spec.setConfig(config);
+                if( launch.customization != null ) {
+                    spec.setCustomization(launch.customization);
+                }
+                if( launch.linked ) {
+                    location.setDiskMoveType(VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+                    spec.setSnapshot(launch.baseSnapshot);
+                }
+
+                TrackedTask tracked = null;
+
+                try {
+                    tracked = track(VmTasks.cloneVm(source, launch.vmFolder, hostName, spec));
+                }
+                finally {
+                    if( tracked == null && reservation != null ) {
+                        reservation.release();
+                    }
+                }
+                if( reservation != null ) {
+                    tracked.addListener(reservation);
+                }
+                String status = tracked.waitForTask();
+
+                if( status.equals(Task.SUCCESS) ) {
+                    VirtualMachine s = toServer(instance, getCreatedVirtualMachine(tracked));
+
+                    if( s != null ) {
+                        if( launch.customization != null && s.getPlatform().equals(Platform.WINDOWS) ) {
+                            s.setRootPassword(options.getBootstrapPassword());
+                        }
+                        return s;
+                    }
+                    lastError = new CloudException("Unable to identify newly created server.");
+                }
+                else {
+                    lastError = new CloudException("Failed to create VM: " + tracked.getErrorMessage());
+                }
+            }
+            if( lastError != null ) {
+                throw lastError;
+            }
+            throw new CloudException("No server and no error");
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Linked clones are requested per launch with the metadata flag &quot;vSphereLinkedClone&quot; or for every template
+     * launch with the custom property &quot;linkedClones&quot;.
+     * @param options the launch options
+     * @return true if the new virtual machine should be a linked clone of its template
+     */
+    private boolean isLinkedClone(@Nonnull VMLaunchOptions options) {
+        Object flag = options.getMetaData().get("vSphereLinkedClone");
+
+        if( flag != null ) {
+            return flag.toString().equalsIgnoreCase("true");
+        }
+        String value = getProvider().getCustomProperty("linkedClones");
+
+        return (value != null && value.equalsIgnoreCase("true"));
+    }
+
+    /**
+     * Provides the base of a template's linked clones, creating it the first time it is needed. vSphere cannot
+     * snapshot a template, so linked clones are made from a powered-off clone of the template that is marked with
+     * {@link #LINKED_CLONE_BASE} and hidden from tenants; the template itself is never changed and stays available to
+     * other launches. The base is named for the template and kept in the template's folder, so a base created by
+     * another process is found and reused. Delete it to have linked clones pick up changes made to the template.
+     * @param instance the service instance to work through
+     * @param launch the launch of the template
+     * @return the base of the linked clones
+     * @throws CloudException the base could not be created or another virtual machine has its name
+     * @throws RemoteException an error occurred talking to vSphere
+     * @throws InterruptedException the wait for the base was interrupted
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    private @Nonnull com.vmware.vim25.mo.VirtualMachine getLinkedCloneBase(@Nonnull ServiceInstance instance, @Nonnull TemplateLaunch launch) throws CloudException, RemoteException, InterruptedException, InternalException {
+        String templateId = launch.options.getMachineImageId();
+        String name = LINKED_CLONE_SNAPSHOT + "-" + templateId;
+        Folder folder = ( Folder ) launch.template.getParent();
+        com.vmware.vim25.mo.VirtualMachine base = findLinkedCloneBase(instance, folder, name, templateId);
+
+        if( base != null ) {
+            return base;
+        }
+        synchronized( linkedCloneLock ) {
+            base = findLinkedCloneBase(instance, folder, name, templateId);
+            if( base != null ) {
+                return base;
+            }
+            log.info("Creating linked clone base " + name);
+            ResourcePool pool = ( ResourcePool ) launch.pools[0];
+            VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
+
+            config.setAnnotation(LINKED_CLONE_BASE + templateId);
+
+            VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+
+            location.setPool(pool.getConfig().getEntity());
+            location.setHost(chooseHost(pool, null, 0L, getDatastores(launch.template)));
+
+            VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+
+            spec.setLocation(location);
+            spec.setPowerOn(false);
+            spec.setTemplate(false);
+            spec.setConfig(config);
+
+            TrackedTask tracked = track(VmTasks.cloneVm(launch.template, folder, name, spec));
+
+            if( !tracked.waitForTask().equals(Task.SUCCESS) ) {
+                // another process may have created the base first
+                base = findLinkedCloneBase(instance, folder, name, templateId);
+                if( base == null ) {
+                    throw new CloudException("Failed to create linked clone base for " + templateId + ": " + tracked.getErrorMessage());
+                }
+                return base;
+            }
+            return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), getCreatedVirtualMachine(tracked));
+        }
+    }
+
+    private @Nullable com.vmware.vim25.mo.VirtualMachine findLinkedCloneBase(@Nonnull ServiceInstance instance, @Nonnull Folder folder, @Nonnull String name, @Nonnull String templateId) throws CloudException, RemoteException {
+        ManagedEntity entity = instance.getSearchIndex().findChild(folder, name);
+
+        if( entity == null ) {
+            return null;
+        }
+        ObjectProperties properties = new PropertyRetriever(instance).retrieve(entity.getMOR(), "config.annotation");
+
+        if( properties == null || !(LINKED_CLONE_BASE + templateId).equals(properties.getString("config.annotation")) ) {
+            throw new CloudException("Another virtual machine is using the name " + name + " of the linked clone base for " + templateId);
+        }
+        return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), entity.getMOR());
+    }
+
+    /**
+     * Provides the snapshot on the base of a template's linked clones from which the linked clones share their disks,
+     * taking it the first time it is needed.
+     * @param base the base of the linked clones
+     * @return the base snapshot
+     * @throws CloudException the snapshot could not be taken
+     * @throws RemoteException an error occurred talking to vSphere
+     * @throws InterruptedException the wait for the snapshot was interrupted
+     */
+    private @Nonnull ManagedObjectReference getLinkedCloneSnapshot(@Nonnull com.vmware.vim25.mo.VirtualMachine base) throws CloudException, RemoteException, InterruptedException {
+        VirtualMachineSnapshotInfo info = base.getSnapshot();
+        ManagedObjectReference snapshot = (info == null ? null : findSnapshot(info.getRootSnapshotList(), LINKED_CLONE_SNAPSHOT));
+
+        if( snapshot != null ) {
+            return snapshot;
+        }
+        synchronized( linkedCloneLock ) {
+            info = base.getSnapshot();
+            snapshot = (info == null ? null : findSnapshot(info.getRootSnapshotList(), LINKED_CLONE_SNAPSHOT));
+            if( snapshot != null ) {
+                return snapshot;
+            }
+            TrackedTask tracked = track(VmTasks.snapshot(base, LINKED_CLONE_SNAPSHOT, "Base for linked clones created by Dasein Cloud"));
+
+            if( tracked.waitForTask().equals(Task.SUCCESS) ) {
+                snapshot = ( ManagedObjectReference ) tracked.getResult();
+            }
+            else {
+                // another process may have taken the snapshot first
+                info = base.getSnapshot();
+                snapshot = (info == null ? null : findSnapshot(info.getRootSnapshotList(), LINKED_CLONE_SNAPSHOT));
+                if( snapshot == null ) {
+                    throw new CloudException("Failed to create linked clone snapshot: " + tracked.getErrorMessage());
+                }
+            }
+            if( snapshot == null ) {
+                throw new CloudException("Unable to identify linked clone snapshot on " + base.getName());
+            }
+            return snapshot;
+        }
+    }
+
+    private @Nullable ManagedObjectReference findSnapshot(@Nullable VirtualMachineSnapshotTree[] trees, @Nonnull String name) {
+        if( trees == null ) {
+            return null;
+        }
+        for( VirtualMachineSnapshotTree tree : trees ) {
+            if( name.equals(tree.getName()) ) {
+                return tree.getSnapshot();
+            }
+            ManagedObjectReference snapshot = findSnapshot(tree.getChildSnapshotList(), name);
+
+            if( snapshot != null ) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    private @Nonnull VirtualMachine defineFromScratch(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.define");
+        try {
+            ProviderContext ctx = getProvider().getContext();
+
+            if( ctx == null ) {
+                throw new InternalException("No context was set for this request");
+            }
+            ServiceInstance instance = getServiceInstance();
+            try {
+                String hostName = validateName(options.getHostName());
+                String dataCenterId = options.getDataCenterId();
+                String resourceProductStr = options.getStandardProductId();
+                String imageId = options.getMachineImageId();
+                String[] items = resourceProductStr.split(":");
+                if( items.length == 3 ) {
+                    options.withResourcePoolId(items[0]);
+                }
+
+                if( dataCenterId == null ) {
+                    String rid = ctx.getRegionId();
+
+                    if( rid != null ) {
+                        dataCenterId = selectDataCenter(rid);
+                    }
+                }
+                ManagedEntity[] pools = null;
+
+                Datacenter vdc = null;
+
+                if( dataCenterId != null ) {
+                    DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
+                    if( ourDC != null ) {
+                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
+
+                        if( vdc == null ) {
+                            throw new CloudException("Unable to identify VDC " + dataCenterId);
+                        }
+
+                        if( options.getResourcePoolId() == null ) {
+                            ResourcePool pool = getProvider().getDataCenterServices().getResourcePoolFromClusterId(instance, dataCenterId);
+                            if( pool != null ) {
+                                pools = new ManagedEntity[]{pool};
+                            }
+                        }
+                    }
+                    else {
+                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dataCenterId);
+                        if( options.getResourcePoolId() == null ) {
+                            pools = new InventoryNavigator(vdc).searchManagedEntities("ResourcePool");
+                        }
+                    }
+                }
+
+                CloudException lastError = null;
+
+                if( options.getResourcePoolId() != null ) {
+                    ResourcePool pool = getProvider().getDataCenterServices().getVMWareResourcePool(options.getResourcePoolId());
+                    if( pool != null ) {
+                        pools = new ManagedEntity[]{pool};
+                    }
+                    else {
+                        throw new CloudException("Unable to find resource pool with id " + options.getResourcePoolId());
+                    }
                 }
 
                 for( ManagedEntity p : pools ) {
@@ -848,31 +1243,6 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                     config.setNumCoresPerSocket(cpuCount);
                     config.setGuestId(imageId);
 
-                    // create vm file info for the vmx file
-                    VirtualMachineFileInfo vmfi = new VirtualMachineFileInfo();
-                    String vmDataStoreName = null;
-                    Datastore[] datastores = vdc.getDatastores();
-                    for( Datastore ds : datastores ) {
-                        if( options.getStoragePoolId() != null ) {
-                            String locationId = options.getStoragePoolId();
-                            if( ds.getName().equals(locationId) ) {
-                                vmDataStoreName = ds.getName();
-                                break;
-                            }
-                        }
-                        else {
-                            //just pick the first datastore as user doesn't care
-                            vmDataStoreName = ds.getName();
-                            break;
-                        }
-                    }
-                    if( vmDataStoreName == null ) {
-                        throw new CloudException("Unable to find a datastore for vm " + hostName);
-                    }
-
-                    vmfi.setVmPathName("[" + vmDataStoreName + "]");
-                    config.setFiles(vmfi);
-
                     //networking section
                     //borrowed heavily from https://github.com/jedi4ever/jvspherecontrol
                     String vlan = options.getVlanId();
@@ -908,6 +1278,26 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         throw new CloudException("You must choose a network when creating a vm from scratch");
                     }
 
+                    // create vm file info for the vmx file on a datastore the cluster can see, leaving room for the swap file
+                    DatastorePlacement placement = new DatastorePlacement(getProvider());
+                    List<DatastorePlacement.Candidate> datastores = placement.getCandidates(instance, pool.getOwner().getMOR());
+                    long bytes = (memory + VM_FILE_OVERHEAD_MB) * 1024L * 1024L;
+                    DatastorePlacement.Reservation reservation;
+
+                    if( options.getStoragePoolId() != null ) {
+                        DatastorePlacement.Candidate ds = placement.find(datastores, options.getStoragePoolId());
+
+                        if( ds == null ) {
+                            throw new CloudException("No such storage pool " + options.getStoragePoolId() + " for vm " + hostName);
+                        }
+                        reservation = placement.reserve(ds, bytes);
+                    }
+                    else {
+                        reservation = placement.place(datastores, bytes);
+                    }
+                    if( reservation == null ) {
+                        throw new CloudException("Unable to find a datastore for vm " + hostName);
+                    }
                     // VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
                     HostSystem host = null;
                     if( options.getAffinityGroupId() != null ) {
@@ -915,31 +1305,41 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         Host agSupport = getProvider().getComputeServices().getAffinityGroupSupport();
                         host = agSupport.getHostSystemForAffinity(options.getAffinityGroupId());
                     }
+                    else {
+                        ManagedObjectReference target = chooseHost(pool, null, memory, new ManagedObjectReference[] { reservation.getDatastore() });
 
-                    Task task = vmFolder.createVM_Task(config, pool, host);
+                        if( target != null ) {
+                            host = new HostSystem(pool.getServerConnection(), target);
+                        }
+                    }
+                    VirtualMachineFileInfo vmfi = new VirtualMachineFileInfo();
 
-                    String status = task.waitForTask();
+                    vmfi.setVmPathName("[" + reservation.getName() + "]");
+                    config.setFiles(vmfi);
 
-                    if( status.equals(Task.SUCCESS) ) {
-                        long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 20L );
+                    TrackedTask tracked = null;
 
-                        while( System.currentTimeMillis() < timeout ) {
-                            try {
-                                Thread.sleep(10000L);
-                            }
-                            catch( InterruptedException ignore ) {
-                            }
+                    try {
+                        tracked = track(VmTasks.createVm(vmFolder, config, pool, host));
+                    }
+                    finally {
+                        if( tracked == null ) {
+                            reservation.release();
+                        }
+                    }
+                    tracked.addListener(reservation);
+                    String status = tracked.waitForTask();
 
-                            for( VirtualMachine s : listVirtualMachines() ) {
-                                if( s.getName().equals(hostName) ) {
-                                    return s;
-                                }
-                            }
+                    if( status.equals(Task.SUCCESS) ) {
+                        VirtualMachine s = toServer(instance, getCreatedVirtualMachine(tracked));
+
+                        if( s != null ) {
+                            return s;
                         }
                         lastError = new CloudException("Unable to identify newly created server.");
                     }
                     else {
-                        lastError = new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                        lastError = new CloudException("Failed to create VM: " + tracked.getErrorMessage());
                     }
                 }
                 if( lastError != null ) {
@@ -974,55 +1374,63 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
-    @Nonnull HostSystem getBestHost(@Nonnull Datacenter forDatacenter, @Nonnull String clusterName) throws CloudException, RemoteException {
+    /**
+     * Chooses the least loaded eligible host of the named cluster with the {@link PlacementEngine}, falling back to
+     * any host that is not red if the engine finds no eligible host.
+     * @param forDatacenter the datacenter holding the cluster
+     * @param clusterName the name of the cluster (the dasein data center ID)
+     * @return the host on which to place a virtual machine
+     * @throws CloudException the cluster has no usable hosts
+     * @throws RemoteException an error occurred talking to vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull HostSystem getBestHost(@Nonnull Datacenter forDatacenter, @Nonnull String clusterName) throws CloudException, RemoteException, InternalException {
         APITrace.begin(getProvider(), "Vm.getBestHost");
         try {
-            Collection<HostSystem> possibles = getPossibleHosts(forDatacenter, clusterName);
+            PlacementEngine placement = getPlacementEngine();
+            ManagedObjectReference best = placement.place(placement.rankHosts(forDatacenter.getMOR(), clusterName), 0L);
 
-            if( possibles.isEmpty() ) {
-                HostSystem ohWell = null;
+            if( best != null ) {
+                return new HostSystem(forDatacenter.getServerConnection(), best);
+            }
+            HostSystem ohWell = null;
 
-                for( ManagedEntity me : forDatacenter.getHostFolder().getChildEntity() ) {
-                    if( me.getName().equals(clusterName) ) {
-                        ComputeResource cluster = ( ComputeResource ) me;
+            for( ManagedEntity me : forDatacenter.getHostFolder().getChildEntity() ) {
+                if( me.getName().equals(clusterName) ) {
+                    ComputeResource cluster = ( ComputeResource ) me;
 
-                        for( HostSystem host : cluster.getHosts() ) {
-                            if( host.getConfigStatus().equals(ManagedEntityStatus.green) ) {
-                                return host;
-                            }
-                            if( ohWell == null || host.getConfigStatus().equals(ManagedEntityStatus.yellow) ) {
-                                ohWell = host;
-                            }
+                    for( HostSystem host : cluster.getHosts() ) {
+                        if( ohWell == null || host.getConfigStatus().equals(ManagedEntityStatus.yellow) ) {
+                            ohWell = host;
                         }
                     }
                 }
-                if( ohWell == null ) {
-                    throw new CloudException("Insufficient capacity for this operation");
-                }
-                return ohWell;
             }
-
-            return possibles.iterator().next();
+            if( ohWell == null ) {
+                throw new CloudException("Insufficient capacity for this operation");
+            }
+            return ohWell;
         }
         finally {
             APITrace.end();
         }
     }
 
-    @Nonnull Collection<HostSystem> getPossibleHosts(@Nonnull Datacenter dc, @Nonnull String clusterName) throws CloudException, RemoteException {
+    /**
+     * Lists the eligible hosts of the named cluster, least loaded first.
+     * @param dc the datacenter holding the cluster
+     * @param clusterName the name of the cluster (the dasein data center ID)
+     * @return the eligible hosts in order of preference
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull Collection<HostSystem> getPossibleHosts(@Nonnull Datacenter dc, @Nonnull String clusterName) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Vm.getPossibleHosts");
         try {
             ArrayList<HostSystem> possibles = new ArrayList<HostSystem>();
 
-            for( ManagedEntity me : dc.getHostFolder().getChildEntity() ) {
-                if( me.getName().equals(clusterName) ) {
-                    ComputeResource cluster = ( ComputeResource ) me;
-                    for( HostSystem host : cluster.getHosts() ) {
-                        if( host.getConfigStatus().equals(ManagedEntityStatus.green) ) {
-                            possibles.add(host);
-                        }
-                    }
-                }
+            for( PlacementEngine.HostLoad load : getPlacementEngine().rankHosts(dc.getMOR(), clusterName) ) {
+                possibles.add(new HostSystem(dc.getServerConnection(), load.getHost()));
             }
             return possibles;
         }
@@ -1031,6 +1439,97 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Chooses the data center (cluster) for a launch that did not name one with the configured
+     * {@link ClusterSelector}, fed by the host statistics of the {@link PlacementEngine}. Clusters without any
+     * eligible host are only considered when no cluster has one.
+     * @param regionId the region (vSphere datacenter) of the launch
+     * @return the chosen data center or null if the region has none
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    private @Nullable String selectDataCenter(@Nonnull String regionId) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "Vm.selectDataCenter");
+        try {
+            Map<String, ClusterLoad> loads = getPlacementEngine().getClusterLoads(regionId);
+            List<ClusterLoad> candidates = new ArrayList<ClusterLoad>();
+            List<ClusterLoad> empty = new ArrayList<ClusterLoad>();
+
+            for( DataCenter dsdc : getProvider().getDataCenterServices().listDataCenters(regionId) ) {
+                ClusterLoad load = loads.get(dsdc.getProviderDataCenterId());
+
+                if( load == null ) {
+                    empty.add(new ClusterLoad(dsdc.getProviderDataCenterId()));
+                }
+                else {
+                    candidates.add(load);
+                }
+            }
+            if( candidates.isEmpty() ) {
+                candidates = empty;
+            }
+            if( candidates.isEmpty() ) {
+                return null;
+            }
+            String dataCenterId = ClusterSelectors.getInstance(getProvider()).select(candidates);
+
+            return (dataCenterId == null ? candidates.get(0).getDataCenterId() : dataCenterId);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull PlacementEngine getPlacementEngine() {
+        return new PlacementEngine(getProvider());
+    }
+
+    /**
+     * Chooses the host on which a virtual machine should run in a resource pool. Where DRS is automated, DRS is asked
+     * through <code>RecommendHostsForVm</code> about an existing virtual machine, and a virtual machine that does not
+     * exist yet is left unplaced so that vCenter makes the initial placement when it powers on. Elsewhere the
+     * {@link PlacementEngine} picks the least loaded eligible host among those that mount the datastores of the
+     * virtual machine.
+     * @param pool the resource pool in which the virtual machine will run
+     * @param vm the virtual machine (or the source of a clone) or null if it does not exist yet
+     * @param memoryMB the memory of the virtual machine or 0 if it is not known
+     * @param datastores the datastores holding the files of the virtual machine or null if they are not known
+     * @return the chosen host or null to leave the choice to vCenter
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws RemoteException an error occurred identifying the owner of the resource pool
+     */
+    private @Nullable ManagedObjectReference chooseHost(@Nonnull ResourcePool pool, @Nullable com.vmware.vim25.mo.VirtualMachine vm, long memoryMB, @Nullable ManagedObjectReference[] datastores) throws CloudException, InternalException, RemoteException {
+        PlacementEngine placement = getPlacementEngine();
+        ManagedObjectReference owner = pool.getOwner().getMOR();
+
+        if( placement.isDrsAutomated(owner) ) {
+            if( vm == null ) {
+                return null;
+            }
+            ManagedObjectReference recommended = placement.recommendHost(owner, vm, pool);
+
+            if( recommended != null ) {
+                return recommended;
+            }
+        }
+        return placement.place(placement.rankHosts(owner, datastores), memoryMB);
+    }
+
+    private @Nonnull ManagedObjectReference[] getDatastores(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws RemoteException {
+        Datastore[] stores = vm.getDatastores();
+
+        if( stores == null ) {
+            return new ManagedObjectReference[0];
+        }
+        ManagedObjectReference[] mors = new ManagedObjectReference[stores.length];
+
+        for( int i = 0; i < stores.length; i++ ) {
+            mors[i] = stores[i].getMOR();
+        }
+        return mors;
+    }
+
     @Override
     public @Nonnull String getConsoleOutput(@Nonnull String serverId) throws InternalException, CloudException {
         return "";
@@ -1076,27 +1575,26 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
-    private @Nullable com.vmware.vim25.mo.VirtualMachine getTemplate(@Nonnull ServiceInstance instance, @Nonnull String templateId) throws CloudException, RemoteException, InternalException {
+    @Nullable com.vmware.vim25.mo.VirtualMachine getTemplate(@Nonnull ServiceInstance instance, @Nonnull String templateId) throws CloudException, RemoteException, InternalException {
         APITrace.begin(getProvider(), "Vm.getTemplate");
         try {
-            Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
-
-            mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    com.vmware.vim25.mo.VirtualMachine template = ( com.vmware.vim25.mo.VirtualMachine ) entity;
+            TemplateIndex index = TemplateIndex.getInstance(getProvider());
+            TemplateIndex.Entry entry = index.get(getProvider(), instance, templateId);
 
-                    if( template != null ) {
-                        VirtualMachineConfigInfo vminfo = template.getConfig();
+            if( entry == null ) {
+                return null;
+            }
+            // make sure the indexed template has not since been removed or converted to a virtual machine
+            ObjectProperties current = new PropertyRetriever(instance).retrieve(entry.getTemplate(), "config.template", "config.uuid");
 
-                        if( vminfo != null && vminfo.isTemplate() && vminfo.getUuid().equals(templateId) ) {
-                            return template;
-                        }
-                    }
+            if( current == null || !current.getBoolean("config.template") || !templateId.equals(current.getString("config.uuid")) ) {
+                index.invalidate();
+                entry = index.get(getProvider(), instance, templateId);
+                if( entry == null ) {
+                    return null;
                 }
             }
-            return null;
+            return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), entry.getTemplate());
         }
         finally {
             APITrace.end();
@@ -1107,28 +1605,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.getProduct(String)");
         try {
-            for( VirtualMachineProduct product : listProducts(null, Architecture.I64) ) {
-                if( product.getProviderProductId().equals(productId) ) {
-                    return product;
-                }
-            }
-            for( VirtualMachineProduct product : listProducts(null, Architecture.I32) ) {
-                if( product.getProviderProductId().equals(productId) ) {
-                    return product;
-                }
-            }
-
-            //Product is non-standard so build a new one
-            String[] parts = productId.split(":");
-            VirtualMachineProduct product = new VirtualMachineProduct();
-            product.setCpuCount(Integer.parseInt(parts[0]));
-            product.setRamSize(new Storage<Megabyte>(Integer.parseInt(parts[1]), Storage.MEGABYTE));
-            product.setDescription("Custom product " + parts[0] + " CPU, " + parts[1] + " RAM");
-            product.setName(parts[0] + " CPU/" + parts[1] + " MB RAM");
-            product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-            product.setProviderProductId(parts[0] + ":" + parts[1]);
-            return product;
-
+            return getProductCatalog().get(productId);
         }
         finally {
             APITrace.end();
@@ -1139,6 +1616,11 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.getVirtualMachine");
         try {
+            InventorySnapshot snapshot = getProvider().getInventorySnapshot();
+
+            if( snapshot != null ) {
+                return toServer(snapshot.find("VirtualMachine", "config.instanceUuid", serverId), snapshot, null);
+            }
             ServiceInstance instance = getServiceInstance();
 
             com.vmware.vim25.mo.VirtualMachine vm = getVirtualMachine(instance, serverId);
@@ -1154,22 +1636,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     private @Nonnull VirtualMachineProduct getProduct(@Nonnull VirtualHardware hardware) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getProduct(VirtualHardware)");
-        VirtualMachineProduct product = getProduct(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
-
-        if( product == null ) {
-            int cpu = hardware.getNumCPU();
-            int ram = hardware.getMemoryMB();
-            int disk = 1;
-
-            product = new VirtualMachineProduct();
-            product.setCpuCount(cpu);
-            product.setDescription("Custom product " + cpu + " CPU, " + ram + " RAM");
-            product.setName(cpu + " CPU/" + ram + " MB RAM");
-            product.setRootVolumeSize(new Storage<Gigabyte>(disk, Storage.GIGABYTE));
-            product.setProviderProductId(cpu + ":" + ram);
-        }
-        return product;
+        return getProductCatalog().get(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
     }
 
     @Override
@@ -1190,116 +1657,8 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     public Iterable<VirtualMachineProduct> listProducts(VirtualMachineProductFilterOptions options, Architecture architecture) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Vm.listProducts(VirtualMachineProductFilterOptions, Architecture)");
         try {
-            ArrayList<VirtualMachineProduct> allVirtualMachineProducts = new ArrayList<VirtualMachineProduct>();
-
-            Cache<org.dasein.cloud.dc.ResourcePool> cache = Cache.getInstance(getProvider(), "resourcePools", org.dasein.cloud.dc.ResourcePool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            Collection<org.dasein.cloud.dc.ResourcePool> rps = ( Collection<org.dasein.cloud.dc.ResourcePool> ) cache.get(getContext());
-
-            if( rps == null ) {
-                Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getContext().getRegionId());
-                rps = new ArrayList<org.dasein.cloud.dc.ResourcePool>();
-
-                for( DataCenter dc : dcs ) {
-                    Collection<org.dasein.cloud.dc.ResourcePool> pools = getProvider().getDataCenterServices().listResourcePools(dc.getProviderDataCenterId());
-                    rps.addAll(pools);
-                }
-                cache.put(getContext(), rps);
-            }
-
-            if( architecture != null ) {
-                for( Architecture a : getCapabilities().listSupportedArchitectures() ) {
-                    if( a.equals(architecture) ) {
-                        if( a.equals(Architecture.I32) ) {
-                            for( int cpu : new int[]{1, 2} ) {
-                                for( int ram : new int[]{512, 1024, 2048} ) {
-                                    // add in product without pool
-                                    VirtualMachineProduct product = new VirtualMachineProduct();
-
-                                    product.setCpuCount(cpu);
-                                    product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                                    product.setName(cpu + " CPU/" + ram + " MB RAM");
-                                    product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                                    product.setProviderProductId(cpu + ":" + ram);
-                                    product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                                    product.setArchitectures(a);
-                                    allVirtualMachineProducts.add(product);
-
-                                    //resource pools
-                                    for( org.dasein.cloud.dc.ResourcePool pool : rps ) {
-                                        product = new VirtualMachineProduct();
-                                        product.setCpuCount(cpu);
-                                        product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                                        product.setName("Pool "+pool.getName()+"/"+cpu + " CPU/" + ram + " MB RAM");
-                                        product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                                        product.setProviderProductId(pool.getProvideResourcePoolId() + ":" + cpu + ":" + ram);
-                                        product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                                        allVirtualMachineProducts.add(product);
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            for( int cpu : new int[]{1, 2, 4, 8} ) {
-                                for( int ram : new int[]{1024, 2048, 4096, 10240, 20480} ) {
-                                    // add in product without pool
-                                    VirtualMachineProduct product = new VirtualMachineProduct();
-
-                                    product.setCpuCount(cpu);
-                                    product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                                    product.setName(cpu + " CPU/" + ram + " MB RAM");
-                                    product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                                    product.setProviderProductId(cpu + ":" + ram);
-                                    product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                                    product.setArchitectures(a);
-                                    allVirtualMachineProducts.add(product);
-
-                                    //resource pools
-                                    for( org.dasein.cloud.dc.ResourcePool pool : rps ) {
-                                        product = new VirtualMachineProduct();
-                                        product.setCpuCount(cpu);
-                                        product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                                        product.setName("Pool "+pool.getName()+"/"+cpu + " CPU/" + ram + " MB RAM");
-
-                                        product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                                        product.setProviderProductId(pool.getProvideResourcePoolId() + ":" + cpu + ":" + ram);
-                                        product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                                        allVirtualMachineProducts.add(product);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            else {
-                for( int cpu : new int[]{1, 2, 4, 8} ) {
-                    for( int ram : new int[]{512, 1024, 2048, 4096, 10240, 20480} ) {
-                        // add in product without pool
-                        VirtualMachineProduct product = new VirtualMachineProduct();
-
-                        product.setCpuCount(cpu);
-                        product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                        product.setName(cpu + " CPU/" + ram + " MB RAM");
-                        product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                        product.setProviderProductId(cpu + ":" + ram);
-                        product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                        allVirtualMachineProducts.add(product);
-
-                        //resource pools
-                        for( org.dasein.cloud.dc.ResourcePool pool : rps ) {
-                            product = new VirtualMachineProduct();
-                            product.setCpuCount(cpu);
-                            product.setDescription("Custom product " + architecture + " - " + cpu + " CPU, " + ram + "MB RAM");
-                            product.setName("Pool "+pool.getName()+"/"+cpu + " CPU/" + ram + " MB RAM");
-
-                            product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                            product.setProviderProductId(pool.getProvideResourcePoolId() + ":" + cpu + ":" + ram);
-                            product.setRamSize(new Storage<Megabyte>(ram, Storage.MEGABYTE));
-                            allVirtualMachineProducts.add(product);
-                        }
-                    }
-                }
-            }
+            List<VirtualMachineProduct> allVirtualMachineProducts = getProductCatalog().list(architecture);
+
             if( options != null ) {
                 ArrayList<VirtualMachineProduct> filteredProducts = new ArrayList<VirtualMachineProduct>();
                 for( VirtualMachineProduct product : allVirtualMachineProducts ) {
@@ -1318,6 +1677,30 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Provides the product catalog for the current region, which is rebuilt only when the cached list of resource
+     * pools changes.
+     * @return the product catalog
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred listing the resource pools
+     */
+    private @Nonnull ProductCatalog getProductCatalog() throws InternalException, CloudException {
+        Cache<org.dasein.cloud.dc.ResourcePool> cache = Cache.getInstance(getProvider(), "resourcePools", org.dasein.cloud.dc.ResourcePool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
+        Collection<org.dasein.cloud.dc.ResourcePool> rps = ( Collection<org.dasein.cloud.dc.ResourcePool> ) cache.get(getContext());
+
+        if( rps == null ) {
+            Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getContext().getRegionId());
+            rps = new ArrayList<org.dasein.cloud.dc.ResourcePool>();
+
+            for( DataCenter dc : dcs ) {
+                Collection<org.dasein.cloud.dc.ResourcePool> pools = getProvider().getDataCenterServices().listResourcePools(dc.getProviderDataCenterId());
+                rps.addAll(pools);
+            }
+            cache.put(getContext(), rps);
+        }
+        return ProductCatalog.getInstance(getProvider(), rps, getCapabilities().listSupportedArchitectures());
+    }
+
     static private Collection<Architecture> architectures;
 
     @Override
@@ -1326,35 +1709,27 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     @Override
-    public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.listVirtualMachineStatus");
-        try {
-            ServiceInstance instance = getServiceInstance();
-            Folder folder = getProvider().getVmFolder(instance);
-
-            ArrayList<ResourceStatus> servers = new ArrayList<ResourceStatus>();
-            ManagedEntity[] mes;
-
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+    public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.listVirtualMachineStatus");
+        try {
+            InventorySnapshot snapshot = getProvider().getInventorySnapshot();
+            List<ObjectProperties> vms;
+
+            if( snapshot != null ) {
+                vms = snapshot.list("VirtualMachine");
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            else {
+                ServiceInstance instance = getServiceInstance();
+
+                vms = new PropertyRetriever(instance).retrieve(getProvider().getVmFolder(instance), VmStatusTracker.getStatusSpec());
             }
+            ArrayList<ResourceStatus> servers = new ArrayList<ResourceStatus>();
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    ResourceStatus server = toStatus(( com.vmware.vim25.mo.VirtualMachine ) entity);
+            for( ObjectProperties entity : vms ) {
+                ResourceStatus server = toStatus(entity);
 
-                    if( server != null ) {
-                        servers.add(server);
-                    }
+                if( server != null ) {
+                    servers.add(server);
                 }
             }
             return servers;
@@ -1364,17 +1739,55 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Lists the virtual machine states that changed since an earlier call. The changes are tracked through a
+     * long-lived property collector filter shared by every context with the same endpoint and credentials, so each
+     * call costs a single non-blocking <code>WaitForUpdatesEx</code> round trip no matter how many virtual machines
+     * exist.
+     * @param sinceVersion the version returned by an earlier call or null to list every virtual machine
+     * @return the changes since the specified version along with the version to pass in on the next call
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull VmStatusChanges listVirtualMachineStatus(@Nullable String sinceVersion) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.listVirtualMachineStatus(String)");
+        try {
+            return VmStatusTracker.getInstance(getProvider()).getChanges(sinceVersion);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Looks up a virtual machine by its instance UUID. Virtual machines seen before are resolved from a local index of
+     * instance UUIDs to managed object references after validating that the reference still points at the same
+     * virtual machine. Anything else is resolved through the vSphere search index, so the cost of the lookup does not
+     * depend on the size of the inventory.
+     * @param instance the service instance to query
+     * @param vmId the instance UUID of the virtual machine
+     * @return the matching virtual machine or null if none exists
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
     @Nullable com.vmware.vim25.mo.VirtualMachine getVirtualMachine(@Nonnull ServiceInstance instance, @Nonnull String vmId) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Vm.getVirtualMachine(ServiceInstance, String)");
         try {
-            Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
+            Map<String, ManagedObjectReference> index = getInstanceUuidIndex();
+            ManagedObjectReference mor = index.get(vmId);
 
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+            if( mor != null ) {
+                ObjectProperties current = new PropertyRetriever(instance).retrieve(mor, "config.instanceUuid");
+
+                if( current != null && vmId.equals(current.getString("config.instanceUuid")) ) {
+                    return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), mor);
+                }
+                index.remove(vmId);
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            ManagedEntity entity;
+
+            try {
+                entity = instance.getSearchIndex().findByUuid(null, vmId, true, true);
             }
             catch( RuntimeFault e ) {
                 throw new CloudException("Error in processing request to cluster: " + e.getMessage());
@@ -1382,17 +1795,66 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             catch( RemoteException e ) {
                 throw new CloudException("Error in cluster processing request: " + e.getMessage());
             }
+            if( entity == null ) {
+                return null;
+            }
+            index.put(vmId, entity.getMOR());
+            return ( com.vmware.vim25.mo.VirtualMachine ) entity;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    com.vmware.vim25.mo.VirtualMachine vm = ( com.vmware.vim25.mo.VirtualMachine ) entity;
-                    VirtualMachineConfigInfo cfg = ( vm == null ? null : vm.getConfig() );
-                    if( cfg != null && cfg.getInstanceUuid().equals(vmId) ) {
-                        return vm;
-                    }
-                }
+    /**
+     * @return the shared index of virtual machine instance UUIDs to managed object references for the current account
+     */
+    @SuppressWarnings("unchecked")
+    private @Nonnull Map<String, ManagedObjectReference> getInstanceUuidIndex() throws CloudException {
+        Cache<Map> cache = Cache.getInstance(getProvider(), "vmInstanceUuids", Map.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+        Collection<Map> list = ( Collection<Map> ) cache.get(getContext());
+
+        if( list == null ) {
+            list = new ArrayList<Map>();
+            list.add(new ConcurrentHashMap<String, ManagedObjectReference>());
+            cache.put(getContext(), list);
+        }
+        return ( Map<String, ManagedObjectReference> ) list.iterator().next();
+    }
+
+    /**
+     * Loads the properties needed to build dasein virtual machines along with the names of the resource pools,
+     * clusters, hosts and folders they reference in a single paged property collector query. Explicitly named
+     * virtual machines are loaded by traversing from each of them to the objects they reference, so the query does
+     * not grow with the inventory.
+     * @param instance the service instance to query
+     * @param vms the virtual machines to load or null to load every virtual machine in the inventory
+     * @return the in-memory inventory for building the virtual machines
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nonnull InventorySnapshot getVirtualMachineInventory(@Nonnull ServiceInstance instance, @Nullable ManagedObjectReference[] vms) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "Vm.getVirtualMachineInventory");
+        try {
+            PropertyRetriever retriever = new PropertyRetriever(instance);
+            PropertySpec vmSpec = PropertyRetriever.spec("VirtualMachine", VM_PROPERTIES);
+
+            if( vms == null ) {
+                Folder folder = getProvider().getVmFolder(instance);
+
+                return new InventorySnapshot(retriever.retrieve(folder, InventorySnapshot.withLookupSpecs(vmSpec)));
             }
-            return null;
+            SelectionSpec[] traversals = InventorySnapshot.getVirtualMachineTraversals();
+            ObjectSpec[] objects = new ObjectSpec[vms.length];
+            PropertyFilterSpec filter = new PropertyFilterSpec();
+
+            for( int i = 0; i < vms.length; i++ ) {
+                objects[i] = PropertyRetriever.objectSpec(vms[i]);
+                objects[i].setSelectSet(traversals);
+            }
+            filter.setObjectSet(objects);
+            filter.setPropSet(InventorySnapshot.withLookupSpecs(vmSpec));
+            return new InventorySnapshot(retriever.retrieve(filter));
         }
         finally {
             APITrace.end();
@@ -1420,26 +1882,14 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         try {
             ServiceInstance instance = getServiceInstance();
             VirtualMachine server;
-            boolean isOSId = false;
             String imageId = withLaunchOptions.getMachineImageId();
-            try {
-                VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(imageId);
-                isOSId = true;
-            }
-            catch( IllegalArgumentException e ) {
-                log.debug("Couldn't find a match to os identifier so trying existing templates instead: " + imageId);
-            }
-            if( !isOSId ) {
-                try {
-                    com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, imageId);
-                    if( template == null ) {
-                        throw new CloudException("No such template or guest os identifier: " + imageId);
-                    }
+
+            if( !isGuestOsIdentifier(imageId) ) {
+                // defineFromTemplate rejects an unknown template
+                server = launchFromWarmPool(instance, withLaunchOptions, null);
+                if( server == null ) {
                     server = defineFromTemplate(withLaunchOptions);
                 }
-                catch( RemoteException e ) {
-                    throw new CloudException(e);
-                }
             }
             else {
                 server = defineFromScratch(withLaunchOptions);
@@ -1451,36 +1901,194 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Launches several identical virtual machines. See {@link #launchManyAsync(VMLaunchOptions, int)}.
+     * @param withLaunchOptions the options shared by every virtual machine
+     * @param count the number of virtual machines to launch
+     * @return the IDs of the virtual machines that launched
+     * @throws CloudException every launch failed
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
     @Override
-    public @Nonnull Collection<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.listVirtualMachines");
+    public @Nonnull Iterable<String> launchMany(@Nonnull VMLaunchOptions withLaunchOptions, int count) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "Vm.launchMany");
         try {
-            ServiceInstance instance = getServiceInstance();
-            Folder folder = getProvider().getVmFolder(instance);
+            ArrayList<String> ids = new ArrayList<String>();
+            CloudException lastError = null;
 
-            ArrayList<VirtualMachine> servers = new ArrayList<VirtualMachine>();
-            ManagedEntity[] mes;
+            for( Future<VirtualMachine> future : launchManyAsync(withLaunchOptions, count) ) {
+                try {
+                    ids.add(future.get().getProviderVirtualMachineId());
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = (e.getCause() == null ? e : e.getCause());
 
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+                    log.error("Launch of " + withLaunchOptions.getHostName() + " failed: " + cause.getMessage());
+                    lastError = (cause instanceof CloudException ? ( CloudException ) cause : new CloudException(cause));
+                }
+                catch( InterruptedException e ) {
+                    throw new InternalException(e);
+                }
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            if( ids.isEmpty() && lastError != null ) {
+                throw lastError;
             }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            return ids;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Launches several identical virtual machines side by side, naming them after the host name in the launch options
+     * with a numeric suffix. For a template launch the template, resource pools, folder, network changes and guest
+     * customization are resolved once and shared by every clone. At most &quot;launchConcurrency&quot; (default 8)
+     * launches run at once; each holds the cloud provider open until it completes.
+     * @param withLaunchOptions the options shared by every virtual machine
+     * @param count the number of virtual machines to launch
+     * @return a future for each virtual machine, in the order of their names
+     * @throws CloudException the launch could not be resolved
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    public @Nonnull List<Future<VirtualMachine>> launchManyAsync(@Nonnull final VMLaunchOptions withLaunchOptions, int count) throws CloudException, InternalException {
+        if( count < 1 ) {
+            throw new InternalException("Invalid attempt to launch less than 1 virtual machine (requested " + count + ").");
+        }
+        final ServiceInstance instance = getServiceInstance();
+        final TemplateLaunch launch;
+
+        if( isGuestOsIdentifier(withLaunchOptions.getMachineImageId()) ) {
+            launch = null;
+        }
+        else {
+            launch = prepareTemplateLaunch(instance, withLaunchOptions);
+        }
+        int concurrency = Math.max(1, Math.min(count, getProvider().getIntProperty("launchConcurrency", DEFAULT_LAUNCH_CONCURRENCY)));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("vSphere launch " + withLaunchOptions.getHostName());
+                t.setDaemon(true);
+                return t;
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        });
+        String baseName = validateName(withLaunchOptions.getHostName());
+        ArrayList<Future<VirtualMachine>> futures = new ArrayList<Future<VirtualMachine>>();
+
+        try {
+            for( int i=1; i<=count; i++ ) {
+                final String hostName = (count == 1 ? baseName : numberedName(baseName, i));
+                final VMLaunchOptions options = (count == 1 ? withLaunchOptions : withLaunchOptions.copy(hostName, withLaunchOptions.getFriendlyName() + "-" + i));
+
+                getProvider().hold();
+                try {
+                    futures.add(executor.submit(new Callable<VirtualMachine>() {
+                        public VirtualMachine call() throws Exception {
+                            APITrace.begin(getProvider(), "Vm.define");
+                            try {
+                                if( launch == null ) {
+                                    return defineFromScratch(options);
+                                }
+                                VirtualMachine vm = launchFromWarmPool(instance, options, launch.dataCenterId);
+
+                                return (vm == null ? cloneFromTemplate(instance, launch, hostName) : vm);
+                            }
+                            finally {
+                                APITrace.end();
+                                getProvider().release();
+                            }
+                        }
+                    }));
+                }
+                catch( RejectedExecutionException e ) {
+                    getProvider().release();
+                    throw new InternalException(e);
+                }
+            }
+        }
+        finally {
+            // queued launches still run; the threads go away once the last one completes
+            executor.shutdown();
+        }
+        return futures;
+    }
+
+    private @Nonnull String numberedName(@Nonnull String baseName, int index) {
+        String suffix = "-" + index;
+
+        if( baseName.length() + suffix.length() > 30 ) {
+            baseName = baseName.substring(0, 30 - suffix.length());
+        }
+        return baseName + suffix;
+    }
+
+    private boolean isGuestOsIdentifier(@Nonnull String imageId) {
+        try {
+            VirtualMachineGuestOsIdentifier.valueOf(imageId);
+            return true;
+        }
+        catch( IllegalArgumentException e ) {
+            log.debug("Couldn't find a match to os identifier so trying existing templates instead: " + imageId);
+            return false;
+        }
+    }
+
+    /**
+     * Claims a virtual machine from the {@link WarmPool} for a template launch when the pool is enabled and the launch
+     * asks for nothing a pooled clone lacks.
+     * @param instance the service instance to work through
+     * @param options the launch options
+     * @param dataCenterId the cluster already chosen for the launch or null to choose one
+     * @return the launched virtual machine or null if the launch must be provisioned from the template
+     * @throws CloudException an error occurred talking to vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    private @Nullable VirtualMachine launchFromWarmPool(@Nonnull ServiceInstance instance, @Nonnull VMLaunchOptions options, @Nullable String dataCenterId) throws CloudException, InternalException {
+        if( getProvider().getIntProperty(WarmPool.SIZE_PROPERTY, 0) < 1 || !WarmPool.isEligible(options) ) {
+            return null;
+        }
+        if( dataCenterId == null ) {
+            dataCenterId = options.getDataCenterId();
+        }
+        ProviderContext ctx = getProvider().getContext();
+
+        if( dataCenterId == null && ctx != null && ctx.getRegionId() != null ) {
+            dataCenterId = selectDataCenter(ctx.getRegionId());
+        }
+        if( dataCenterId == null ) {
+            return null;
+        }
+        return WarmPool.getInstance(getProvider()).claim(getProvider(), instance, options, dataCenterId);
+    }
+
+    @Override
+    public @Nonnull Collection<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.listVirtualMachines");
+        try {
+            InventorySnapshot inventory = getProvider().getInventorySnapshot();
+
+            if( inventory == null ) {
+                inventory = getVirtualMachineInventory(getServiceInstance(), null);
             }
+            ArrayList<VirtualMachine> servers = new ArrayList<VirtualMachine>();
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine server = toServer(( com.vmware.vim25.mo.VirtualMachine ) entity, null);
+            Map<String, ManagedObjectReference> index = getInstanceUuidIndex();
 
-                    if( server != null ) {
-                        servers.add(server);
-                    }
+            for( ObjectProperties entity : inventory.list("VirtualMachine") ) {
+                String uuid = entity.getString("config.instanceUuid");
+
+                if( uuid != null ) {
+                    index.put(uuid, entity.getMOR());
+                }
+                if( isHidden(entity) ) {
+                    continue;
+                }
+                VirtualMachine server = toServer(entity, inventory, null);
+
+                if( server != null ) {
+                    servers.add(server);
                 }
             }
             return servers;
@@ -1505,7 +2113,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
             if( vm != null ) {
                 try {
-                    vm.powerOnVM_Task(null);
+                    VmTasks.powerOn(vm, null);
                 }
                 catch( TaskInProgress e ) {
                     throw new CloudException(e);
@@ -1536,7 +2144,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
             if( vm != null ) {
                 try {
-                    vm.powerOffVM_Task();
+                    VmTasks.powerOff(vm);
                 }
                 catch( TaskInProgress e ) {
                     throw new CloudException(e);
@@ -1567,7 +2175,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
             if( vm != null ) {
                 try {
-                    vm.suspendVM_Task();
+                    VmTasks.suspend(vm);
                 }
                 catch( TaskInProgress e ) {
                     throw new CloudException(e);
@@ -1622,6 +2230,101 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         }
     }
 
+    /**
+     * Applies a power operation to many virtual machines at once. The virtual machines are resolved with a single
+     * property collector query and the vSphere tasks are then issued in the background under a global limit
+     * (custom property &quot;powerBatchConcurrency&quot;, default 32) and a per-host limit
+     * (&quot;powerBatchHostConcurrency&quot;, default 4). Start operations go through
+     * <code>PowerOnMultiVM_Task</code> for each datacenter.
+     * @param vmIds the instance UUIDs of the virtual machines
+     * @param action the operation to apply
+     * @return the batch, which yields a result for each virtual machine as its operation completes
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred resolving the virtual machines in vSphere
+     */
+    public @Nonnull VmPowerBatch power(@Nonnull Collection<String> vmIds, @Nonnull VmPowerAction action) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Vm.power");
+        try {
+            ServiceInstance instance = getServiceInstance();
+            Set<String> ids = new LinkedHashSet<String>(vmIds);
+            VmPowerDispatcher dispatcher = new VmPowerDispatcher(getProvider(), instance, action, ids, getPowerInventory(instance, ids), getInstanceUuidIndex());
+
+            getProvider().hold();
+            Thread t = new Thread(dispatcher);
+
+            t.setName("Batch " + action + " of " + ids.size() + " VMs");
+            t.setDaemon(true);
+            t.start();
+            return dispatcher.getBatch();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Loads the power state, host and datacenter of the specified virtual machines. When every virtual machine is in
+     * the instance UUID index, only those virtual machines are queried; otherwise the whole inventory is. The whole
+     * inventory is also queried when an indexed virtual machine has since been deleted, which fails the narrow query.
+     * @param instance the service instance to query
+     * @param vmIds the instance UUIDs of the virtual machines
+     * @return the virtual machines along with the hosts, compute resources, folders and datacenters above them
+     * @throws CloudException an error occurred querying vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    private @Nonnull InventorySnapshot getPowerInventory(@Nonnull ServiceInstance instance, @Nonnull Set<String> vmIds) throws CloudException, InternalException {
+        InventorySnapshot snapshot = getProvider().getInventorySnapshot();
+
+        if( snapshot != null ) {
+            return snapshot;
+        }
+        PropertyRetriever retriever = new PropertyRetriever(instance);
+        Folder folder = getProvider().getVmFolder(instance);
+        PropertySpec[] specs = new PropertySpec[] {
+                PropertyRetriever.spec("VirtualMachine", "config.instanceUuid", "config.template", "runtime.powerState", "runtime.host"),
+                PropertyRetriever.spec("HostSystem", "name", "parent"),
+                PropertyRetriever.spec("ComputeResource", "name", "parent"),
+                PropertyRetriever.spec("Folder", "name", "parent"),
+                PropertyRetriever.spec("Datacenter", "name", "parent")
+        };
+        Map<String, ManagedObjectReference> index = getInstanceUuidIndex();
+        ArrayList<ManagedObjectReference> known = new ArrayList<ManagedObjectReference>();
+
+        for( String vmId : vmIds ) {
+            ManagedObjectReference mor = index.get(vmId);
+
+            if( mor == null ) {
+                break;
+            }
+            known.add(mor);
+        }
+        if( known.size() == vmIds.size() ) {
+            String[] lookupTypes = new String[] { "HostSystem", "ComputeResource", "Folder", "Datacenter" };
+            InventorySnapshot inventory = null;
+
+            try {
+                inventory = new InventorySnapshot(retriever.retrieve(folder, lookupTypes, known.toArray(new ManagedObjectReference[known.size()]), specs));
+            }
+            catch( CloudException e ) {
+                // most likely ManagedObjectNotFound for a stale index entry; a lasting problem fails the full query too
+                log.debug("Falling back to a full inventory query: " + e.getMessage());
+            }
+            if( inventory != null ) {
+                int found = 0;
+
+                for( ObjectProperties vm : inventory.list("VirtualMachine") ) {
+                    if( vmIds.contains(vm.getString("config.instanceUuid")) ) {
+                        found++;
+                    }
+                }
+                if( found == vmIds.size() ) {
+                    return inventory;
+                }
+            }
+        }
+        return new InventorySnapshot(retriever.retrieve(folder, specs));
+    }
+
     private void powerOnAndOff(@Nonnull String serverId) {
         APITrace.begin(getProvider(), "Vm.powerOnAndOff");
         try {
@@ -1632,8 +2335,9 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 HostSystem host = getHost(vm);
 
                 if( vm != null ) {
-                    Task task = vm.powerOffVM_Task();
-                    String status = task.waitForTask();
+                    Task task = VmTasks.powerOff(vm);
+                    TrackedTask tracked = track(task);
+                    String status = tracked.waitForTask();
 
                     if( !status.equals(Task.SUCCESS) ) {
                         System.err.println("Reboot failed: " + status);
@@ -1644,7 +2348,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         }
                         catch( InterruptedException ignore ) { /* ignore */ }
                         vm = getVirtualMachine(instance, serverId);
-                        vm.powerOnVM_Task(host);
+                        VmTasks.powerOn(vm, host);
                     }
                 }
 
@@ -1665,68 +2369,16 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
     @Override
     public void terminate(@Nonnull String vmId, String explanation) throws InternalException, CloudException {
-        final String id = vmId;
-
-        getProvider().hold();
-        Thread t = new Thread() {
-            public void run() {
-                try {
-                    terminateVm(id);
-                }
-                finally {
-                    getProvider().release();
-                }
-            }
-        };
-
-        t.setName("Terminate " + vmId);
-        t.setDaemon(true);
-        t.start();
+        getProvider().getTerminator().submit(vmId, explanation);
     }
 
-    private void terminateVm(@Nonnull String serverId) {
-        APITrace.begin(getProvider(), "Vm.terminateVm");
-        try {
-            try {
-                ServiceInstance instance = getServiceInstance();
-
-                com.vmware.vim25.mo.VirtualMachine vm = getVirtualMachine(instance, serverId);
-
-                if( vm != null ) {
-                    VirtualMachineRuntimeInfo runtime = vm.getRuntime();
-
-                    if( runtime != null ) {
-                        String status = "";
-
-                        VirtualMachinePowerState state = runtime.getPowerState();
-                        if( state != VirtualMachinePowerState.poweredOff ) {
-                            Task task = vm.powerOffVM_Task();
-                            status = task.waitForTask();
-                        }
-
-                        if( !status.equals("") && !status.equals(Task.SUCCESS) ) {
-                            System.err.println("Termination failed: " + status);
-                        }
-                        else {
-                            try {
-                                Thread.sleep(15000L);
-                            }
-                            catch( InterruptedException ignore ) { /* ignore */ }
-                            vm = getVirtualMachine(instance, serverId);
-                            if( vm != null ) {
-                                vm.destroy_Task();
-                            }
-                        }
-                    }
-                }
-            }
-            catch( Throwable t ) {
-                t.printStackTrace();
-            }
-        }
-        finally {
-            APITrace.end();
-        }
+    /**
+     * Drops a virtual machine that no longer exists from the instance UUID index.
+     * @param vmId the instance UUID of the virtual machine
+     * @throws CloudException the index could not be loaded
+     */
+    void forget(@Nonnull String vmId) throws CloudException {
+        getInstanceUuidIndex().remove(vmId);
     }
 
     private boolean isPublicIpAddress(@Nonnull String ipv4Address) {
@@ -1748,33 +2400,32 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return true;
     }
 
-    private @Nullable ResourceStatus toStatus(@Nullable com.vmware.vim25.mo.VirtualMachine vm) {
-        if( vm == null ) {
-            return null;
-        }
-        VirtualMachineConfigInfo vminfo;
+    /**
+     * @param vm the properties of a virtual machine, including its annotation
+     * @return true if the virtual machine is kept by Dasein Cloud for its own use, which tenants must not see
+     */
+    static boolean isHidden(@Nonnull ObjectProperties vm) {
+        String annotation = vm.getString("config.annotation");
 
-        try {
-            vminfo = vm.getConfig();
-        }
-        catch( RuntimeException e ) {
+        return (WarmPool.isPooled(annotation) || (annotation != null && annotation.startsWith(LINKED_CLONE_BASE)));
+    }
+
+    static @Nullable ResourceStatus toStatus(@Nonnull ObjectProperties vm) {
+        if( !vm.isSet("config.template") || vm.getBoolean("config.template") ) {
             return null;
         }
-        if( vminfo == null || vminfo.isTemplate() ) {
+        if( isHidden(vm) ) {
             return null;
         }
-        String id = vminfo.getInstanceUuid();
+        String id = vm.getString("config.instanceUuid");
 
         if( id == null ) {
             return null;
         }
-
-        VirtualMachineRuntimeInfo runtime = vm.getRuntime();
+        VirtualMachinePowerState state = ( VirtualMachinePowerState ) vm.get("runtime.powerState");
         VmState vmState = VmState.PENDING;
 
-        if( runtime != null ) {
-            VirtualMachinePowerState state = runtime.getPowerState();
-
+        if( state != null ) {
             switch( state ) {
                 case suspended:
                     vmState = VmState.SUSPENDED;
@@ -1785,62 +2436,106 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 case poweredOn:
                     vmState = VmState.RUNNING;
                     break;
-                default:
-                    System.out.println("DEBUG: Unknown vSphere server state: " + state);
             }
         }
         return new ResourceStatus(id, vmState);
     }
 
+    /**
+     * Identifies the virtual machine created by a completed clone or create task from the task's result.
+     * @param tracked the completed task
+     * @return the reference to the new virtual machine
+     * @throws CloudException the task did not report the virtual machine it created
+     */
+    private @Nonnull ManagedObjectReference getCreatedVirtualMachine(@Nonnull TrackedTask tracked) throws CloudException {
+        Object result = tracked.getResult();
+
+        if( !(result instanceof ManagedObjectReference) ) {
+            throw new CloudException("Task " + tracked.getTask().getMOR().getVal() + " did not identify the new virtual machine");
+        }
+        return ( ManagedObjectReference ) result;
+    }
+
+    /**
+     * Builds the dasein virtual machine for a known managed object reference with a single property collector query,
+     * recording its instance UUID in the local index along the way.
+     * @param instance the service instance to query
+     * @param mor the virtual machine
+     * @return the matching virtual machine or null if it does not exist or is a template
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     * @throws CloudException an error occurred querying vSphere
+     */
+    private @Nullable VirtualMachine toServer(@Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference mor) throws InternalException, CloudException {
+        InventorySnapshot inventory = getVirtualMachineInventory(instance, new ManagedObjectReference[] { mor });
+        ObjectProperties vm = inventory.get(mor);
+
+        if( vm == null ) {
+            return null;
+        }
+        String uuid = vm.getString("config.instanceUuid");
+
+        if( uuid != null ) {
+            getInstanceUuidIndex().put(uuid, mor);
+        }
+        return toServer(vm, inventory, null);
+    }
+
     private @Nullable VirtualMachine toServer(@Nullable com.vmware.vim25.mo.VirtualMachine vm, @Nullable String description) throws InternalException, CloudException {
-        if( vm != null ) {
-            VirtualMachineConfigInfo vminfo;
+        if( vm == null ) {
+            return null;
+        }
+        InventorySnapshot inventory = getVirtualMachineInventory(getServiceInstance(), new ManagedObjectReference[] { vm.getMOR() });
 
-            try {
-                vminfo = vm.getConfig();
-            }
-            catch( RuntimeException e ) {
-                return null;
-            }
-            if( vminfo == null || vminfo.isTemplate() ) {
+        return toServer(inventory.get(vm.getMOR()), inventory, description);
+    }
+
+    private @Nullable VirtualMachine toServer(@Nullable ObjectProperties vm, @Nonnull InventorySnapshot inventory, @Nullable String description) throws InternalException, CloudException {
+        if( vm != null ) {
+            if( !vm.isSet("config.template") || vm.getBoolean("config.template") ) {
                 return null;
             }
             Map<String, String> properties = new HashMap<String, String>();
-            VirtualMachineConfigInfoDatastoreUrlPair[] datastoreUrl = vminfo.getDatastoreUrl();
-            for( int i = 0; i < datastoreUrl.length; i++ ) {
-                properties.put("datastore" + i, datastoreUrl[i].getName());
-            }
+            Object urls = vm.get("config.datastoreUrl");
 
-            ManagedEntity parent = vm.getParent();
-            while( parent != null ) {
-                if( parent instanceof Folder ) {
-                    properties.put("vmFolder", parent.getName());
-                    break;
+            if( urls != null ) {
+                VirtualMachineConfigInfoDatastoreUrlPair[] datastoreUrl = (( ArrayOfVirtualMachineConfigInfoDatastoreUrlPair ) urls).getVirtualMachineConfigInfoDatastoreUrlPair();
+
+                if( datastoreUrl != null ) {
+                    for( int i = 0; i < datastoreUrl.length; i++ ) {
+                        properties.put("datastore" + i, datastoreUrl[i].getName());
+                    }
                 }
-                parent = parent.getParent();
             }
 
-            VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(vminfo.getGuestId());
+            String folderName = inventory.getFolderName(vm.getReference("parent"));
+
+            if( folderName != null ) {
+                properties.put("vmFolder", folderName);
+            }
+
+            VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(vm.getString("config.guestId"));
             VirtualMachine server = new VirtualMachine();
+            String hostName = inventory.getName(vm.getReference("runtime.host"));
 
-            HostSystem host = getHost(vm);
-            if( host != null ) {
-                server.setAffinityGroupId(host.getName());
+            if( hostName != null ) {
+                server.setAffinityGroupId(hostName);
             }
 
-            server.setName(vm.getName());
-            server.setPlatform(Platform.guess(vminfo.getGuestFullName()));
-            server.setProviderVirtualMachineId(vm.getConfig().getInstanceUuid());
+            String vmName = vm.getString("name");
+
+            server.setName(vmName);
+            server.setPlatform(Platform.guess(vm.getString("config.guestFullName")));
+            server.setProviderVirtualMachineId(vm.getString("config.instanceUuid"));
             server.setPersistent(true);
             server.setImagable(true);
             server.setClonable(true);
             server.setArchitecture(getArchitecture(os));
             if( description == null ) {
-                description = vm.getName();
+                description = vmName;
             }
             server.setDescription(description);
-            server.setProductId(getProduct(vminfo.getHardware()).getProviderProductId());
-            String imageId = vminfo.getAnnotation();
+            server.setProductId(getProduct(vm.getInteger("config.hardware.numCPU") + ":" + vm.getInteger("config.hardware.memoryMB")).getProviderProductId());
+            String imageId = vm.getString("config.annotation");
 
             if( imageId != null && imageId.length() > 0 && !imageId.contains(" ") ) {
                 server.setProviderMachineImageId(imageId);
@@ -1848,7 +2543,8 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             else {
                 server.setProviderMachineImageId(getContext().getAccountNumber() + "-unknown");
             }
-            String dc = getDataCenter(vm);
+            ManagedObjectReference rp = vm.getReference("resourcePool");
+            String dc = inventory.getClusterName(rp);
 
             if( dc == null ) {
                 return null;
@@ -1867,75 +2563,61 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 return null;
             }
 
-            try {
-                ResourcePool rp = vm.getResourcePool();
-                if( rp != null ) {
-                    String id = getProvider().getDataCenterServices().getIdForResourcePool(rp);
-                    server.setResourcePoolId(id);
-                }
+            if( rp != null ) {
+                server.setResourcePoolId(inventory.getResourcePoolId(rp));
             }
-            catch( InvalidProperty ex ) {
-                throw new CloudException(ex);
-            }
-            catch( RuntimeFault ex ) {
-                throw new CloudException(ex);
+
+            String guestHostName = vm.getString("guest.hostName");
+
+            if( guestHostName != null ) {
+                server.setPrivateDnsAddress(guestHostName);
             }
-            catch( RemoteException ex ) {
-                throw new CloudException(ex);
+            String guestIp = vm.getString("guest.ipAddress");
+
+            if( guestIp != null ) {
+                server.setProviderAssignedIpAddressId(guestIp);
             }
+            Object nics = vm.get("guest.net");
+            GuestNicInfo[] nicInfoArray = (nics == null ? null : (( ArrayOfGuestNicInfo ) nics).getGuestNicInfo());
 
-            GuestInfo guest = vm.getGuest();
-            if( guest != null ) {
-                if( guest.getHostName() != null ) {
-                    server.setPrivateDnsAddress(guest.getHostName());
-                }
-                if( guest.getIpAddress() != null ) {
-                    server.setProviderAssignedIpAddressId(guest.getIpAddress());
-                }
-                GuestNicInfo[] nicInfoArray = guest.getNet();
-                if( nicInfoArray != null && nicInfoArray.length > 0 ) {
-                    List<RawAddress> pubIps = new ArrayList<RawAddress>();
-                    List<RawAddress> privIps = new ArrayList<RawAddress>();
-                    for( GuestNicInfo nicInfo : nicInfoArray ) {
-                        String net = nicInfo.getNetwork();
-                        if( net != null ) {
-                            if( server.getProviderVlanId() == null ) {
-                                server.setProviderVlanId(net);
-                            }
+            if( nicInfoArray != null && nicInfoArray.length > 0 ) {
+                List<RawAddress> pubIps = new ArrayList<RawAddress>();
+                List<RawAddress> privIps = new ArrayList<RawAddress>();
+                for( GuestNicInfo nicInfo : nicInfoArray ) {
+                    String net = nicInfo.getNetwork();
+                    if( net != null ) {
+                        if( server.getProviderVlanId() == null ) {
+                            server.setProviderVlanId(net);
                         }
-                        String[] ipAddresses = nicInfo.getIpAddress();
-                        if( ipAddresses != null ) {
-                            for( String ip : ipAddresses ) {
-                                if( ip != null ) {
-                                    if( isPublicIpAddress(ip) ) {
-                                        pubIps.add(new RawAddress(ip));
-                                    }
-                                    else {
-                                        privIps.add(new RawAddress(ip));
-                                    }
+                    }
+                    String[] ipAddresses = nicInfo.getIpAddress();
+                    if( ipAddresses != null ) {
+                        for( String ip : ipAddresses ) {
+                            if( ip != null ) {
+                                if( isPublicIpAddress(ip) ) {
+                                    pubIps.add(new RawAddress(ip));
+                                }
+                                else {
+                                    privIps.add(new RawAddress(ip));
                                 }
                             }
-
                         }
+
                     }
-                    if( privIps != null && privIps.size() > 0 ) {
-                        RawAddress[] rawPriv = privIps.toArray(new RawAddress[privIps.size()]);
-                        server.setPrivateAddresses(rawPriv);
-                    }
-                    if( pubIps != null && pubIps.size() > 0 ) {
-                        RawAddress[] rawPub = pubIps.toArray(new RawAddress[pubIps.size()]);
-                        server.setPublicAddresses(rawPub);
-                    }
+                }
+                if( privIps.size() > 0 ) {
+                    RawAddress[] rawPriv = privIps.toArray(new RawAddress[privIps.size()]);
+                    server.setPrivateAddresses(rawPriv);
+                }
+                if( pubIps.size() > 0 ) {
+                    RawAddress[] rawPub = pubIps.toArray(new RawAddress[pubIps.size()]);
+                    server.setPublicAddresses(rawPub);
                 }
             }
 
+            VirtualMachinePowerState state = ( VirtualMachinePowerState ) vm.get("runtime.powerState");
 
-
-            VirtualMachineRuntimeInfo runtime = vm.getRuntime();
-
-            if( runtime != null ) {
-                VirtualMachinePowerState state = runtime.getPowerState();
-
+            if( state != null ) {
                 if( server.getCurrentState() == null ) {
                     switch( state ) {
                         case suspended:
@@ -1950,8 +2632,8 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                             break;
                     }
                 }
-                Calendar suspend = runtime.getSuspendTime();
-                Calendar time = runtime.getBootTime();
+                Calendar suspend = vm.getCalendar("runtime.suspendTime");
+                Calendar time = vm.getCalendar("runtime.bootTime");
 
                 if( suspend == null || suspend.getTimeInMillis() < 1L ) {
                     server.setLastPauseTimestamp(-1L);
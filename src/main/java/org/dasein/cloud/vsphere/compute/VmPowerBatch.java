@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of a batch power operation started by {@link Vm#power(java.util.Collection, VmPowerAction)}. Each
+ * virtual machine in the batch yields exactly one {@link VmPowerResult}, and iterating over the batch returns the
+ * results in the order in which the operations completed, blocking until the next one is available. The batch may be
+ * iterated any number of times.
+ */
+public class VmPowerBatch implements Iterable<VmPowerResult> {
+    private final VmPowerAction       action;
+    private final List<VmPowerResult> results = new ArrayList<VmPowerResult>();
+    private final int                 size;
+
+    VmPowerBatch(@Nonnull VmPowerAction action, int size) {
+        this.action = action;
+        this.size = size;
+    }
+
+    void add(@Nonnull VmPowerResult result) {
+        synchronized( results ) {
+            if( results.size() < size ) {
+                results.add(result);
+                results.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for every operation in the batch to complete.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the batch completed, false if the timeout elapsed first
+     * @throws InterruptedException the wait was interrupted
+     */
+    public boolean await(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+
+        synchronized( results ) {
+            while( results.size() < size ) {
+                long remaining = end - System.currentTimeMillis();
+
+                if( remaining <= 0L ) {
+                    return false;
+                }
+                results.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    public @Nonnull VmPowerAction getAction() {
+        return action;
+    }
+
+    /**
+     * @return a copy of the results available so far, in completion order
+     */
+    public @Nonnull List<VmPowerResult> getCompletedResults() {
+        synchronized( results ) {
+            return new ArrayList<VmPowerResult>(results);
+        }
+    }
+
+    public boolean isDone() {
+        synchronized( results ) {
+            return (results.size() >= size);
+        }
+    }
+
+    @Override
+    public @Nonnull Iterator<VmPowerResult> iterator() {
+        return new Iterator<VmPowerResult>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return (index < size);
+            }
+
+            @Override
+            public VmPowerResult next() {
+                if( index >= size ) {
+                    throw new NoSuchElementException();
+                }
+                synchronized( results ) {
+                    while( results.size() <= index ) {
+                        try {
+                            results.wait();
+                        }
+                        catch( InterruptedException e ) {
+                            Thread.currentThread().interrupt();
+                            throw new NoSuchElementException("Interrupted while waiting for " + action + " results");
+                        }
+                    }
+                    return results.get(index++);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Power results cannot be removed");
+            }
+        };
+    }
+
+    /**
+     * @return the number of virtual machines in the batch
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ClusterAttemptedVmInfo;
+import com.vmware.vim25.ClusterNotAttemptedVmInfo;
+import com.vmware.vim25.ClusterPowerOnVmResult;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Carries out a {@link VmPowerBatch} on a single thread. The dispatcher issues the vSphere tasks for as many virtual
+ * machines as the global limit (&quot;powerBatchConcurrency&quot;, default 32) and per-host limit
+ * (&quot;powerBatchHostConcurrency&quot;, default 4) allow, then waits for the {@link TaskTracker} to report
+ * completions before issuing more. Start operations are grouped by datacenter into
+ * <code>PowerOnMultiVM_Task</code> calls, and terminate operations chain the destroy task onto the power-off task.
+ */
+class VmPowerDispatcher implements Runnable {
+    static private final Logger log = PrivateCloud.getLogger(VmPowerDispatcher.class, "std");
+
+    static private final int DEFAULT_CONCURRENCY      = 32;
+    static private final int DEFAULT_HOST_CONCURRENCY = 4;
+
+    static private class Target {
+        ManagedObjectReference   datacenter;
+        String                   host;
+        VirtualMachinePowerState state;
+        ManagedObjectReference   vm;
+        String                   vmId;
+        boolean                  finished;
+    }
+
+    static private class Completion {
+        List<Target> group;
+        boolean      poweringOff;
+        Target       target;
+        TrackedTask  task;
+    }
+
+    private final VmPowerAction                       action;
+    private final Set<Target>                         active       = new HashSet<Target>();
+    private final VmPowerBatch                        batch;
+    private final BlockingQueue<Completion>           completions  = new LinkedBlockingQueue<Completion>();
+    private final Map<String,Integer>                 hostInFlight = new HashMap<String, Integer>();
+    private final Map<String,ManagedObjectReference> index;
+    private final ServiceInstance                     instance;
+    private final int                                 maxInFlight;
+    private final int                                 maxPerHost;
+    private final PrivateCloud                        provider;
+    private final LinkedList<Target>                  queue        = new LinkedList<Target>();
+
+    /**
+     * Resolves the virtual machines in the batch against the inventory. Virtual machines that cannot be found are
+     * reported as failures right away.
+     * @param provider the cloud provider, which must be held for the lifetime of the dispatcher
+     * @param instance the service instance on which to issue the tasks
+     * @param action the operation to perform
+     * @param vmIds the instance UUIDs of the virtual machines
+     * @param inventory the virtual machines along with their hosts and the folders and datacenters above them
+     * @param index the instance UUID index from which terminated virtual machines are removed
+     */
+    VmPowerDispatcher(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull VmPowerAction action, @Nonnull Set<String> vmIds, @Nonnull InventorySnapshot inventory, @Nonnull Map<String,ManagedObjectReference> index) {
+        this.provider = provider;
+        this.instance = instance;
+        this.action = action;
+        this.index = index;
+        this.batch = new VmPowerBatch(action, vmIds.size());
+        this.maxInFlight = provider.getIntProperty("powerBatchConcurrency", DEFAULT_CONCURRENCY);
+        this.maxPerHost = provider.getIntProperty("powerBatchHostConcurrency", DEFAULT_HOST_CONCURRENCY);
+
+        Map<String,ObjectProperties> vms = new HashMap<String, ObjectProperties>();
+
+        for( ObjectProperties vm : inventory.list("VirtualMachine") ) {
+            String uuid = vm.getString("config.instanceUuid");
+
+            if( uuid != null && vm.isSet("config.template") && !vm.getBoolean("config.template") ) {
+                vms.put(uuid, vm);
+            }
+        }
+        for( String vmId : vmIds ) {
+            ObjectProperties vm = vms.get(vmId);
+
+            if( vm == null ) {
+                batch.add(new VmPowerResult(vmId, action, false, "No such virtual machine: " + vmId));
+                continue;
+            }
+            Target target = new Target();
+            ManagedObjectReference host = vm.getReference("runtime.host");
+            ObjectProperties dc = inventory.getDatacenter(host);
+
+            target.vmId = vmId;
+            target.vm = vm.getMOR();
+            target.state = ( VirtualMachinePowerState ) vm.get("runtime.powerState");
+            target.host = (host == null ? "" : host.getVal());
+            target.datacenter = (dc == null ? null : dc.getMOR());
+            queue.add(target);
+        }
+    }
+
+    @Nonnull VmPowerBatch getBatch() {
+        return batch;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while( !queue.isEmpty() || !active.isEmpty() ) {
+                dispatch();
+                if( !active.isEmpty() ) {
+                    handle(completions.take());
+                }
+            }
+        }
+        catch( Throwable t ) {
+            log.error("Batch " + action + " failed: " + t.getMessage());
+            for( Target target : new ArrayList<Target>(active) ) {
+                finish(target, false, describe(t));
+            }
+            for( Target target : queue ) {
+                finish(target, false, describe(t));
+            }
+            queue.clear();
+        }
+        finally {
+            provider.release();
+        }
+    }
+
+    /**
+     * Issues operations for the queued virtual machines until the global limit is reached, skipping virtual machines
+     * whose hosts are at their own limit.
+     */
+    private void dispatch() {
+        List<Target> starting = new ArrayList<Target>();
+        Iterator<Target> it = queue.iterator();
+
+        while( it.hasNext() && active.size() < maxInFlight ) {
+            Target target = it.next();
+            Integer running = hostInFlight.get(target.host);
+
+            if( running != null && running >= maxPerHost ) {
+                continue;
+            }
+            it.remove();
+            active.add(target);
+            hostInFlight.put(target.host, (running == null ? 1 : running + 1));
+            if( action.equals(VmPowerAction.START) && target.datacenter != null && !VirtualMachinePowerState.poweredOn.equals(target.state) ) {
+                starting.add(target);
+            }
+            else {
+                issue(target);
+            }
+        }
+        if( !starting.isEmpty() ) {
+            start(starting);
+        }
+    }
+
+    private void issue(@Nonnull Target target) {
+        com.vmware.vim25.mo.VirtualMachine vm = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), target.vm);
+
+        try {
+            switch( action ) {
+                case START: case RESUME:
+                    if( VirtualMachinePowerState.poweredOn.equals(target.state) ) {
+                        finish(target, true, null);
+                    }
+                    else {
+                        watch(target, VmTasks.powerOn(vm, null), false);
+                    }
+                    break;
+                case STOP:
+                    if( VirtualMachinePowerState.poweredOff.equals(target.state) ) {
+                        finish(target, true, null);
+                    }
+                    else {
+                        watch(target, VmTasks.powerOff(vm), false);
+                    }
+                    break;
+                case SUSPEND:
+                    if( VirtualMachinePowerState.suspended.equals(target.state) ) {
+                        finish(target, true, null);
+                    }
+                    else {
+                        watch(target, VmTasks.suspend(vm), false);
+                    }
+                    break;
+                case REBOOT:
+                    if( !VirtualMachinePowerState.poweredOn.equals(target.state) ) {
+                        finish(target, false, "Vm must be powered on before rebooting os");
+                    }
+                    else {
+                        vm.rebootGuest();
+                        finish(target, true, null);
+                    }
+                    break;
+                case TERMINATE:
+                    if( VirtualMachinePowerState.poweredOff.equals(target.state) ) {
+                        watch(target, VmTasks.destroy(vm), false);
+                    }
+                    else {
+                        watch(target, VmTasks.powerOff(vm), true);
+                    }
+                    break;
+            }
+        }
+        catch( Exception e ) {
+            finish(target, false, describe(e));
+        }
+    }
+
+    /**
+     * Powers on virtual machines with one <code>PowerOnMultiVM_Task</code> per datacenter, which also lets DRS place
+     * them in clusters where it is enabled.
+     * @param targets the virtual machines to power on
+     */
+    private void start(@Nonnull List<Target> targets) {
+        Map<String,List<Target>> byDatacenter = new LinkedHashMap<String, List<Target>>();
+
+        for( Target target : targets ) {
+            String key = ObjectProperties.getKey(target.datacenter);
+            List<Target> group = byDatacenter.get(key);
+
+            if( group == null ) {
+                group = new ArrayList<Target>();
+                byDatacenter.put(key, group);
+            }
+            group.add(target);
+        }
+        for( List<Target> group : byDatacenter.values() ) {
+            com.vmware.vim25.mo.VirtualMachine[] vms = new com.vmware.vim25.mo.VirtualMachine[group.size()];
+
+            for( int i=0; i<vms.length; i++ ) {
+                vms[i] = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), group.get(i).vm);
+            }
+            Datacenter dc = new Datacenter(instance.getServerConnection(), group.get(0).datacenter);
+            Task task;
+
+            try {
+                task = dc.powerOnMultiVM_Task(vms, null);
+            }
+            catch( Exception e ) {
+                log.warn("Unable to power on " + vms.length + " virtual machines together, powering them on individually: " + describe(e));
+                for( Target target : group ) {
+                    issue(target);
+                }
+                continue;
+            }
+            Completion completion = new Completion();
+
+            completion.group = group;
+            try {
+                watch(completion, task);
+            }
+            catch( Exception e ) {
+                for( Target target : group ) {
+                    finish(target, false, describe(e));
+                }
+            }
+        }
+    }
+
+    private void handle(@Nonnull Completion completion) throws InterruptedException {
+        if( completion.group != null ) {
+            handleStart(completion);
+            return;
+        }
+        Target target = completion.target;
+
+        if( target.finished ) {
+            return;
+        }
+        String status;
+
+        try {
+            status = completion.task.waitForTask();
+        }
+        catch( RemoteException e ) {
+            finish(target, false, describe(e));
+            return;
+        }
+        if( !status.equals(Task.SUCCESS) ) {
+            finish(target, false, completion.task.getErrorMessage());
+        }
+        else if( completion.poweringOff ) {
+            try {
+                com.vmware.vim25.mo.VirtualMachine vm = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), target.vm);
+
+                watch(target, VmTasks.destroy(vm), false);
+            }
+            catch( Exception e ) {
+                finish(target, false, describe(e));
+            }
+        }
+        else {
+            finish(target, true, null);
+        }
+    }
+
+    private void handleStart(@Nonnull Completion completion) throws InterruptedException {
+        Map<String,Target> remaining = new LinkedHashMap<String, Target>();
+        String status;
+
+        for( Target target : completion.group ) {
+            remaining.put(ObjectProperties.getKey(target.vm), target);
+        }
+        try {
+            status = completion.task.waitForTask();
+        }
+        catch( RemoteException e ) {
+            status = Task.ERROR;
+        }
+        if( !status.equals(Task.SUCCESS) ) {
+            log.warn("Multiple power on failed, powering on individually: " + completion.task.getErrorMessage());
+        }
+        else if( completion.task.getResult() instanceof ClusterPowerOnVmResult ) {
+            ClusterPowerOnVmResult result = ( ClusterPowerOnVmResult ) completion.task.getResult();
+
+            if( result.getAttempted() != null ) {
+                for( ClusterAttemptedVmInfo info : result.getAttempted() ) {
+                    Target target = remaining.remove(ObjectProperties.getKey(info.getVm()));
+
+                    if( target == null ) {
+                        continue;
+                    }
+                    if( info.getTask() == null ) {
+                        finish(target, false, "No power on task was started for " + target.vmId);
+                    }
+                    else {
+                        try {
+                            watch(target, new Task(instance.getServerConnection(), info.getTask()), false);
+                        }
+                        catch( Exception e ) {
+                            finish(target, false, describe(e));
+                        }
+                    }
+                }
+            }
+            if( result.getNotAttempted() != null ) {
+                for( ClusterNotAttemptedVmInfo info : result.getNotAttempted() ) {
+                    Target target = remaining.remove(ObjectProperties.getKey(info.getVm()));
+
+                    if( target != null ) {
+                        String error = (info.getFault() == null ? null : info.getFault().getLocalizedMessage());
+
+                        finish(target, false, (error == null ? "vSphere did not attempt to power on " + target.vmId : error));
+                    }
+                }
+            }
+        }
+        for( Target target : remaining.values() ) {
+            issue(target);
+        }
+    }
+
+    private void watch(@Nonnull Target target, @Nonnull Task task, boolean poweringOff) throws CloudException, InternalException {
+        Completion completion = new Completion();
+
+        completion.target = target;
+        completion.poweringOff = poweringOff;
+        watch(completion, task);
+    }
+
+    private void watch(@Nonnull final Completion completion, @Nonnull Task task) throws CloudException, InternalException {
+        completion.task = TaskTracker.getInstance(provider).track(task);
+        completion.task.addListener(new TrackedTask.Listener() {
+            public void taskCompleted(@Nonnull TrackedTask task) {
+                completions.add(completion);
+            }
+        });
+    }
+
+    private void finish(@Nonnull Target target, boolean success, @Nullable String error) {
+        if( target.finished ) {
+            return;
+        }
+        target.finished = true;
+        if( active.remove(target) ) {
+            Integer running = hostInFlight.get(target.host);
+
+            if( running != null && running > 1 ) {
+                hostInFlight.put(target.host, running - 1);
+            }
+            else {
+                hostInFlight.remove(target.host);
+            }
+        }
+        if( success && action.equals(VmPowerAction.TERMINATE) ) {
+            index.remove(target.vmId);
+        }
+        if( !success ) {
+            log.warn(action + " of " + target.vmId + " failed: " + error);
+        }
+        batch.add(new VmPowerResult(target.vmId, action, success, error));
+    }
+
+    private @Nonnull String describe(@Nonnull Throwable t) {
+        return (t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage());
+    }
+}
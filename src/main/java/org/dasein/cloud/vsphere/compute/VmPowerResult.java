@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The outcome of a single virtual machine's power operation within a {@link VmPowerBatch}.
+ */
+public class VmPowerResult {
+    private VmPowerAction action;
+    private String        error;
+    private boolean       success;
+    private String        vmId;
+
+    public VmPowerResult(@Nonnull String vmId, @Nonnull VmPowerAction action, boolean success, @Nullable String error) {
+        this.vmId = vmId;
+        this.action = action;
+        this.success = success;
+        this.error = error;
+    }
+
+    public @Nonnull VmPowerAction getAction() {
+        return action;
+    }
+
+    /**
+     * @return a description of why the operation failed or null if it succeeded
+     */
+    public @Nullable String getError() {
+        return error;
+    }
+
+    public @Nonnull String getVirtualMachineId() {
+        return vmId;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return action + " " + vmId + (success ? " succeeded" : " failed: " + error);
+    }
+}
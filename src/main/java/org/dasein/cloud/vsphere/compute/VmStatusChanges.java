@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.dasein.cloud.ResourceStatus;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The result of {@link Vm#listVirtualMachineStatus(String)}: the virtual machine states that changed since the
+ * version passed in, the IDs of virtual machines that went away, and the version to pass in on the next call. When
+ * {@link #isFull()} is true, the version passed in could not be honored and {@link #getStatus()} holds every virtual
+ * machine rather than just the changes.
+ */
+public class VmStatusChanges {
+    private boolean                    full;
+    private Collection<String>         removed;
+    private Collection<ResourceStatus> status;
+    private String                     version;
+
+    public VmStatusChanges(@Nonnull String version, boolean full, @Nonnull Collection<ResourceStatus> status, @Nonnull Collection<String> removed) {
+        this.version = version;
+        this.full = full;
+        this.status = status;
+        this.removed = removed;
+    }
+
+    /**
+     * @return the IDs of virtual machines removed (or turned into templates) since the requested version
+     */
+    public @Nonnull Collection<String> getRemovedIds() {
+        return Collections.unmodifiableCollection(removed);
+    }
+
+    /**
+     * @return the states of the virtual machines that are new or changed since the requested version
+     */
+    public @Nonnull Collection<ResourceStatus> getStatus() {
+        return Collections.unmodifiableCollection(status);
+    }
+
+    /**
+     * @return the version token to pass in on the next call
+     */
+    public @Nonnull String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if this is a complete listing rather than the changes since the requested version
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[" + version + (full ? " full" : "") + "] " + status + " removed=" + removed;
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.SessionPool;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks virtual machine power states through a long-lived property collector filter so that callers can ask for
+ * just the states that changed since an earlier call. The tracker keeps its own version chain with vSphere and hands
+ * callers opaque tokens of the form <code>generation:sequence</code>, so any number of callers can poll with their
+ * own tokens. Tokens from an earlier generation (the collector was rebuilt) or older than the retained history of
+ * removed virtual machines yield a full listing instead.
+ * <p>
+ * Once nobody has asked for changes for five minutes, the tracker destroys its collector and returns its session to
+ * the pool. The next call rebuilds it under a new generation, so older tokens yield a full listing.
+ * </p>
+ */
+class VmStatusTracker {
+    static private final Logger log = PrivateCloud.getLogger(VmStatusTracker.class, "std");
+
+    static private final long TOMBSTONE_RETENTION = CalendarWrapper.HOUR;
+    static private final long IDLE_TIMEOUT        = CalendarWrapper.MINUTE * 5L;
+
+    static private final HashMap<String,VmStatusTracker> trackers = new HashMap<String, VmStatusTracker>();
+
+    static private final String[] STATUS_PROPERTIES = new String[] { "config.annotation", "config.instanceUuid", "config.template", "runtime.powerState" };
+
+    static @Nonnull PropertySpec getStatusSpec() {
+        return PropertyRetriever.spec("VirtualMachine", STATUS_PROPERTIES);
+    }
+
+    static @Nonnull VmStatusTracker getInstance(@Nonnull PrivateCloud provider) throws CloudException, InternalException {
+        String key = provider.getSessionKey();
+
+        synchronized( trackers ) {
+            VmStatusTracker tracker = trackers.get(key);
+
+            if( tracker == null ) {
+                tracker = new VmStatusTracker(SessionPool.getInstance(provider));
+                trackers.put(key, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    static private class Entry {
+        ObjectProperties properties;
+        String           vmId;
+        long             changed;
+        long             timestamp;
+        boolean          removed;
+    }
+
+    private SessionPool         pool;
+    private SessionPool.Session session;
+    private PropertyCollector   collector;
+    private ContainerView       view;
+    private String              version;
+    private String              generation;
+    private long                sequence;
+    private long                floor;
+    private Map<String,Entry>   entries = new HashMap<String, Entry>();
+    private Thread              reaper;
+    private long                lastActivity;
+
+    private VmStatusTracker(@Nonnull SessionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Brings the tracker up to date with vSphere and reports the changes since the specified version.
+     * @param since the version token from a previous call or null for a full listing
+     * @return the changes since the specified version
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    synchronized @Nonnull VmStatusChanges getChanges(@Nullable String since) throws CloudException {
+        lastActivity = System.currentTimeMillis();
+        try {
+            poll();
+        }
+        catch( InvalidCollectorVersion e ) {
+            log.warn("Status collector version " + version + " is no longer valid, rebuilding");
+            reset();
+            pollOrFail();
+        }
+        catch( RemoteException e ) {
+            log.warn("Status collector failed, rebuilding: " + e.getMessage());
+            reset();
+            release();
+            pollOrFail();
+        }
+        long sinceSequence = parse(since);
+        String token = generation + ":" + sequence;
+        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        ArrayList<String> removed = new ArrayList<String>();
+
+        if( sinceSequence < 0 ) {
+            for( Entry entry : entries.values() ) {
+                ResourceStatus s = (entry.removed ? null : Vm.toStatus(entry.properties));
+
+                if( s != null ) {
+                    status.add(s);
+                }
+            }
+            return new VmStatusChanges(token, true, status, removed);
+        }
+        for( Entry entry : entries.values() ) {
+            if( entry.changed > sinceSequence ) {
+                ResourceStatus s = (entry.removed ? null : Vm.toStatus(entry.properties));
+
+                if( s != null ) {
+                    status.add(s);
+                }
+                else if( entry.vmId != null ) {
+                    removed.add(entry.vmId);
+                }
+            }
+        }
+        return new VmStatusChanges(token, false, status, removed);
+    }
+
+    /**
+     * @param since a version token handed out by this tracker
+     * @return the sequence number in the token or -1 if the token cannot be used for an incremental result
+     */
+    private long parse(@Nullable String since) {
+        if( since == null ) {
+            return -1L;
+        }
+        int idx = since.lastIndexOf(':');
+
+        if( idx < 1 || !since.substring(0, idx).equals(generation) ) {
+            return -1L;
+        }
+        try {
+            long seq = Long.parseLong(since.substring(idx + 1));
+
+            if( seq < floor || seq > sequence ) {
+                return -1L;
+            }
+            return seq;
+        }
+        catch( NumberFormatException e ) {
+            return -1L;
+        }
+    }
+
+    private void pollOrFail() throws CloudException {
+        try {
+            poll();
+        }
+        catch( RuntimeFault e ) {
+            reset();
+            throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            reset();
+            release();
+            throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+    }
+
+    private void poll() throws CloudException, RemoteException {
+        if( collector == null ) {
+            initialize();
+        }
+        WaitOptions options = new WaitOptions();
+
+        options.setMaxWaitSeconds(0);
+        options.setMaxObjectUpdates(PropertyRetriever.PAGE_SIZE);
+
+        boolean incremented = false;
+
+        while( true ) {
+            UpdateSet updates = collector.waitForUpdatesEx(version, options);
+
+            if( updates == null ) {
+                break;
+            }
+            if( !incremented ) {
+                sequence++;
+                incremented = true;
+            }
+            apply(updates);
+            version = updates.getVersion();
+            if( updates.getTruncated() == null || !updates.getTruncated() ) {
+                break;
+            }
+        }
+        purge();
+    }
+
+    private void initialize() throws CloudException, RemoteException {
+        if( session == null ) {
+            session = pool.lease();
+            if( session == null ) {
+                throw new CloudException("Unable to log into vSphere to track virtual machine status");
+            }
+        }
+        ServiceInstance instance = session.getServiceInstance();
+        PropertyRetriever retriever = new PropertyRetriever(instance);
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+
+        view = retriever.createView(instance.getRootFolder(), "VirtualMachine");
+        filter.setObjectSet(new ObjectSpec[] { PropertyRetriever.viewSpec(view) });
+        filter.setPropSet(new PropertySpec[] { getStatusSpec() });
+        collector = instance.getPropertyCollector().createPropertyCollector();
+        collector.createFilter(filter, false);
+        version = "";
+        generation = Long.toString(System.currentTimeMillis(), 36);
+        sequence = 0L;
+        floor = 0L;
+        entries.clear();
+        if( reaper == null ) {
+            reaper = new Thread() {
+                public void run() {
+                    reap();
+                }
+            };
+            reaper.setName("vSphere status tracker reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+    }
+
+    /**
+     * Waits for the tracker to go unused for the idle timeout and then drops the collector and the session lease.
+     */
+    private void reap() {
+        while( true ) {
+            try { Thread.sleep(CalendarWrapper.MINUTE); }
+            catch( InterruptedException e ) { return; }
+
+            synchronized( this ) {
+                if( collector == null ) {
+                    release();
+                    reaper = null;
+                    return;
+                }
+                if( System.currentTimeMillis() - lastActivity > IDLE_TIMEOUT ) {
+                    log.debug("Status tracker is idle, releasing its collector and session");
+                    reset();
+                    release();
+                    reaper = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(@Nonnull UpdateSet updates) {
+        PropertyFilterUpdate[] filters = updates.getFilterSet();
+
+        if( filters == null ) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        for( PropertyFilterUpdate filter : filters ) {
+            ObjectUpdate[] updated = filter.getObjectSet();
+
+            if( updated == null ) {
+                continue;
+            }
+            for( ObjectUpdate update : updated ) {
+                String key = ObjectProperties.getKey(update.getObj());
+                Entry entry = entries.get(key);
+
+                if( entry == null ) {
+                    entry = new Entry();
+                    entry.properties = new ObjectProperties(update.getObj());
+                    entries.put(key, entry);
+                }
+                entry.changed = sequence;
+                entry.timestamp = now;
+                if( update.getKind().equals(ObjectUpdateKind.leave) ) {
+                    entry.removed = true;
+                    continue;
+                }
+                Map<String,Object> changes = new HashMap<String, Object>();
+                PropertyChange[] changeSet = update.getChangeSet();
+
+                if( changeSet != null ) {
+                    for( PropertyChange change : changeSet ) {
+                        if( change.getOp().equals(PropertyChangeOp.remove) || change.getOp().equals(PropertyChangeOp.indirectRemove) ) {
+                            changes.put(change.getName(), null);
+                        }
+                        else {
+                            changes.put(change.getName(), change.getVal());
+                        }
+                    }
+                }
+                entry.removed = false;
+                entry.properties = new ObjectProperties(entry.properties, changes);
+                if( entry.properties.getString("config.instanceUuid") != null ) {
+                    entry.vmId = entry.properties.getString("config.instanceUuid");
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets removed virtual machines once they have been gone long enough, raising the oldest version token that
+     * can still be answered incrementally.
+     */
+    private void purge() {
+        long cutoff = System.currentTimeMillis() - TOMBSTONE_RETENTION;
+        Iterator<Entry> it = entries.values().iterator();
+
+        while( it.hasNext() ) {
+            Entry entry = it.next();
+
+            if( entry.removed && entry.timestamp < cutoff ) {
+                it.remove();
+                if( entry.changed > floor ) {
+                    floor = entry.changed;
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        if( collector != null ) {
+            try {
+                collector.destroyPropertyCollector();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+            collector = null;
+        }
+        if( view != null ) {
+            try {
+                view.destroyView();
+            }
+            catch( Throwable ignore ) {
+                // ignore
+            }
+            view = null;
+        }
+        entries.clear();
+        version = "";
+    }
+
+    private void release() {
+        if( session != null ) {
+            session.release();
+            session = null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineConfigSpec;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.vsphere.SessionPool;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+
+/**
+ * Starts the vSphere tasks that create, change, snapshot, power and remove virtual machines. Each task is started through
+ * {@link SessionPool#retry(com.vmware.vim25.mo.ManagedObject, SessionPool.Call)} so a session that expired after the
+ * objects were looked up does not fail the operation; the other managed objects passed to a task are only sent as
+ * references and so need no rebinding.
+ */
+class VmTasks {
+    static @Nonnull Task cloneVm(@Nonnull final VirtualMachine vm, @Nonnull final Folder folder, @Nonnull final String name, @Nonnull final VirtualMachineCloneSpec spec) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).cloneVM_Task(folder, name, spec);
+            }
+        });
+    }
+
+    static @Nonnull Task createVm(@Nonnull final Folder folder, @Nonnull final VirtualMachineConfigSpec config, @Nonnull final ResourcePool pool, @Nullable final HostSystem host) throws CloudException, RemoteException {
+        return SessionPool.retry(folder, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new Folder(connection, folder.getMOR()).createVM_Task(config, pool, host);
+            }
+        });
+    }
+
+    static @Nonnull Task reconfigure(@Nonnull final VirtualMachine vm, @Nonnull final VirtualMachineConfigSpec spec) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).reconfigVM_Task(spec);
+            }
+        });
+    }
+
+    static @Nonnull Task powerOn(@Nonnull final VirtualMachine vm, @Nullable final HostSystem host) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).powerOnVM_Task(host);
+            }
+        });
+    }
+
+    static @Nonnull Task powerOff(@Nonnull final VirtualMachine vm) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).powerOffVM_Task();
+            }
+        });
+    }
+
+    static @Nonnull Task suspend(@Nonnull final VirtualMachine vm) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).suspendVM_Task();
+            }
+        });
+    }
+
+    static @Nonnull Task snapshot(@Nonnull final VirtualMachine vm, @Nonnull final String name, @Nonnull final String description) throws CloudException, RemoteException {
+        return SessionPool.retry(vm, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new VirtualMachine(connection, vm.getMOR()).createSnapshot_Task(name, description, false, false);
+            }
+        });
+    }
+
+    static @Nonnull Task destroy(@Nonnull final ManagedEntity entity) throws CloudException, RemoteException {
+        return SessionPool.retry(entity, new SessionPool.Call<Task>() {
+            public Task call(@Nonnull ServerConnection connection) throws RemoteException {
+                return new ManagedEntity(connection, entity.getMOR()).destroy_Task();
+            }
+        });
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Terminates virtual machines in the background on behalf of {@link Vm#terminate(String, String)}. Requests are
+ * queued and at most &quot;terminateConcurrency&quot; (default 16) virtual machines are worked on at once. A running
+ * virtual machine is powered off and destroyed as soon as the {@link TaskTracker} reports the power-off complete;
+ * failures are logged and recorded for {@link #getFailures()}. Each queued termination holds the cloud provider open,
+ * so closing the provider waits for the queue to drain before the terminator is shut down.
+ */
+public class VmTerminator {
+    static private final Logger log = PrivateCloud.getLogger(VmTerminator.class, "std");
+
+    static private final int DEFAULT_CONCURRENCY = 16;
+    static private final int WORKER_THREADS      = 4;
+
+    private final Map<String,String>   failures = new HashMap<String, String>();
+    private final ThreadPoolExecutor   executor;
+    private final int                  maxRunning;
+    private final PrivateCloud         provider;
+    private final LinkedList<String>   waiting  = new LinkedList<String>();
+    private int                        completed;
+    private int                        running;
+    private boolean                    shutdown;
+
+    public VmTerminator(@Nonnull PrivateCloud provider) {
+        this.provider = provider;
+        this.maxRunning = provider.getIntProperty("terminateConcurrency", DEFAULT_CONCURRENCY);
+        this.executor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("vSphere terminator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the specified virtual machine for termination.
+     * @param vmId the instance UUID of the virtual machine
+     * @param explanation the reason for the termination, which is logged
+     * @throws CloudException the terminator has been shut down
+     */
+    public void submit(@Nonnull String vmId, @Nullable String explanation) throws CloudException {
+        // hold outside the lock since the provider shuts the terminator down while holding its own lock
+        provider.hold();
+        boolean accepted;
+
+        synchronized( this ) {
+            accepted = !shutdown;
+            if( accepted ) {
+                failures.remove(vmId);
+                waiting.add(vmId);
+            }
+        }
+        if( !accepted ) {
+            provider.release();
+            throw new CloudException("Unable to terminate " + vmId + " because the cloud provider has been closed");
+        }
+        if( explanation != null && !explanation.equals("") ) {
+            log.info("Terminating " + vmId + ": " + explanation);
+        }
+        pump();
+    }
+
+    /**
+     * @return the number of terminations completed since the terminator was created, successful or not
+     */
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * @return the instance UUIDs of the virtual machines whose most recent termination failed mapped to the reasons
+     */
+    public synchronized @Nonnull Map<String,String> getFailures() {
+        return new HashMap<String, String>(failures);
+    }
+
+    /**
+     * @return the number of terminations queued or in progress
+     */
+    public synchronized int getPendingCount() {
+        return waiting.size() + running;
+    }
+
+    /**
+     * Waits for every queued termination to complete.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the queue drained, false if the timeout elapsed first
+     * @throws InterruptedException the wait was interrupted
+     */
+    public boolean drain(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+
+        synchronized( this ) {
+            while( !waiting.isEmpty() || running > 0 ) {
+                long remaining = end - System.currentTimeMillis();
+
+                if( remaining <= 0L ) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops the terminator, failing any terminations that have not yet completed. Called when the cloud provider is
+     * cleaned up after the queue has drained (or the provider gave up waiting on it).
+     */
+    public void shutdown() {
+        LinkedList<String> abandoned;
+
+        synchronized( this ) {
+            shutdown = true;
+            abandoned = new LinkedList<String>(waiting);
+            waiting.clear();
+        }
+        for( String vmId : abandoned ) {
+            complete(vmId, "Terminator shut down before " + vmId + " could be terminated", false);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Starts as many queued terminations as the concurrency limit allows.
+     */
+    private void pump() {
+        while( true ) {
+            final String vmId;
+
+            synchronized( this ) {
+                if( shutdown || waiting.isEmpty() || running >= maxRunning ) {
+                    return;
+                }
+                vmId = waiting.removeFirst();
+                running++;
+            }
+            execute(vmId, new Runnable() {
+                public void run() {
+                    begin(vmId);
+                }
+            });
+        }
+    }
+
+    private void execute(@Nonnull String vmId, @Nonnull Runnable step) {
+        try {
+            executor.execute(step);
+        }
+        catch( RejectedExecutionException e ) {
+            complete(vmId, "Terminator shut down before " + vmId + " could be terminated", true);
+        }
+    }
+
+    /**
+     * Looks up the virtual machine and either destroys it or, if it is running, powers it off first.
+     * @param vmId the instance UUID of the virtual machine
+     */
+    private void begin(@Nonnull String vmId) {
+        APITrace.begin(provider, "Vm.terminateVm");
+        try {
+            ServiceInstance instance = provider.getServiceInstance();
+
+            if( instance == null ) {
+                complete(vmId, "Unauthorized", true);
+                return;
+            }
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+            com.vmware.vim25.mo.VirtualMachine vm = support.getVirtualMachine(instance, vmId);
+
+            if( vm == null ) {
+                complete(vmId, null, true);
+                return;
+            }
+            ObjectProperties current = new PropertyRetriever(instance).retrieve(vm.getMOR(), "runtime.powerState");
+            VirtualMachinePowerState state = (current == null ? null : ( VirtualMachinePowerState ) current.get("runtime.powerState"));
+
+            if( current == null ) {
+                complete(vmId, null, true);
+            }
+            else if( VirtualMachinePowerState.poweredOff.equals(state) ) {
+                destroy(vmId, vm);
+            }
+            else {
+                watch(vmId, vm, VmTasks.powerOff(vm), true);
+            }
+        }
+        catch( Throwable t ) {
+            complete(vmId, describe(t), true);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private void destroy(@Nonnull String vmId, @Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws RemoteException, CloudException, InternalException {
+        watch(vmId, vm, VmTasks.destroy(vm), false);
+    }
+
+    /**
+     * Follows a power-off or destroy task, moving on to the next step on a worker thread once it completes.
+     */
+    private void watch(@Nonnull final String vmId, @Nonnull final com.vmware.vim25.mo.VirtualMachine vm, @Nonnull Task task, final boolean poweringOff) throws CloudException, InternalException {
+        TrackedTask tracked = TaskTracker.getInstance(provider).track(task);
+
+        tracked.addListener(new TrackedTask.Listener() {
+            public void taskCompleted(@Nonnull TrackedTask done) {
+                if( !TaskInfoState.success.equals(done.getState()) ) {
+                    complete(vmId, (poweringOff ? "Power off failed: " : "Destroy failed: ") + done.getErrorMessage(), true);
+                }
+                else if( !poweringOff ) {
+                    complete(vmId, null, true);
+                }
+                else {
+                    execute(vmId, new Runnable() {
+                        public void run() {
+                            try {
+                                destroy(vmId, vm);
+                            }
+                            catch( Throwable t ) {
+                                complete(vmId, describe(t), true);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void complete(@Nonnull String vmId, @Nullable String error, boolean started) {
+        if( error != null ) {
+            log.error("Termination of " + vmId + " failed: " + error);
+        }
+        try {
+            if( error == null ) {
+                try {
+                    provider.getComputeServices().getVirtualMachineSupport().forget(vmId);
+                }
+                catch( Throwable ignore ) {
+                    // the index entry is validated before use anyway
+                }
+            }
+            synchronized( this ) {
+                completed++;
+                if( error != null ) {
+                    failures.put(vmId, error);
+                }
+                if( started ) {
+                    running--;
+                }
+                notifyAll();
+            }
+        }
+        finally {
+            provider.release();
+        }
+        pump();
+    }
+
+    private @Nonnull String describe(@Nonnull Throwable t) {
+        return (t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage());
+    }
+}
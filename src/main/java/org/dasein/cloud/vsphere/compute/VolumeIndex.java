@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualDisk;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers where each volume of a region lives: its disk file and, for an attached volume, the virtual machine,
+ * device key and controller key of the disk. The index is rebuilt by every volume listing in the region and kept up to
+ * date as volumes are created, attached, detached and removed, so that operations on a single volume no longer list
+ * every volume to find it. Volume IDs are bare file names that may repeat across regions, so there is one index per
+ * account and region, held in the Dasein cache for an hour. Entries are checked before use: attached ones against
+ * their virtual machine and detached ones against their folder and the virtual machines using their datastore.
+ */
+class VolumeIndex {
+    static @Nonnull VolumeIndex getInstance(@Nonnull PrivateCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<VolumeIndex> cache = Cache.getInstance(provider, "volumeIndex", VolumeIndex.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+        synchronized( VolumeIndex.class ) {
+            Collection<VolumeIndex> list = ( Collection<VolumeIndex> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = Collections.singletonList(new VolumeIndex());
+                cache.put(ctx, list);
+            }
+            return list.iterator().next();
+        }
+    }
+
+    /**
+     * The location of a volume as of the operation that last saw it.
+     */
+    static class Entry {
+        private String                 volumeId;
+        private Volume                 volume;
+        private String                 filePath;
+        private ManagedObjectReference vm;
+        private int                    deviceKey;
+        private int                    controllerKey;
+
+        /**
+         * @param volume the volume as listed
+         * @param vm the virtual machine with the disk attached
+         * @param disk the disk device
+         * @return an entry for an attached volume
+         */
+        static @Nonnull Entry attached(@Nonnull Volume volume, @Nonnull ManagedObjectReference vm, @Nonnull VirtualDisk disk) {
+            Entry entry = new Entry();
+
+            entry.volumeId = volume.getProviderVolumeId();
+            entry.volume = volume;
+            entry.filePath = volume.getTag("filePath");
+            entry.vm = vm;
+            entry.deviceKey = disk.getKey();
+            entry.controllerKey = (disk.getControllerKey() == null ? 0 : disk.getControllerKey());
+            return entry;
+        }
+
+        /**
+         * Describes an attached volume whose listing is not known, such as a volume just created.
+         * @param volumeId the volume ID
+         * @param filePath the datastore path of the disk file
+         * @param vm the virtual machine with the disk attached
+         * @param disk the disk device
+         * @return an entry for an attached volume
+         */
+        static @Nonnull Entry attached(@Nonnull String volumeId, @Nonnull String filePath, @Nonnull ManagedObjectReference vm, @Nonnull VirtualDisk disk) {
+            Entry entry = new Entry();
+
+            entry.volumeId = volumeId;
+            entry.filePath = filePath;
+            entry.vm = vm;
+            entry.deviceKey = disk.getKey();
+            entry.controllerKey = (disk.getControllerKey() == null ? 0 : disk.getControllerKey());
+            return entry;
+        }
+
+        /**
+         * @param volume the volume as listed
+         * @return an entry for a volume attached to no virtual machine
+         */
+        static @Nonnull Entry detached(@Nonnull Volume volume) {
+            Entry entry = new Entry();
+
+            entry.volumeId = volume.getProviderVolumeId();
+            entry.volume = volume;
+            entry.filePath = volume.getTag("filePath");
+            return entry;
+        }
+
+        @Nonnull String getVolumeId() {
+            return volumeId;
+        }
+
+        /**
+         * @return the volume as last listed or null if it has not been listed
+         */
+        @Nullable Volume getVolume() {
+            return volume;
+        }
+
+        @Nullable String getFilePath() {
+            return filePath;
+        }
+
+        /**
+         * @return the virtual machine the volume is attached to or null if it is not attached
+         */
+        @Nullable ManagedObjectReference getVirtualMachine() {
+            return vm;
+        }
+
+        int getDeviceKey() {
+            return deviceKey;
+        }
+
+        int getControllerKey() {
+            return controllerKey;
+        }
+    }
+
+    private Map<String,Entry> entries = new HashMap<String, Entry>();
+
+    private VolumeIndex() { }
+
+    synchronized @Nullable Entry get(@Nonnull String volumeId) {
+        return entries.get(volumeId);
+    }
+
+    synchronized void put(@Nonnull Entry entry) {
+        entries.put(entry.getVolumeId(), entry);
+    }
+
+    synchronized void remove(@Nonnull String volumeId) {
+        entries.remove(volumeId);
+    }
+
+    /**
+     * Replaces the whole index with the results of a full listing.
+     * @param listed the entries of every volume listed, by volume ID
+     */
+    synchronized void replace(@Nonnull Map<String,Entry> listed) {
+        entries = new HashMap<String, Entry>(listed);
+    }
+}
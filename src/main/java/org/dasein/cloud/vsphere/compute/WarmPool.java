@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineConfigSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.ObjectProperties;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.TaskTracker;
+import org.dasein.cloud.vsphere.TrackedTask;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps pre-cloned, powered-off virtual machines ready for template launches so that a launch only renames, resizes
+ * and powers on a virtual machine instead of waiting for a full clone. A pool is kept for each template, cluster
+ * (dasein data center) and product and holds &quot;warmPoolSize&quot; virtual machines; pooling is off when the
+ * property is unset or 0. A pool is started by the first launch that matches it, and every claim starts a background
+ * clone to replace the virtual machine taken, with at most &quot;warmPoolConcurrency&quot; (default 2) clones running
+ * at once per region and account. Each background clone holds the cloud provider open until it completes. The pools
+ * of a region and account are dropped from the Dasein cache after a day and then adopt their members again.
+ * <p>
+ * Pooled virtual machines carry an annotation of {@link #MARKER} followed by the template, cluster and product of
+ * their pool, which hides them from tenants and lets a pool left behind by an earlier process be adopted rather than
+ * rebuilt; their names (<code>warm-</code> followed by a hash of the pool) only help administrators. A launch claims a
+ * pooled virtual machine by replacing its marker in a reconfiguration that vSphere only applies if the configuration
+ * is unchanged since the virtual machine was pooled, so processes sharing a pool never activate the same one. Only launches that ask for nothing a pooled clone lacks are served
+ * from the pool: a network, private IP, storage pool, affinity group, folder or resource pool other than the
+ * product's own sends the launch down the normal path.
+ * </p>
+ */
+public class WarmPool {
+    static private final Logger log = PrivateCloud.getLogger(WarmPool.class, "std");
+
+    static public final String MARKER        = "dasein-cloud:warm-pool:";
+    static public final String NAME_PREFIX   = "warm-";
+    static public final String SIZE_PROPERTY = "warmPoolSize";
+
+    static private final int DEFAULT_CONCURRENCY = 2;
+
+    static @Nonnull WarmPool getInstance(@Nonnull PrivateCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context exists for this request");
+        }
+        Cache<WarmPool> cache = Cache.getInstance(provider, "warmPool", WarmPool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(24, TimePeriod.HOUR));
+
+        synchronized( WarmPool.class ) {
+            Collection<WarmPool> list = ( Collection<WarmPool> ) cache.get(ctx);
+
+            if( list == null ) {
+                list = Collections.singletonList(new WarmPool(provider.getIntProperty("warmPoolConcurrency", DEFAULT_CONCURRENCY)));
+                cache.put(ctx, list);
+            }
+            return list.iterator().next();
+        }
+    }
+
+    /**
+     * @param annotation the annotation of a virtual machine
+     * @return true if the virtual machine is a pooled clone waiting to be claimed, which tenants must not see
+     */
+    static boolean isPooled(@Nullable String annotation) {
+        return (annotation != null && annotation.startsWith(MARKER));
+    }
+
+    /**
+     * @param options the launch options
+     * @return true if a pooled clone of the template can satisfy the launch
+     */
+    static boolean isEligible(@Nonnull VMLaunchOptions options) {
+        if( options.getVlanId() != null || options.getPrivateIp() != null || options.getStoragePoolId() != null ) {
+            return false;
+        }
+        if( options.getAffinityGroupId() != null || options.getVmFolderId() != null ) {
+            return false;
+        }
+        String resourcePoolId = options.getResourcePoolId();
+
+        if( resourcePoolId == null ) {
+            return true;
+        }
+        String[] items = options.getStandardProductId().split(":");
+
+        return (items.length == 3 && items[0].equals(resourcePoolId));
+    }
+
+    static private class Member {
+        ManagedObjectReference vm;
+        String                 vmId;
+        String                 changeVersion;
+    }
+
+    static private class Slot {
+        String             templateId;
+        String             dataCenterId;
+        String             productId;
+        String             prefix;
+        String             marker;
+        LinkedList<Member> available = new LinkedList<Member>();
+        int                filling;
+        boolean            adopted;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String,Slot>   slots = new HashMap<String, Slot>();
+    private int                      sequence;
+
+    private WarmPool(int concurrency) {
+        int threads = Math.max(1, concurrency);
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("vSphere warm pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Launches a virtual machine from the pool matching the launch options and starts refilling the pool. A pooled
+     * virtual machine that cannot be activated is terminated and the launch is left to the normal path.
+     * @param provider the cloud provider making the launch
+     * @param instance the service instance to work through
+     * @param options the launch options
+     * @param dataCenterId the cluster in which to launch
+     * @return the launched virtual machine or null if the pool had nothing to offer
+     * @throws CloudException an error occurred talking to vSphere
+     * @throws InternalException an error occurred in the Dasein Cloud implementation
+     */
+    @Nullable VirtualMachine claim(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull VMLaunchOptions options, @Nonnull String dataCenterId) throws CloudException, InternalException {
+        Slot slot = getSlot(options.getMachineImageId(), dataCenterId, options.getStandardProductId());
+
+        try {
+            adopt(instance, slot);
+
+            Member member;
+
+            while( true ) {
+                synchronized( this ) {
+                    member = slot.available.poll();
+                }
+                if( member == null ) {
+                    log.debug("Warm pool " + slot.prefix + " is empty");
+                    return null;
+                }
+                if( take(provider, instance, member, options) ) {
+                    break;
+                }
+            }
+            try {
+                VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().activate(instance, member.vm, options);
+
+                log.info("Launched " + vm.getProviderVirtualMachineId() + " from warm pool " + slot.prefix);
+                return vm;
+            }
+            catch( CloudException e ) {
+                log.warn("Discarding warm pool VM " + member.vmId + ": " + e.getMessage());
+                try {
+                    provider.getTerminator().submit(member.vmId, "Warm pool VM could not be activated");
+                }
+                catch( CloudException ignore ) {
+                    // the provider is closing and the VM will be adopted again later
+                }
+                return null;
+            }
+        }
+        finally {
+            replenish(provider, slot);
+        }
+    }
+
+    /**
+     * Claims a pooled virtual machine on the vSphere side by replacing its pool marker with the image being launched.
+     * The reconfiguration carries the change version seen when the virtual machine was pooled, so it fails if another
+     * process has claimed or otherwise changed the virtual machine in the meantime.
+     * @return true if the virtual machine now belongs to this launch
+     */
+    private boolean take(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull Member member, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        if( member.changeVersion == null ) {
+            return false;
+        }
+        VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+
+        spec.setChangeVersion(member.changeVersion);
+        spec.setAnnotation(options.getMachineImageId());
+        try {
+            com.vmware.vim25.mo.VirtualMachine vm = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), member.vm);
+            TrackedTask tracked = TaskTracker.getInstance(provider).track(VmTasks.reconfigure(vm, spec));
+
+            if( tracked.waitForTask().equals(Task.SUCCESS) ) {
+                return true;
+            }
+            log.debug("Warm pool VM " + member.vmId + " was claimed elsewhere: " + tracked.getErrorMessage());
+            return false;
+        }
+        catch( RemoteException e ) {
+            log.debug("Warm pool VM " + member.vmId + " is gone: " + e.getMessage());
+            return false;
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * @return the number of virtual machines waiting in all pools
+     */
+    public synchronized int getAvailableCount() {
+        int count = 0;
+
+        for( Slot slot : slots.values() ) {
+            count += slot.available.size();
+        }
+        return count;
+    }
+
+    private synchronized @Nonnull Slot getSlot(@Nonnull String templateId, @Nonnull String dataCenterId, @Nonnull String productId) {
+        String key = templateId + "|" + dataCenterId + "|" + productId;
+        Slot slot = slots.get(key);
+
+        if( slot == null ) {
+            slot = new Slot();
+            slot.templateId = templateId;
+            slot.dataCenterId = dataCenterId;
+            slot.productId = productId;
+            slot.prefix = NAME_PREFIX + Integer.toHexString(key.hashCode()) + "-";
+            slot.marker = MARKER + key;
+            slots.put(key, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Picks up powered-off virtual machines marked for the pool, such as those left by an earlier process, the first
+     * time the pool is used.
+     */
+    private void adopt(@Nonnull ServiceInstance instance, @Nonnull Slot slot) {
+        synchronized( this ) {
+            if( slot.adopted ) {
+                return;
+            }
+            slot.adopted = true;
+        }
+        try {
+            PropertyRetriever retriever = new PropertyRetriever(instance);
+
+            for( ObjectProperties vm : retriever.retrieve(instance.getRootFolder(), PropertyRetriever.spec("VirtualMachine", "config.annotation", "config.instanceUuid", "config.changeVersion", "config.template", "runtime.powerState")) ) {
+                String vmId = vm.getString("config.instanceUuid");
+
+                if( vmId == null || !slot.marker.equals(vm.getString("config.annotation")) || vm.getBoolean("config.template") ) {
+                    continue;
+                }
+                if( VirtualMachinePowerState.poweredOff.equals(vm.get("runtime.powerState")) ) {
+                    add(slot, vm.getMOR(), vmId, vm.getString("config.changeVersion"));
+                }
+            }
+        }
+        catch( CloudException e ) {
+            log.warn("Unable to adopt existing members of warm pool " + slot.prefix + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void add(@Nonnull Slot slot, @Nonnull ManagedObjectReference vm, @Nonnull String vmId, @Nullable String changeVersion) {
+        for( Member member : slot.available ) {
+            if( member.vmId.equals(vmId) ) {
+                return;
+            }
+        }
+        Member member = new Member();
+
+        member.vm = vm;
+        member.vmId = vmId;
+        member.changeVersion = changeVersion;
+        slot.available.add(member);
+    }
+
+    /**
+     * Starts as many background clones as it takes to bring the pool back up to size.
+     */
+    private void replenish(@Nonnull final PrivateCloud provider, @Nonnull final Slot slot) {
+        int size = provider.getIntProperty(SIZE_PROPERTY, 0);
+
+        while( true ) {
+            synchronized( this ) {
+                if( slot.available.size() + slot.filling >= size ) {
+                    return;
+                }
+                slot.filling++;
+            }
+            provider.hold();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            fill(provider, slot);
+                        }
+                        finally {
+                            filled(provider, slot);
+                        }
+                    }
+                });
+            }
+            catch( RejectedExecutionException e ) {
+                filled(provider, slot);
+                return;
+            }
+        }
+    }
+
+    private void filled(@Nonnull PrivateCloud provider, @Nonnull Slot slot) {
+        synchronized( this ) {
+            slot.filling--;
+        }
+        provider.release();
+    }
+
+    private void fill(@Nonnull PrivateCloud provider, @Nonnull Slot slot) {
+        APITrace.begin(provider, "WarmPool.fill");
+        try {
+            ServiceInstance instance = provider.getServiceInstance();
+
+            if( instance == null ) {
+                log.warn("Unable to fill warm pool " + slot.prefix + ": not logged in");
+                return;
+            }
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+            com.vmware.vim25.mo.VirtualMachine template = support.getTemplate(instance, slot.templateId);
+
+            if( template == null ) {
+                log.warn("Unable to fill warm pool " + slot.prefix + ": no such template " + slot.templateId);
+                return;
+            }
+            String[] items = slot.productId.split(":");
+            ResourcePool pool;
+
+            if( items.length == 3 ) {
+                pool = provider.getDataCenterServices().getVMWareResourcePool(items[0]);
+            }
+            else {
+                pool = provider.getDataCenterServices().getResourcePoolFromClusterId(instance, slot.dataCenterId);
+            }
+            if( pool == null ) {
+                log.warn("Unable to fill warm pool " + slot.prefix + ": no resource pool for " + slot.dataCenterId);
+                return;
+            }
+            com.vmware.vim25.mo.VirtualMachine vm = support.clone(instance, template, nextName(slot), false, pool, slot.marker);
+            ObjectProperties properties = new PropertyRetriever(instance).retrieve(vm.getMOR(), "config.instanceUuid", "config.changeVersion");
+            String vmId = (properties == null ? null : properties.getString("config.instanceUuid"));
+
+            if( vmId == null ) {
+                log.warn("Unable to identify new member of warm pool " + slot.prefix);
+                return;
+            }
+            add(slot, vm.getMOR(), vmId, properties.getString("config.changeVersion"));
+        }
+        catch( Throwable t ) {
+            log.error("Unable to fill warm pool " + slot.prefix + ": " + t.getMessage());
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private synchronized @Nonnull String nextName(@Nonnull Slot slot) {
+        sequence = (sequence + 1) % 1296;
+        return slot.prefix + Long.toString(System.currentTimeMillis(), 36) + Integer.toString(sequence, 36);
+    }
+}
@@ -26,6 +26,8 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.network.*;
 import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.InventorySnapshot;
+import org.dasein.cloud.vsphere.ObjectProperties;
 import org.dasein.cloud.vsphere.PrivateCloud;
 import org.dasein.cloud.vsphere.compute.Vm;
 
@@ -136,6 +138,11 @@ public class VSphereNetwork extends AbstractVLANSupport{
         APITrace.begin(provider, "Network.listVlans");
 
         try {
+            InventorySnapshot snapshot = provider.getInventorySnapshot();
+
+            if( snapshot != null ) {
+                return listVlans(snapshot);
+            }
             ServiceInstance instance = getServiceInstance();
 
             List<VLAN> networkList = new ArrayList<VLAN>();
@@ -185,6 +192,44 @@ public class VSphereNetwork extends AbstractVLANSupport{
         }
     }
 
+    private @Nonnull List<VLAN> listVlans(@Nonnull InventorySnapshot snapshot) throws CloudException, InternalException {
+        List<VLAN> networkList = new ArrayList<VLAN>();
+        String rid = getContext().getRegionId();
+
+        if( rid != null ) {
+            for( ObjectProperties network : snapshot.list("Network", "DistributedVirtualPortgroup") ) {
+                ObjectProperties dc = snapshot.getDatacenter(network.getReference("parent"));
+
+                if( dc != null && rid.equals(dc.getString("name")) ) {
+                    networkList.add(toVlan(network, snapshot));
+                }
+            }
+        }
+        log.debug("listVlans() returning " + networkList.size() + " elements");
+        return networkList;
+    }
+
+    private @Nonnull VLAN toVlan(@Nonnull ObjectProperties network, @Nonnull InventorySnapshot snapshot) throws InternalException, CloudException {
+        VLAN vlan = new VLAN();
+        vlan.setName(network.getString("name"));
+        vlan.setDescription(vlan.getName() + " ("+network.getId()+")");
+        vlan.setProviderVlanId(network.getId());
+        vlan.setCidr("");
+        if( network.getType().equals("DistributedVirtualPortgroup") ) {
+            ObjectProperties dvs = snapshot.get(network.getReference("config.distributedVirtualSwitch"));
+
+            if( dvs != null ) {
+                vlan.setTag("switch.uuid", dvs.getString("uuid"));
+            }
+        }
+        vlan.setProviderRegionId(getContext().getRegionId());
+        vlan.setProviderOwnerId(getContext().getAccountNumber());
+        vlan.setSupportedTraffic(IPVersion.IPV4);
+        vlan.setVisibleScope(VisibleScope.ACCOUNT_REGION);
+        vlan.setCurrentState(network.getBoolean("summary.accessible") ? VLANState.AVAILABLE : VLANState.PENDING);
+        return vlan;
+    }
+
     private VLAN toVlan(Network network) throws InternalException, CloudException {
         if (network == null) {
             return null;
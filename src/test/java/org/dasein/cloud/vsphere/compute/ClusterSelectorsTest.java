@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ClusterSelectorsTest {
+    static private ClusterLoad cluster(String name, int hosts, long freeCpuMhz, long freeMemoryMB, int vms) {
+        ClusterLoad load = new ClusterLoad(name);
+
+        for( int i = 0; i < hosts; i++ ) {
+            load.add(10000L, freeCpuMhz / hosts, 65536L, freeMemoryMB / hosts, vms / hosts);
+        }
+        return load;
+    }
+
+    @Test
+    public void leastVmsTakesLowestDensity() {
+        List<ClusterLoad> clusters = Arrays.asList(cluster("a", 2, 5000L, 30000L, 40), cluster("b", 4, 5000L, 30000L, 40), cluster("c", 1, 5000L, 30000L, 30));
+
+        assertEquals("b", ClusterSelectors.LEAST_VMS.select(clusters));
+    }
+
+    @Test
+    public void roundRobinVisitsEveryCluster() {
+        List<ClusterLoad> clusters = Arrays.asList(cluster("a", 1, 0L, 0L, 0), cluster("b", 1, 0L, 0L, 0), cluster("c", 1, 0L, 0L, 0));
+        Set<String> chosen = new HashSet<String>();
+
+        for( int i = 0; i < clusters.size(); i++ ) {
+            chosen.add(ClusterSelectors.ROUND_ROBIN.select(clusters));
+        }
+        assertEquals(3, chosen.size());
+    }
+
+    @Test
+    public void weightedNeverTakesFullCluster() {
+        List<ClusterLoad> clusters = Arrays.asList(cluster("full", 1, 0L, 0L, 10), cluster("idle", 1, 8000L, 60000L, 10));
+
+        for( int i = 0; i < 100; i++ ) {
+            assertEquals("idle", ClusterSelectors.WEIGHTED.select(clusters));
+        }
+    }
+
+    @Test
+    public void weightedFallsBackToLeastVmsWhenAllFull() {
+        List<ClusterLoad> clusters = Arrays.asList(cluster("a", 1, 0L, 0L, 10), cluster("b", 1, 0L, 0L, 5));
+
+        for( int i = 0; i < 10; i++ ) {
+            assertEquals("b", ClusterSelectors.WEIGHTED.select(clusters));
+        }
+    }
+
+    @Test
+    public void weightedSpreadsOverFreeClusters() {
+        List<ClusterLoad> clusters = Arrays.asList(cluster("a", 1, 5000L, 30000L, 10), cluster("b", 1, 5000L, 30000L, 10));
+        Set<String> chosen = new HashSet<String>();
+
+        for( int i = 0; i < 200; i++ ) {
+            chosen.add(ClusterSelectors.WEIGHTED.select(clusters));
+        }
+        assertFalse(chosen.size() < 2);
+    }
+}
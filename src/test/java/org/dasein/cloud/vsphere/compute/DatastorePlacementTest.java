@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ManagedObjectReference;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DatastorePlacementTest {
+    static private final long GB = 1024L * 1024L * 1024L;
+
+    static private int counter = 0;
+
+    private DatastorePlacement                   placement    = new DatastorePlacement(null);
+    private List<DatastorePlacement.Reservation> reservations = new ArrayList<DatastorePlacement.Reservation>();
+
+    /**
+     * @return a candidate with a key no other test shares, since reservations are tracked across instances
+     */
+    static private DatastorePlacement.Candidate candidate(String name, long capacityGB, long freeGB, boolean eligible) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+
+        mor.setType("Datastore");
+        mor.setVal("datastore-" + (++counter));
+        return new DatastorePlacement.Candidate(mor, "test#" + mor.getVal(), name, eligible, false, capacityGB * GB, freeGB * GB);
+    }
+
+    private DatastorePlacement.Reservation place(List<DatastorePlacement.Candidate> candidates, long bytes, String policy, int minFreePercent) {
+        DatastorePlacement.Reservation reservation = placement.place(candidates, bytes, policy, minFreePercent);
+
+        if( reservation != null ) {
+            reservations.add(reservation);
+        }
+        return reservation;
+    }
+
+    @After
+    public void releaseReservations() {
+        for( DatastorePlacement.Reservation reservation : reservations ) {
+            reservation.release();
+        }
+        reservations.clear();
+    }
+
+    @Test
+    public void headroomTakesMostFreeBytes() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 300, true), candidate("b", 4000, 800, true), candidate("c", 500, 400, true));
+
+        assertEquals("b", place(candidates, 10 * GB, null, 5).getName());
+        assertEquals("b", place(candidates, 10 * GB, "headroom", 5).getName());
+    }
+
+    @Test
+    public void freeFractionTakesLargestShareFree() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 300, true), candidate("b", 4000, 800, true), candidate("c", 500, 400, true));
+
+        assertEquals("c", place(candidates, 10 * GB, "freeFraction", 5).getName());
+    }
+
+    @Test
+    public void firstFitTakesFirstWithRoom() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 20, true), candidate("b", 1000, 300, true), candidate("c", 1000, 900, true));
+
+        // a would drop below 5% free with 10GB more
+        assertEquals("b", place(candidates, 10 * GB, "firstFit", 5).getName());
+    }
+
+    @Test
+    public void skipsIneligibleDatastores() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 900, false), candidate("b", 1000, 100, true));
+
+        assertEquals("b", place(candidates, 10 * GB, null, 5).getName());
+    }
+
+    @Test
+    public void keepsMinimumFreePercent() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 100, true));
+
+        assertNotNull(place(candidates, 50 * GB, null, 5));
+        assertNull(place(candidates, 10 * GB, null, 10));
+    }
+
+    @Test
+    public void returnsNullWhenNothingFits() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 100, true), candidate("b", 1000, 50, false));
+
+        assertNull(place(candidates, 200 * GB, null, 0));
+    }
+
+    @Test
+    public void reservationsCountAgainstLaterPlacements() {
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(candidate("a", 1000, 500, true), candidate("b", 1000, 400, true));
+        DatastorePlacement.Reservation first = place(candidates, 200 * GB, null, 0);
+
+        assertEquals("a", first.getName());
+        // a now has 300GB left after the reservation, b still has 400GB
+        assertEquals("b", place(candidates, 10 * GB, null, 0).getName());
+        first.release();
+        reservations.remove(first);
+        assertEquals("a", place(candidates, 200 * GB, null, 0).getName());
+    }
+
+    @Test
+    public void reserveCountsNamedDatastore() {
+        DatastorePlacement.Candidate a = candidate("a", 1000, 100, true);
+        List<DatastorePlacement.Candidate> candidates = Arrays.asList(a);
+
+        reservations.add(placement.reserve(a, 100 * GB));
+        assertNull(place(candidates, 1 * GB, null, 0));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DatastoreSearchTest {
+    @Test
+    public void topFolderOfRootIsEmpty() {
+        assertEquals("", DatastoreSearch.getTopFolder("[ds]"));
+        assertEquals("", DatastoreSearch.getTopFolder("[ds] "));
+        assertEquals("", DatastoreSearch.getTopFolder(null));
+    }
+
+    @Test
+    public void topFolderOfFolder() {
+        assertEquals("vm", DatastoreSearch.getTopFolder("[ds] vm/"));
+        assertEquals("vm", DatastoreSearch.getTopFolder("[ds] vm"));
+        assertEquals("vm", DatastoreSearch.getTopFolder("[ds] /vm/"));
+    }
+
+    @Test
+    public void topFolderOfNestedFolder() {
+        assertEquals("vm", DatastoreSearch.getTopFolder("[ds] vm/disks/old/"));
+    }
+
+    @Test
+    public void topFolderWithSpacesInNames() {
+        assertEquals("my vm", DatastoreSearch.getTopFolder("[shared store] my vm/snapshots/"));
+    }
+}
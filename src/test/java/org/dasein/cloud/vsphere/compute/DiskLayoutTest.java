@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.ParaVirtualSCSIController;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDeviceConfigSpecOperation;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualDiskFlatVer2BackingInfo;
+import com.vmware.vim25.VirtualLsiLogicSASController;
+import com.vmware.vim25.VirtualSCSIController;
+import org.dasein.cloud.CloudException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskLayoutTest {
+    static private VirtualSCSIController controller(int key, int bus) {
+        VirtualLsiLogicSASController controller = new VirtualLsiLogicSASController();
+
+        controller.setKey(key);
+        controller.setBusNumber(bus);
+        return controller;
+    }
+
+    static private VirtualDisk disk(int controllerKey, int unit, String fileName) {
+        VirtualDisk disk = new VirtualDisk();
+        VirtualDiskFlatVer2BackingInfo backing = new VirtualDiskFlatVer2BackingInfo();
+
+        backing.setFileName(fileName);
+        disk.setKey(2000 + (controllerKey * 16) + unit);
+        disk.setControllerKey(controllerKey);
+        disk.setUnitNumber(unit);
+        disk.setBacking(backing);
+        return disk;
+    }
+
+    /**
+     * @return a controller on the specified bus with a disk on every unit but the controller's own
+     */
+    static private List<VirtualDevice> fullController(int key, int bus) {
+        List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+
+        devices.add(controller(key, bus));
+        for( int unit = 0; unit < 16; unit++ ) {
+            if( unit != 7 ) {
+                devices.add(disk(key, unit, "[ds] vm/vm_" + bus + "_" + unit + ".vmdk"));
+            }
+        }
+        return devices;
+    }
+
+    @Test
+    public void fillTakesNextFreeUnitOnExistingController() throws CloudException {
+        VirtualDevice[] devices = new VirtualDevice[] { controller(1000, 0), disk(1000, 0, "[ds] vm/vm.vmdk"), disk(1000, 1, "[ds] vm/vm_1.vmdk") };
+        DiskLayout layout = new DiskLayout(false, 4, false, devices);
+        DiskLayout.Slot slot = layout.allocate(null);
+
+        assertEquals(1000, slot.getControllerKey());
+        assertEquals(0, slot.getBusNumber());
+        assertEquals(2, slot.getUnitNumber());
+        assertTrue(layout.getControllerChanges().isEmpty());
+    }
+
+    @Test
+    public void fillSkipsControllerUnit() throws CloudException {
+        List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+
+        devices.add(controller(1000, 0));
+        for( int unit = 0; unit < 7; unit++ ) {
+            devices.add(disk(1000, unit, "[ds] vm/vm_" + unit + ".vmdk"));
+        }
+        DiskLayout layout = new DiskLayout(false, 4, false, devices.toArray(new VirtualDevice[devices.size()]));
+
+        assertEquals(8, layout.allocate(null).getUnitNumber());
+    }
+
+    @Test
+    public void fillHonorsPreferredUnit() throws CloudException {
+        DiskLayout layout = new DiskLayout(false, 4, false, new VirtualDevice[] { controller(1000, 0), disk(1000, 0, "[ds] vm/vm.vmdk") });
+        DiskLayout.Slot slot = layout.allocate(5);
+
+        assertEquals(1000, slot.getControllerKey());
+        assertEquals(5, slot.getUnitNumber());
+    }
+
+    @Test
+    public void fillAddsControllerWhenFull() throws CloudException {
+        List<VirtualDevice> devices = fullController(1000, 0);
+        DiskLayout layout = new DiskLayout(false, 4, false, devices.toArray(new VirtualDevice[devices.size()]));
+        DiskLayout.Slot slot = layout.allocate(null);
+
+        assertEquals(1, slot.getBusNumber());
+        assertEquals(0, slot.getUnitNumber());
+        assertTrue(slot.getControllerKey() < 0);
+        assertEquals(1, layout.getControllerChanges().size());
+        assertEquals(VirtualDeviceConfigSpecOperation.add, layout.getControllerChanges().get(0).getOperation());
+        assertTrue(layout.getControllerChanges().get(0).getDevice() instanceof VirtualLsiLogicSASController);
+        assertEquals(slot.getControllerKey(), layout.getControllerChanges().get(0).getDevice().getKey());
+    }
+
+    @Test
+    public void fillWithoutControllersAddsOne() throws CloudException {
+        DiskLayout layout = new DiskLayout(false, 4, false, null);
+        DiskLayout.Slot first = layout.allocate(null);
+        DiskLayout.Slot second = layout.allocate(null);
+
+        assertEquals(first.getControllerKey(), second.getControllerKey());
+        assertEquals(0, first.getUnitNumber());
+        assertEquals(1, second.getUnitNumber());
+        assertEquals(1, layout.getControllerChanges().size());
+    }
+
+    @Test
+    public void spreadAddsControllersUpToCount() throws CloudException {
+        DiskLayout layout = new DiskLayout(true, 4, false, new VirtualDevice[] { controller(1000, 0), disk(1000, 0, "[ds] vm/vm.vmdk") });
+
+        assertEquals(1, layout.allocate(null).getBusNumber());
+        assertEquals(2, layout.allocate(null).getBusNumber());
+        assertEquals(3, layout.allocate(null).getBusNumber());
+        assertEquals(3, layout.getControllerChanges().size());
+
+        // every controller now holds one disk, so the next goes to the first of them
+        DiskLayout.Slot slot = layout.allocate(null);
+
+        assertEquals(1000, slot.getControllerKey());
+        assertEquals(1, slot.getUnitNumber());
+        assertEquals(3, layout.getControllerChanges().size());
+    }
+
+    @Test
+    public void spreadRespectsControllerCount() throws CloudException {
+        DiskLayout layout = new DiskLayout(true, 2, false, null);
+        DiskLayout.Slot first = layout.allocate(null);
+        DiskLayout.Slot second = layout.allocate(null);
+        DiskLayout.Slot third = layout.allocate(null);
+
+        assertEquals(0, first.getBusNumber());
+        assertEquals(1, second.getBusNumber());
+        assertEquals(0, third.getBusNumber());
+        assertEquals(2, layout.getControllerChanges().size());
+    }
+
+    @Test
+    public void paravirtualAddsParavirtualControllers() throws CloudException {
+        DiskLayout layout = new DiskLayout(false, 4, true, null);
+
+        layout.allocate(null);
+        assertTrue(layout.getControllerChanges().get(0).getDevice() instanceof ParaVirtualSCSIController);
+    }
+
+    @Test
+    public void failsWhenNoUnitOrBusIsLeft() {
+        List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+
+        for( int bus = 0; bus < 4; bus++ ) {
+            devices.addAll(fullController(1000 + bus, bus));
+        }
+        DiskLayout layout = new DiskLayout(false, 4, false, devices.toArray(new VirtualDevice[devices.size()]));
+
+        try {
+            layout.allocate(null);
+            fail("Allocated a slot on a virtual machine with no room left");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void collectsExistingFileNames() {
+        DiskLayout layout = new DiskLayout(false, 4, false, new VirtualDevice[] { controller(1000, 0), disk(1000, 0, "[ds] vm/vm.vmdk"), disk(1000, 1, "[ds] vm/vm_1.vmdk") });
+
+        assertEquals(2, layout.getFileNames().size());
+        assertTrue(layout.getFileNames().contains("[ds] vm/vm_1.vmdk"));
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VmPowerBatchTest {
+    @Test
+    public void yieldsResultsInCompletionOrder() throws InterruptedException {
+        VmPowerBatch batch = new VmPowerBatch(VmPowerAction.START, 3);
+
+        batch.add(new VmPowerResult("b", VmPowerAction.START, true, null));
+        batch.add(new VmPowerResult("c", VmPowerAction.START, false, "failed"));
+        batch.add(new VmPowerResult("a", VmPowerAction.START, true, null));
+        assertTrue(batch.isDone());
+        assertTrue(batch.await(0L, TimeUnit.MILLISECONDS));
+
+        List<String> ids = new ArrayList<String>();
+
+        for( VmPowerResult result : batch ) {
+            ids.add(result.getVirtualMachineId());
+        }
+        assertEquals("b", ids.get(0));
+        assertEquals("c", ids.get(1));
+        assertEquals("a", ids.get(2));
+
+        // the batch may be iterated again
+        int count = 0;
+
+        for( VmPowerResult ignored : batch ) {
+            count++;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void ignoresResultsBeyondSize() {
+        VmPowerBatch batch = new VmPowerBatch(VmPowerAction.STOP, 1);
+
+        batch.add(new VmPowerResult("a", VmPowerAction.STOP, true, null));
+        batch.add(new VmPowerResult("a", VmPowerAction.STOP, true, null));
+        assertEquals(1, batch.getCompletedResults().size());
+    }
+
+    @Test
+    public void awaitTimesOutWhileIncomplete() throws InterruptedException {
+        VmPowerBatch batch = new VmPowerBatch(VmPowerAction.STOP, 2);
+
+        batch.add(new VmPowerResult("a", VmPowerAction.STOP, true, null));
+        assertFalse(batch.isDone());
+        assertFalse(batch.await(50L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void iteratorWaitsForPendingResult() throws InterruptedException {
+        final VmPowerBatch batch = new VmPowerBatch(VmPowerAction.REBOOT, 1);
+        Thread producer = new Thread() {
+            public void run() {
+                try { Thread.sleep(100L); }
+                catch( InterruptedException ignore ) { /* ignore */ }
+                batch.add(new VmPowerResult("a", VmPowerAction.REBOOT, true, null));
+            }
+        };
+
+        producer.start();
+        assertEquals("a", batch.iterator().next().getVirtualMachineId());
+        producer.join();
+    }
+}